@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.web.reactive.socket.adapter;
+
+import org.json.JSONObject;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.lang.Nullable;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import space.npstr.magma.events.audio.ws.OpCode;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Relays the callbacks of a JDK {@link WebSocket} to a {@link JdkWebSocketSession}.
+ * <p>
+ * Like {@link ClosingUndertowWebSocketHandlerAdapter}, close frames are converted into text messages before the
+ * session is closed, so that the close code and reason reach the voice websocket handling.
+ * <p>
+ * Messages are requested one at a time, and only after the session has been attached, so nothing is received before
+ * there is a session to hand it to.
+ */
+public class JdkWebSocketHandlerAdapter implements WebSocket.Listener {
+
+    @Nullable
+    private volatile JdkWebSocketSession session;
+
+    // partial frames of the message currently being received
+    private final StringBuilder text = new StringBuilder();
+    @Nullable
+    private DataBuffer binary;
+
+    /**
+     * Start receiving messages into the passed session.
+     */
+    public void attach(final JdkWebSocketSession session) {
+        this.session = session;
+        session.getDelegate().request(1);
+    }
+
+    @Override
+    public void onOpen(final WebSocket webSocket) {
+        // the first request happens in attach()
+    }
+
+    @Nullable
+    @Override
+    public CompletionStage<?> onText(final WebSocket webSocket, final CharSequence data, final boolean last) {
+        this.text.append(data);
+        if (last) {
+            final JdkWebSocketSession s = this.getSession();
+            final byte[] bytes = this.text.toString().getBytes(StandardCharsets.UTF_8);
+            this.text.setLength(0);
+            s.handleMessage(WebSocketMessage.Type.TEXT,
+                    new WebSocketMessage(WebSocketMessage.Type.TEXT, s.bufferFactory().wrap(bytes)));
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public CompletionStage<?> onBinary(final WebSocket webSocket, final ByteBuffer data, final boolean last) {
+        final JdkWebSocketSession s = this.getSession();
+        DataBuffer buffer = this.binary;
+        if (buffer == null) {
+            buffer = s.bufferFactory().allocateBuffer(data.remaining());
+        }
+        buffer.write(data);
+        if (last) {
+            this.binary = null;
+            s.handleMessage(WebSocketMessage.Type.BINARY, new WebSocketMessage(WebSocketMessage.Type.BINARY, buffer));
+        } else {
+            this.binary = buffer;
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public CompletionStage<?> onPing(final WebSocket webSocket, final ByteBuffer message) {
+        // the jdk answers with a pong on its own
+        webSocket.request(1);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public CompletionStage<?> onPong(final WebSocket webSocket, final ByteBuffer message) {
+        webSocket.request(1);
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public CompletionStage<?> onClose(final WebSocket webSocket, final int statusCode, final String reason) {
+        final JdkWebSocketSession s = this.getSession();
+        final byte[] bytes = new JSONObject()
+                .put("op", OpCode.WEBSOCKET_CLOSE)
+                .put("d", new JSONObject()
+                        .put("code", statusCode)
+                        .put("reason", reason))
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        s.handleMessage(WebSocketMessage.Type.TEXT,
+                new WebSocketMessage(WebSocketMessage.Type.TEXT, s.bufferFactory().wrap(bytes)));
+        s.handleClose(new CloseStatus(statusCode, reason));
+        return null;
+    }
+
+    @Override
+    public void onError(final WebSocket webSocket, final Throwable error) {
+        final JdkWebSocketSession s = this.session;
+        if (s != null) {
+            s.handleError(error);
+        }
+    }
+
+    private JdkWebSocketSession getSession() {
+        final JdkWebSocketSession s = this.session;
+        if (s == null) {
+            throw new IllegalStateException("Received a message before a session was attached");
+        }
+        return s;
+    }
+}
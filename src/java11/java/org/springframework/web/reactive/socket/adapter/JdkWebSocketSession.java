@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.web.reactive.socket.adapter;
+
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.util.ObjectUtils;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link org.springframework.web.reactive.socket.WebSocketSession} on top of a {@link WebSocket} of the JDK http
+ * client. Incoming messages are fed to it by a {@link JdkWebSocketHandlerAdapter}.
+ * <p>
+ * The JDK client sends one message at a time, so the send processor is paused until the previous message has been
+ * handed off.
+ */
+public class JdkWebSocketSession extends AbstractListenerWebSocketSession<WebSocket> {
+
+    public JdkWebSocketSession(final WebSocket delegate, final HandshakeInfo info,
+                               final DataBufferFactory bufferFactory,
+                               @Nullable final MonoProcessor<Void> completionMono) {
+        super(delegate, ObjectUtils.getIdentityHexString(delegate), info, bufferFactory, completionMono);
+    }
+
+    @Override
+    protected boolean canSuspendReceiving() {
+        // messages are requested one by one by the adapter, there is no way to take back a request
+        return false;
+    }
+
+    @Override
+    protected void suspendReceiving() {
+        // no-op
+    }
+
+    @Override
+    protected void resumeReceiving() {
+        // no-op
+    }
+
+    @Override
+    protected boolean sendMessage(final WebSocketMessage message) {
+        final CompletableFuture<WebSocket> sent;
+        final WebSocket webSocket = getDelegate();
+        getSendProcessor().setReadyToSend(false);
+        switch (message.getType()) {
+            case TEXT:
+                sent = webSocket.sendText(message.getPayloadAsText(), true);
+                break;
+            case BINARY:
+                sent = webSocket.sendBinary(copyPayload(message), true);
+                break;
+            case PING:
+                sent = webSocket.sendPing(copyPayload(message));
+                break;
+            case PONG:
+                sent = webSocket.sendPong(copyPayload(message));
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected message type: " + message.getType());
+        }
+        DataBufferUtils.release(message.getPayload());
+
+        sent.whenComplete((ws, error) -> {
+            if (error == null) {
+                getSendProcessor().setReadyToSend(true);
+                getSendProcessor().onWritePossible();
+            } else {
+                getSendProcessor().cancel();
+                getSendProcessor().onError(error);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public Mono<Void> close(final CloseStatus status) {
+        final String reason = status.getReason();
+        return Mono.fromFuture(getDelegate().sendClose(status.getCode(), reason != null ? reason : ""))
+                .then();
+    }
+
+    // the payload may be pooled, so hand the JDK a copy it owns until the send completes. a heap copy, which unlike a
+    // direct one is cheap to allocate and freed like any other object
+    private static ByteBuffer copyPayload(final WebSocketMessage message) {
+        final ByteBuffer payload = message.getPayload().asByteBuffer();
+        final ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections.hax;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.adapter.JdkWebSocketHandlerAdapter;
+import org.springframework.web.reactive.socket.adapter.JdkWebSocketSession;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import javax.net.ssl.SSLContext;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.Arrays;
+
+/**
+ * A {@link ClosingWebSocketClient} on top of the websocket client of the JDK http client, for Java 11+ runtimes. It
+ * needs neither Undertow nor an XNIO worker, all connections share the selector thread of a single {@link HttpClient}.
+ * <p>
+ * Close frames are relayed as text messages by the {@link JdkWebSocketHandlerAdapter}. Received binary messages are
+ * written to direct buffers.
+ * <p>
+ * Compiled for Java 11 in a source set of its own, and looked up by name by {@link space.npstr.magma.Magma} when the
+ * JDK client has been configured, so that it is never loaded on older runtimes.
+ */
+public class JdkWebSocketClient implements ClosingWebSocketClient {
+
+    private static final Logger log = LoggerFactory.getLogger(JdkWebSocketClient.class);
+
+    private final HttpClient httpClient;
+    private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory(true);
+
+    public JdkWebSocketClient(final SSLContext sslContext) {
+        this.httpClient = HttpClient.newBuilder()
+                .sslContext(sslContext)
+                .build();
+    }
+
+    @Override
+    public Mono<Void> execute(final URI url, final WebSocketHandler handler) {
+        return this.execute(url, new HttpHeaders(), handler);
+    }
+
+    @Override
+    public Mono<Void> execute(final URI url, final HttpHeaders headers, final WebSocketHandler handler) {
+        final MonoProcessor<Void> completion = MonoProcessor.create();
+        return Mono.defer(() -> {
+            log.debug("Connecting to {}", url);
+            final JdkWebSocketHandlerAdapter adapter = new JdkWebSocketHandlerAdapter();
+            final WebSocket.Builder builder = this.httpClient.newWebSocketBuilder();
+            headers.forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+            final String[] protocols = handler.getSubProtocols().toArray(new String[0]);
+            if (protocols.length > 0) {
+                builder.subprotocols(protocols[0], Arrays.copyOfRange(protocols, 1, protocols.length));
+            }
+            return Mono.fromFuture(builder.buildAsync(url, adapter))
+                    .onErrorMap(t -> new IllegalStateException("Failed to connect to " + url, t))
+                    .doOnNext(webSocket -> {
+                        final String protocol = webSocket.getSubprotocol();
+                        final HandshakeInfo info = new HandshakeInfo(url, new HttpHeaders(), Mono.empty(),
+                                protocol.isEmpty() ? null : protocol);
+                        final JdkWebSocketSession session = new JdkWebSocketSession(webSocket, info,
+                                this.bufferFactory, completion);
+                        handler.handle(session).subscribe(session);
+                        adapter.attach(session);
+                    });
+        })
+                .then(completion);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import space.npstr.magma.events.api.MagmaEvent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Hands the api events to every subscriber of the event streams of a {@link Magma} instance.
+ * <p>
+ * Each subscriber gets its own bounded buffer, and the filter of a subscription is applied before an event goes into
+ * that buffer, so events the subscriber is not interested in take up no space. Publishing never waits for a
+ * subscriber: when the buffer of a slow subscriber is full, the configured overflow strategy is applied to that
+ * subscriber only, and the threads publishing the events carry on.
+ */
+class ApiEventBroadcaster {
+
+    private static final Logger log = LoggerFactory.getLogger(ApiEventBroadcaster.class);
+
+    private final int bufferSize;
+    private final BufferOverflowStrategy overflowStrategy;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean completed = false;
+
+    ApiEventBroadcaster(final int bufferSize, final BufferOverflowStrategy overflowStrategy) {
+        this.bufferSize = bufferSize;
+        this.overflowStrategy = overflowStrategy;
+    }
+
+    /**
+     * @return a stream of the published events of the type that match the filter, starting with the first event
+     * published after subscribing. Every subscription to it is registered on its own.
+     */
+    <T extends MagmaEvent> Flux<T> stream(final Class<T> type, final Predicate<? super T> filter) {
+        final Predicate<MagmaEvent> matches = event -> type.isInstance(event) && filter.test(type.cast(event));
+        return Flux.<MagmaEvent>create(sink -> {
+                    final Subscription subscription = new Subscription(sink, matches);
+                    this.subscriptions.add(subscription);
+                    sink.onDispose(() -> this.subscriptions.remove(subscription));
+                    if (this.completed) {
+                        sink.complete();
+                    }
+                }, FluxSink.OverflowStrategy.IGNORE) // demand is handled by the buffer below
+                .onBackpressureBuffer(this.bufferSize,
+                        dropped -> log.debug("Event buffer of a subscriber is full, dropping {}", dropped),
+                        this.overflowStrategy)
+                .cast(type);
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    void publish(final MagmaEvent event) {
+        for (final Subscription subscription : this.subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Complete the streams of all current and future subscribers.
+     */
+    void complete() {
+        this.completed = true;
+        for (final Subscription subscription : this.subscriptions) {
+            subscription.sink.complete();
+        }
+    }
+
+    private static class Subscription {
+
+        private final FluxSink<MagmaEvent> sink;
+        private final Predicate<MagmaEvent> filter;
+
+        private Subscription(final FluxSink<MagmaEvent> sink, final Predicate<MagmaEvent> filter) {
+            this.sink = sink;
+            this.filter = filter;
+        }
+
+        private void offer(final MagmaEvent event) {
+            final boolean matches;
+            try {
+                matches = this.filter.test(event);
+            } catch (final Exception e) {
+                // the subscriber brought it, the subscriber gets it
+                this.sink.error(e);
+                return;
+            }
+            if (matches) {
+                this.sink.next(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the audio the other users in the voice channel of a bot member are sending, see
+ * {@link MagmaApi#setReceiveHandler(Member, AudioReceiveHandler)}.
+ * <p>
+ * Frames are delivered per user in sequence order. A frame that got lost or arrived too late to be put in order is
+ * skipped, a gap in the sequence numbers of a user tells about it.
+ */
+@FunctionalInterface
+public interface AudioReceiveHandler {
+
+    /**
+     * Called on the receiving thread of the {@link MagmaApi} instance, which is shared by all connections. This must
+     * not block, hand the frame off to somewhere else for anything expensive like decoding it.
+     *
+     * @param member
+     *         the bot member whose connection the frame was received on
+     * @param userId
+     *         id of the user who sent the frame
+     * @param sequence
+     *         RTP sequence number of the frame
+     * @param timestamp
+     *         RTP timestamp of the frame, in samples at 48kHz
+     * @param opus
+     *         the opus frame, between its position and limit. Only valid during the call, copy it to keep it.
+     */
+    void handleOpusFrame(Member member, String userId, char sequence, int timestamp, ByteBuffer opus);
+}
@@ -22,19 +22,28 @@ import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
-import reactor.core.publisher.BaseSubscriber;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
-import reactor.core.scheduler.Schedulers;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
 import space.npstr.magma.connections.AudioWebSocket;
+import space.npstr.magma.connections.UdpReceiver;
+import space.npstr.magma.connections.Mailbox;
 import space.npstr.magma.connections.hax.ClosingWebSocketClient;
 import space.npstr.magma.events.api.MagmaEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
 import space.npstr.magma.events.audio.lifecycle.*;
 import space.npstr.magma.immutables.ImmutableApiEvent;
+import space.npstr.magma.immutables.SessionInfo;
+import space.npstr.magma.recording.VoiceRecorder;
 
 import java.net.DatagramSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -44,40 +53,60 @@ import java.util.function.Consumer;
  *
  * @see AudioStackLifecyclePipeline
  */
-public class AudioStack extends BaseSubscriber<LifecycleEvent> {
+public class AudioStack {
 
     private static final Logger log = LoggerFactory.getLogger(AudioStack.class);
 
+    private static final long NOT_IDLE = 0;
+
+    private final Configuration configuration;
     private final Member member;
     private final IAudioSendFactory sendFactory;
     private final ClosingWebSocketClient webSocketClient;
     private final Consumer<MagmaEvent> apiEventConsumer;
     private final DatagramSocket udpSocket;
+    private final UdpReceiver udpReceiver;
+    private final Consumer<EvictIdleStack> idleCallback;
 
-    private final FluxSink<LifecycleEvent> lifecycleSink;
+    // lifecycle events, and callbacks to run once the events posted before them have been handled
+    private final Mailbox<Object> lifecycleMailbox;
+    // events passed to this stack that have not been fully handled yet
+    private final AtomicInteger pendingEvents = new AtomicInteger();
 
     @Nullable
     private AudioWebSocket webSocket;
+    // connection to a new voice server that is being established while the current one keeps sending
+    @Nullable
+    private AudioWebSocket pendingWebSocket;
     @Nullable
     private AudioSendHandler sendHandler;
     @Nullable
+    private AudioReceiveHandler receiveHandler;
+    @Nullable
+    private VoiceRecorder recorder;
+    @Nullable
     private EnumSet<SpeakingMode> speakingModes;
+    private volatile long lastMigrationGapNanos = -1;
+    // waiting for the current connection to send audio
+    private final List<MonoProcessor<Void>> sendingWaiters = new ArrayList<>(0);
+    // marks the current idle period, or NOT_IDLE. written before the pending events are decremented
+    private volatile long idleMark = NOT_IDLE;
+    private long idleMarks = NOT_IDLE;
 
 
-    public AudioStack(final Member member, final IAudioSendFactory sendFactory,
+    public AudioStack(final Configuration configuration, final Member member, final IAudioSendFactory sendFactory,
                       final ClosingWebSocketClient webSocketClient, Consumer<MagmaEvent> apiEventConsumer,
-                      final DatagramSocket udpSocket) {
+                      final DatagramSocket udpSocket, final UdpReceiver udpReceiver, final Scheduler scheduler,
+                      final Consumer<EvictIdleStack> idleCallback) {
+        this.configuration = configuration;
         this.member = member;
         this.sendFactory = sendFactory;
         this.webSocketClient = webSocketClient;
         this.apiEventConsumer = apiEventConsumer;
-
-        final UnicastProcessor<LifecycleEvent> lifecycleProcessor = UnicastProcessor.create();
-        this.lifecycleSink = lifecycleProcessor.sink();
-        lifecycleProcessor
-                .publishOn(Schedulers.parallel())
-                .subscribe(this);
         this.udpSocket = udpSocket;
+        this.udpReceiver = udpReceiver;
+        this.idleCallback = idleCallback;
+        this.lifecycleMailbox = new Mailbox<>(this::receive, scheduler);
     }
 
 
@@ -88,7 +117,36 @@ public class AudioStack extends BaseSubscriber<LifecycleEvent> {
                     event.getGuildId(), this.member.getGuildId()));
         }
 
-        this.lifecycleSink.next(event);
+        this.pendingEvents.incrementAndGet();
+        this.lifecycleMailbox.post(event);
+    }
+
+    public Member getMember() {
+        return this.member;
+    }
+
+    /**
+     * Run the callback on the thread of this stack, once all events passed to it so far have been handled. Does not
+     * count as an event, so it does not affect the idleness of this stack.
+     */
+    public void whenHandled(final Runnable callback) {
+        this.lifecycleMailbox.post(callback);
+    }
+
+    /**
+     * @return true if this stack has neither handled nor been passed any event since it became idle with the provided
+     * mark. The pipeline only passes events to a stack from the lane of its member, so when called on that lane, an
+     * idle stack stays idle until the lane passes it the next event.
+     */
+    public boolean isIdle(final long mark) {
+        return this.pendingEvents.get() == 0 && this.idleMark == mark;
+    }
+
+    /**
+     * Stop processing events. Only to be called by the pipeline after removing an idle stack.
+     */
+    public void evict() {
+        this.lifecycleMailbox.dispose();
     }
 
     public void nextApi(final MagmaEvent event) {
@@ -103,8 +161,62 @@ public class AudioStack extends BaseSubscriber<LifecycleEvent> {
         return WebsocketConnectionState.Phase.NO_CONNECTION;
     }
 
-    @Override
-    protected void hookOnNext(final LifecycleEvent event) {
+    /**
+     * @return endpoint of the voice server of the current connection, if there is one
+     */
+    public Optional<String> getEndpoint() {
+        final AudioWebSocket socket = this.webSocket;
+        if (socket != null) {
+            return Optional.of(socket.getSession().getVoiceServerUpdate().getEndpoint());
+        }
+        return Optional.empty();
+    }
+
+    public Optional<HeartbeatStats> getHeartbeatStats() {
+        final AudioWebSocket socket = this.webSocket;
+        if (socket != null) {
+            return Optional.of(socket.getHeartbeatStats());
+        }
+        return Optional.empty();
+    }
+
+    public Optional<SilenceSuppressionStats> getSilenceSuppressionStats() {
+        final AudioWebSocket socket = this.webSocket;
+        if (socket != null) {
+            return Optional.of(socket.getAudioConnection().getSilenceSuppressionTracker().getStats());
+        }
+        return Optional.empty();
+    }
+
+    public OptionalDouble getLastSendHandlerSwitchMillis() {
+        final AudioWebSocket socket = this.webSocket;
+        if (socket == null) {
+            return OptionalDouble.empty();
+        }
+        final long switchNanos = socket.getAudioConnection().getLastSendHandlerSwitchNanos();
+        if (switchNanos < 0) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of((double) switchNanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public OptionalDouble getLastMigrationGapMillis() {
+        final long gapNanos = this.lastMigrationGapNanos;
+        if (gapNanos < 0) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of((double) gapNanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private void receive(final Object message) {
+        if (message instanceof Runnable) {
+            ((Runnable) message).run();
+        } else {
+            this.handle((LifecycleEvent) message);
+        }
+    }
+
+    private void handle(final LifecycleEvent event) {
         try (
                 final MDC.MDCCloseable ignored = MDC.putCloseable(MdcKey.GUILD, this.member.getGuildId());
                 final MDC.MDCCloseable ignored2 = MDC.putCloseable(MdcKey.BOT, this.member.getUserId())
@@ -113,41 +225,161 @@ public class AudioStack extends BaseSubscriber<LifecycleEvent> {
                 this.handleConnectWebSocket((ConnectWebSocket) event);
             } else if (event instanceof UpdateSendHandler) {
                 this.handleUpdateSendHandler((UpdateSendHandler) event);
+            } else if (event instanceof UpdateReceiveHandler) {
+                this.handleUpdateReceiveHandler((UpdateReceiveHandler) event);
+            } else if (event instanceof UpdateRecording) {
+                this.handleUpdateRecording((UpdateRecording) event);
             } else if (event instanceof CloseWebSocket) {
                 this.handleCloseWebSocket((CloseWebSocket) event);
             } else if (event instanceof Shutdown) {
                 this.handleShutdown();
             } else if (event instanceof UpdateSpeakingMode) {
                 this.handleUpdateSpeakingMode(((UpdateSpeakingMode) event).getSpeakingModes());
+            } else if (event instanceof MigrationReady) {
+                this.handleMigrationReady((MigrationReady) event);
+            } else if (event instanceof SendingStarted) {
+                log.trace("Sending started");
             } else {
                 log.warn("AudioStack has no handler for lifecycle event of class {}", event.getClass().getSimpleName());
             }
+        } finally {
+            this.completeSendingWaiters();
+            this.updateIdleness();
+            this.pendingEvents.decrementAndGet();
+        }
+    }
+
+    /**
+     * Complete the waiter once the current connection of this stack sends audio, or fail it with a
+     * {@link ConnectionClosedException} if the connection is closed before that. Only to be called on the thread of
+     * this stack, see {@link #whenHandled(Runnable)}.
+     */
+    public void awaitSending(final MonoProcessor<Void> waiter) {
+        this.sendingWaiters.add(waiter);
+        this.completeSendingWaiters();
+        if (this.hasNothingToDo()) {
+            this.failSendingWaiters(new ConnectionClosedException(this.member, 1000, "No connection", false));
+        }
+    }
+
+    private boolean hasNothingToDo() {
+        return this.webSocket == null && this.pendingWebSocket == null && this.sendHandler == null
+                && this.receiveHandler == null && this.recorder == null;
+    }
+
+    private void completeSendingWaiters() {
+        if (this.sendingWaiters.isEmpty()) {
+            return;
+        }
+        final AudioWebSocket socket = this.webSocket;
+        if (socket != null && socket.getAudioConnection().isSending()) {
+            this.sendingWaiters.forEach(MonoProcessor::onComplete);
+            this.sendingWaiters.clear();
         }
+    }
+
+    private void failSendingWaiters(final ConnectionClosedException reason) {
+        this.sendingWaiters.forEach(waiter -> waiter.onError(reason));
+        this.sendingWaiters.clear();
+    }
 
+    /**
+     * Every event handled while idle starts a new idle period, so that eviction waits for the full timeout after the
+     * last event.
+     */
+    private void updateIdleness() {
+        if (this.lifecycleMailbox.isDisposed()) {
+            return;
+        }
+        if (this.hasNothingToDo()) {
+            // nothing is going to start sending
+            this.failSendingWaiters(new ConnectionClosedException(this.member, 1000, "No connection", false));
+            final long mark = ++this.idleMarks;
+            this.idleMark = mark;
+            this.idleCallback.accept(EvictIdleStackLcEvent.builder()
+                    .member(this.member)
+                    .idleMark(mark)
+                    .build());
+        } else {
+            this.idleMark = NOT_IDLE;
+        }
     }
 
 
     private void handleConnectWebSocket(final ConnectWebSocket connectWebSocket) {
         log.trace("Connecting");
+        final SessionInfo sessionInfo = connectWebSocket.getSessionInfo();
+
+        if (this.pendingWebSocket != null) {
+            if (this.pendingWebSocket.getSession().equals(sessionInfo)) {
+                log.info("Discarding received connection request because it is identical to the connection that is " +
+                        "currently being migrated to.");
+                return;
+            }
+            log.debug("Abandoning migration in favour of a newer voice server update");
+            this.pendingWebSocket.close();
+            this.pendingWebSocket = null;
+        }
 
         if (this.webSocket != null) {
-            if (this.webSocket.getSession().equals(connectWebSocket.getSessionInfo())) {
+            if (this.webSocket.getSession().equals(sessionInfo)) {
                 log.info("Discarding received connection request because it is identical to the already existing connection." +
                         " If you really want to reconnect, send a disconnect request first.");
                 return;
+            } else if (this.configuration.isVoiceServerMigrationEnabled()
+                    && this.sendHandler != null
+                    && this.webSocket.getConnectionPhase() == WebsocketConnectionState.Phase.CONNECTED) {
+                log.debug("Migrating to voice server {}, keeping the current connection until the new one is ready",
+                        sessionInfo.getVoiceServerUpdate().getEndpoint());
+                this.pendingWebSocket = this.createWebSocket(sessionInfo, true);
+                return;
             } else {
                 this.webSocket.close();
             }
         }
 
-        this.webSocket = new AudioWebSocket(this.sendFactory, connectWebSocket.getSessionInfo(),
-                this.webSocketClient, this::next, this.udpSocket, this::nextApi);
+        this.webSocket = this.createWebSocket(sessionInfo, false);
+    }
+
+    private AudioWebSocket createWebSocket(final SessionInfo sessionInfo, final boolean standby) {
+        final AudioWebSocket socket = new AudioWebSocket(this.sendFactory, sessionInfo,
+                this.webSocketClient, this::next, this.udpSocket, this.udpReceiver, this::nextApi, standby);
         if (this.sendHandler != null) {
-            this.webSocket.getAudioConnection().updateSendHandler(this.sendHandler);
+            socket.getAudioConnection().updateSendHandler(this.sendHandler);
+        }
+        final AudioReceiveHandler effectiveReceiveHandler = this.effectiveReceiveHandler();
+        if (effectiveReceiveHandler != null) {
+            socket.getAudioConnection().updateReceiveHandler(effectiveReceiveHandler);
         }
         if (this.speakingModes != null) {
-            this.webSocket.getAudioConnection().setSpeakingModes(this.speakingModes);
+            socket.getAudioConnection().setSpeakingModes(this.speakingModes);
+        }
+        return socket;
+    }
+
+    private void handleMigrationReady(final MigrationReady migrationReady) {
+        final AudioWebSocket pending = this.pendingWebSocket;
+        if (pending == null || !pending.getSession().equals(migrationReady.getSessionInfo())) {
+            log.debug("Ignoring readiness of an abandoned migration");
+            return;
+        }
+        log.trace("Switching over to the migrated connection");
+        this.pendingWebSocket = null;
+        final AudioWebSocket old = this.webSocket;
+        this.webSocket = pending;
+        if (old == null) {
+            pending.getAudioConnection().leaveStandby();
+            return;
         }
+        // the old connection is closed only after the send system has moved, so audio keeps flowing through it until then
+        old.getAudioConnection().handOverSendComponents(pending.getAudioConnection(), this::migrationGap, old::close);
+    }
+
+    private void migrationGap(final long gapNanos) {
+        this.lastMigrationGapNanos = gapNanos;
+        log.info("Voice server migration of guild {} bot {} completed with a gap of {}ms between audio packets",
+                this.member.getGuildId(), this.member.getUserId(),
+                String.format("%.3f", (double) gapNanos / TimeUnit.MILLISECONDS.toNanos(1)));
     }
 
     private void handleUpdateSendHandler(final UpdateSendHandler updateSendHandler) {
@@ -158,25 +390,122 @@ public class AudioStack extends BaseSubscriber<LifecycleEvent> {
         if (this.webSocket != null) {
             this.webSocket.getAudioConnection().updateSendHandler(sendHandlerInstance);
         }
+        if (this.pendingWebSocket != null) {
+            this.pendingWebSocket.getAudioConnection().updateSendHandler(sendHandlerInstance);
+        }
+    }
+
+    private void handleUpdateReceiveHandler(final UpdateReceiveHandler updateReceiveHandler) {
+        log.trace("Updating receive handler");
+        this.receiveHandler = updateReceiveHandler.getAudioReceiveHandler().orElse(null);
+        this.applyReceiveHandler();
+    }
+
+    private void handleUpdateRecording(final UpdateRecording updateRecording) {
+        final VoiceRecorder previous = this.recorder;
+        final Optional<Path> directory = updateRecording.getDirectory();
+        if (previous != null && directory.isPresent() && previous.getDirectory().equals(directory.get())) {
+            log.debug("Already recording to {}", directory.get());
+            return;
+        }
+        log.trace("Updating recording");
+        this.recorder = directory.map(VoiceRecorder::new).orElse(null);
+        this.applyReceiveHandler();
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void applyReceiveHandler() {
+        final AudioReceiveHandler effectiveReceiveHandler = this.effectiveReceiveHandler();
+        if (this.webSocket != null) {
+            this.webSocket.getAudioConnection().updateReceiveHandler(effectiveReceiveHandler);
+        }
+        if (this.pendingWebSocket != null) {
+            this.pendingWebSocket.getAudioConnection().updateReceiveHandler(effectiveReceiveHandler);
+        }
+    }
+
+    /**
+     * @return the receive handler of the user, the recorder, or both of them
+     */
+    @Nullable
+    private AudioReceiveHandler effectiveReceiveHandler() {
+        final AudioReceiveHandler handler = this.receiveHandler;
+        final VoiceRecorder voiceRecorder = this.recorder;
+        if (handler == null || voiceRecorder == null) {
+            return handler != null ? handler : voiceRecorder;
+        }
+        return (member, userId, sequence, timestamp, opus) -> {
+            voiceRecorder.handleOpusFrame(member, userId, sequence, timestamp, opus.duplicate());
+            handler.handleOpusFrame(member, userId, sequence, timestamp, opus);
+        };
     }
 
     private void handleCloseWebSocket(CloseWebSocket event) {
         log.trace("Closing websocket");
         apiEventConsumer.accept(event.getApiEvent());
+        final Optional<SessionInfo> closedSession = event.getSessionInfo();
+        if (closedSession.isPresent()) {
+            final AudioWebSocket current = this.webSocket;
+            final boolean isCurrent = current != null && current.getSession().equals(closedSession.get());
+            final AudioWebSocket pending = this.pendingWebSocket;
+            if (pending != null && pending.getSession().equals(closedSession.get())) {
+                log.debug("Connection that was being migrated to has been closed, keeping the current connection");
+                pending.close();
+                this.pendingWebSocket = null;
+                return;
+            } else if (pending != null && current != null && isCurrent) {
+                log.debug("Current connection has been closed during a migration, continuing with the new connection");
+                current.close();
+                this.webSocket = pending;
+                this.pendingWebSocket = null;
+                pending.getAudioConnection().leaveStandby();
+                return;
+            } else if (!isCurrent) {
+                log.debug("Ignoring close of a connection that has already been replaced");
+                return;
+            }
+        }
+
+        if (this.pendingWebSocket != null) {
+            this.pendingWebSocket.close();
+            this.pendingWebSocket = null;
+        }
         if (this.webSocket != null) {
             this.webSocket.close();
             this.webSocket = null;
         }
+        this.failSendingWaiters(ConnectionClosedException.of(event.getApiEvent()));
+        if (!closedSession.isPresent()) {
+            // closed by user code, which is done with this member. without its handlers the stack becomes idle
+            this.sendHandler = null;
+            this.receiveHandler = null;
+            if (this.recorder != null) {
+                this.recorder.close();
+                this.recorder = null;
+            }
+        }
     }
 
     private void handleShutdown() {
         log.trace("Shutting down");
-        this.dispose();
+        this.lifecycleMailbox.dispose();
+        this.failSendingWaiters(new ConnectionClosedException(this.member, 1000, "Shutdown", false));
+        if (this.pendingWebSocket != null) {
+            this.pendingWebSocket.close();
+            this.pendingWebSocket = null;
+        }
         if (this.webSocket != null) {
             this.webSocket.close();
             this.webSocket = null;
         }
         this.sendHandler = null;
+        this.receiveHandler = null;
+        if (this.recorder != null) {
+            this.recorder.close();
+            this.recorder = null;
+        }
         this.speakingModes = null;
     }
 
@@ -185,5 +514,8 @@ public class AudioStack extends BaseSubscriber<LifecycleEvent> {
         if (this.webSocket != null) {
             this.webSocket.getAudioConnection().setSpeakingModes(mode);
         }
+        if (this.pendingWebSocket != null) {
+            this.pendingWebSocket.getAudioConnection().setSpeakingModes(mode);
+        }
     }
 }
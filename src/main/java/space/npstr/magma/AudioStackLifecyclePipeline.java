@@ -17,12 +17,19 @@
 package space.npstr.magma;
 
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import edu.umd.cs.findbugs.annotations.Nullable;
 import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 import space.npstr.magma.connections.AudioConnection;
 import space.npstr.magma.connections.AudioWebSocket;
+import space.npstr.magma.connections.PriorityMailbox;
+import space.npstr.magma.connections.UdpReceiver;
 import space.npstr.magma.connections.hax.ClosingWebSocketClient;
 import space.npstr.magma.events.api.MagmaEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
@@ -30,11 +37,20 @@ import space.npstr.magma.events.audio.lifecycle.*;
 import space.npstr.magma.immutables.ImmutableSessionInfo;
 
 import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -70,34 +86,251 @@ import java.util.stream.Collectors;
  *   </ul>
  *   </li>
  * </ul>
+ *
+ * <h2>Idle Stacks</h2>
+ * A stack without a websocket connection, handlers and a recording is idle. Closing a connection from user code
+ * removes the handlers and finishes the recording, a close by Discord keeps them for the next connection. Every time a
+ * stack handles an event and ends up idle, it schedules an {@link EvictIdleStack} event to be sent after
+ * {@link Configuration#getIdleAudioStackTimeout()}. When that event arrives on the lane of the member and the stack
+ * has not been passed any other event in the meantime, the stack is removed and disposed. A later event for that
+ * member simply creates a fresh stack.
+ *
+ * <h2>Lanes</h2>
+ * Events are processed on a configurable amount of lanes, see {@link Configuration#getLifecycleLanes()}. The lane of
+ * an event is picked by a hash of its user and guild id, so all events of a member are processed in order on the
+ * same lane, while the events of different members are processed in parallel. The {@link Shutdown} event is sent to
+ * every lane, and each lane shuts down the audio stacks of its own members.
+ *
+ * <h2>Coalescing</h2>
+ * {@link VoiceServerUpdate}, {@link UpdateSendHandler} and {@link UpdateSpeakingMode} only carry the latest desired
+ * state. When such an event arrives while an event of the same type for the same member is still queued on the lane,
+ * the queued event is replaced by the new one in place, and the replaced one is never applied. Any other event of
+ * the member posted in between keeps them apart, both are applied in posting order around it. See
+ * {@link #getLifecycleStats()}.
+ *
+ * <h2>Priority</h2>
+ * {@link CloseWebSocket} and {@link Shutdown} are urgent: they overtake all setup events still queued on their lane,
+ * so that tearing down a connection does not wait for a backlog of unrelated connects. To keep the outcome the same
+ * as in posting order, a close cancels the {@link VoiceServerUpdate}s of its member that are still queued, including
+ * those that are part of a batch, which would otherwise connect again after the close. Send handler and speaking
+ * mode updates overtaken by a close are still applied, their outcome does not depend on the order. A shutdown drops
+ * the whole backlog.
+ *
+ * <h2>Batches</h2>
+ * {@link #nextAll(Collection)} splits a batch of setup events by lane, and posts one message per lane carrying its
+ * part of the batch. Events queued before the batch can no longer be coalesced with events posted after it.
+ * {@link #closeMatching} posts an urgent message to every lane, and each lane closes the connections of its own
+ * stacks that match.
  */
-public class AudioStackLifecyclePipeline extends BaseSubscriber<LifecycleEvent> {
+public class AudioStackLifecyclePipeline {
 
     private static final Logger log = LoggerFactory.getLogger(AudioStackLifecyclePipeline.class);
 
-    // userId <-> guildId <-> audio stack
-    private final Map<String, Map<String, AudioStack>> audioStacks = new ConcurrentHashMap<>();
+    // coalescing slots of the event types that only carry the latest desired state
+    private static final int NOT_COALESCED = -1;
+    private static final int SLOT_VOICE_SERVER_UPDATE = 0;
+    private static final int SLOT_SEND_HANDLER = 1;
+    private static final int SLOT_SPEAKING_MODE = 2;
+    private static final int SLOTS = 3;
+
+    private static final Consumer<AudioStack> NO_CALLBACK = audioStack -> {};
+    private static final Runnable NO_CANCEL_CALLBACK = () -> {};
 
+    private final Configuration configuration;
     private final Function<Member, IAudioSendFactory> sendFactoryProvider;
     private final ClosingWebSocketClient webSocketClient;
     private final Consumer<MagmaEvent> apiEventConsumer;
     private final DatagramSocket udpSocket;
+    private final UdpReceiver udpReceiver;
+    private final Scheduler scheduler;
+    private final List<Lane> lanes;
+    private final LongAdder[] coalesced = new LongAdder[SLOTS];
+    private final LongAdder cancelledVoiceServerUpdates = new LongAdder();
 
-    public AudioStackLifecyclePipeline(final Function<Member, IAudioSendFactory> sendFactoryProvider,
+    public AudioStackLifecyclePipeline(final Configuration configuration,
+                                       final Function<Member, IAudioSendFactory> sendFactoryProvider,
                                        final ClosingWebSocketClient webSocketClient,
                                        final Consumer<MagmaEvent> apiEventConsumer,
-                                       final DatagramSocket udpSocket) {
+                                       final DatagramSocket udpSocket, final UdpReceiver udpReceiver) {
+        this(configuration, sendFactoryProvider, webSocketClient, apiEventConsumer, udpSocket, udpReceiver,
+                Schedulers.parallel());
+    }
+
+    /**
+     * @param scheduler
+     *         runs the lanes, the audio stacks and the eviction of idle stacks
+     */
+    AudioStackLifecyclePipeline(final Configuration configuration,
+                                final Function<Member, IAudioSendFactory> sendFactoryProvider,
+                                final ClosingWebSocketClient webSocketClient,
+                                final Consumer<MagmaEvent> apiEventConsumer,
+                                final DatagramSocket udpSocket, final UdpReceiver udpReceiver,
+                                final Scheduler scheduler) {
+        this.configuration = configuration;
         this.sendFactoryProvider = sendFactoryProvider;
         this.webSocketClient = webSocketClient;
         this.apiEventConsumer = apiEventConsumer;
         this.udpSocket = udpSocket;
+        this.udpReceiver = udpReceiver;
+        this.scheduler = scheduler;
+
+        final List<Lane> laneList = new ArrayList<>(configuration.getLifecycleLanes());
+        for (int i = 0; i < configuration.getLifecycleLanes(); i++) {
+            laneList.add(new Lane(i));
+        }
+        this.lanes = Collections.unmodifiableList(laneList);
+        for (int i = 0; i < SLOTS; i++) {
+            this.coalesced[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Hand an event to the lane of its member, or to all lanes in case of a {@link Shutdown}.
+     */
+    public void next(final LifecycleEvent event) {
+        if (event instanceof Shutdown) {
+            this.lanes.forEach(lane -> lane.mailbox.postUrgent(event));
+            return;
+        }
+        final Lane lane = this.laneOf(event.getMember());
+        final int slot = coalescingSlot(event);
+        if (event instanceof CloseWebSocket) {
+            lane.postClose(event.getMember(), event);
+        } else if (slot == NOT_COALESCED) {
+            lane.postBarrier(event);
+        } else {
+            lane.postCoalescing(event, slot);
+        }
+    }
+
+    private static int coalescingSlot(final LifecycleEvent event) {
+        if (event instanceof VoiceServerUpdate) {
+            return SLOT_VOICE_SERVER_UPDATE;
+        } else if (event instanceof UpdateSendHandler) {
+            return SLOT_SEND_HANDLER;
+        } else if (event instanceof UpdateSpeakingMode) {
+            return SLOT_SPEAKING_MODE;
+        } else {
+            return NOT_COALESCED;
+        }
+    }
+
+    @CheckReturnValue
+    public LifecycleStats getLifecycleStats() {
+        return MagmaLifecycleStats.builder()
+                .coalescedVoiceServerUpdates(this.coalesced[SLOT_VOICE_SERVER_UPDATE].sum())
+                .coalescedSendHandlerUpdates(this.coalesced[SLOT_SEND_HANDLER].sum())
+                .coalescedSpeakingModeUpdates(this.coalesced[SLOT_SPEAKING_MODE].sum())
+                .cancelledVoiceServerUpdates(this.cancelledVoiceServerUpdates.sum())
+                .build();
+    }
+
+    /**
+     * Hand a batch of voice server, send handler and speaking mode updates to the lanes of their members, as one
+     * message per lane.
+     *
+     * @return completes once the audio stack of every member in the batch has handled its events of the batch. Does
+     * not complete if this pipeline is shut down before that.
+     */
+    public Mono<Void> nextAll(final Collection<? extends LifecycleEvent> events) {
+        final List<List<LifecycleEvent>> perLane = new ArrayList<>(this.lanes.size());
+        for (int i = 0; i < this.lanes.size(); i++) {
+            perLane.add(new ArrayList<>());
+        }
+        for (final LifecycleEvent event : events) {
+            if (coalescingSlot(event) == NOT_COALESCED) {
+                throw new IllegalArgumentException("Can not batch lifecycle events of class "
+                        + event.getClass().getSimpleName());
+            }
+            perLane.get(this.laneOf(event.getMember()).index).add(event);
+        }
+
+        final Completion completion = new Completion();
+        for (final Lane lane : this.lanes) {
+            final List<LifecycleEvent> laneEvents = perLane.get(lane.index);
+            if (!laneEvents.isEmpty()) {
+                completion.add(1);
+                lane.postBatch(laneEvents, new Batch(completion, NO_CALLBACK, NO_CANCEL_CALLBACK));
+            }
+        }
+        completion.done();
+        return completion.processor;
+    }
+
+    /**
+     * Hand a single event to the lane of its member like {@link #next(LifecycleEvent)}, except that it is never
+     * coalesced, and have the audio stack of the member call back once it has handled the event.
+     *
+     * @param onHandled
+     *         called on the thread of the audio stack. Not called if this pipeline is shut down before that.
+     * @param onCancelled
+     *         called instead if the event is a voice server update that has been cancelled by a close
+     */
+    public void nextThen(final LifecycleEvent event, final Consumer<AudioStack> onHandled,
+                         final Runnable onCancelled) {
+        final Lane lane = this.laneOf(event.getMember());
+        final Batch batch = new Batch(new Completion(), onHandled, onCancelled);
+        if (event instanceof CloseWebSocket) {
+            batch.items.add(event);
+            lane.postClose(event.getMember(), batch);
+        } else if (coalescingSlot(event) != NOT_COALESCED) {
+            lane.postBatch(Collections.singletonList(event), batch);
+        } else {
+            throw new IllegalArgumentException("Can not await lifecycle events of class "
+                    + event.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Close the connections of all audio stacks matching the filter. This is urgent like a single close, see the
+     * class documentation.
+     *
+     * @param queuedFilter
+     *         voice server updates still queued that match this filter are cancelled, like a single close cancels the
+     *         queued voice server update of its member
+     * @param closeEvent
+     *         creates the close event for a matching member
+     *
+     * @return completes once every matching audio stack has handled its close. Does not complete if this pipeline is
+     * shut down before that.
+     */
+    public Mono<Void> closeMatching(final Predicate<AudioStack> stackFilter,
+                                    final Predicate<VoiceServerUpdate> queuedFilter,
+                                    final Function<Member, LifecycleEvent> closeEvent) {
+        final Completion completion = new Completion();
+        for (final Lane lane : this.lanes) {
+            completion.add(1);
+            lane.postCloseMatching(new CloseMatching(stackFilter, closeEvent, completion), queuedFilter);
+        }
+        completion.done();
+        return completion.processor;
     }
 
-    @Override
-    protected void hookOnNext(final LifecycleEvent event) {
+    private Lane laneOf(final Member member) {
+        return this.lanes.get(SnowflakePairMap.shardOf(member.getUserIdAsLong(), member.getGuildIdAsLong(),
+                this.lanes.size()));
+    }
+
+    private void receive(final Lane lane, final Object message) {
+        if (message instanceof QueuedEvent) {
+            final LifecycleEvent event = lane.take((QueuedEvent) message);
+            if (event != null) {
+                this.handle(lane, event);
+            }
+        } else if (message instanceof Batch) {
+            this.handleBatch(lane, (Batch) message);
+        } else if (message instanceof CloseMatching) {
+            this.handleCloseMatching(lane, (CloseMatching) message);
+        } else {
+            this.handle(lane, (LifecycleEvent) message);
+        }
+    }
+
+    private void handle(final Lane lane, final LifecycleEvent event) {
+        log.trace("Lane {} handling {}", lane.index, event);
         if (event instanceof VoiceServerUpdate) {
             final VoiceServerUpdate voiceServerUpdate = (VoiceServerUpdate) event;
-            this.getAudioStack(event)
+            this.getAudioStack(lane, event)
                     .next(ConnectWebSocketLcEvent.builder()
                             .sessionInfo(ImmutableSessionInfo.builder()
                                     .voiceServerUpdate(voiceServerUpdate)
@@ -105,57 +338,434 @@ public class AudioStackLifecyclePipeline extends BaseSubscriber<LifecycleEvent>
                             .build()
                     );
         } else if (event instanceof UpdateSendHandler) {
-            this.getAudioStack(event)
+            this.getAudioStack(lane, event)
+                    .next(event);
+        } else if (event instanceof UpdateReceiveHandler) {
+            this.getAudioStack(lane, event)
+                    .next(event);
+        } else if (event instanceof UpdateRecording) {
+            this.getAudioStack(lane, event)
                     .next(event);
         } else if (event instanceof CloseWebSocket) {
             //pass it on
             apiEventConsumer.accept(((CloseWebSocket) event).getApiEvent());
-            this.getAudioStack(event)
+            this.getAudioStack(lane, event)
                     .next(event);
         } else if (event instanceof Shutdown) {
-            this.dispose();
+            lane.mailbox.dispose();
 
-            this.audioStacks.values().stream().flatMap(map -> map.values().stream()).forEach(
-                    audioStack -> audioStack.next(event)
-            );
+            synchronized (lane.audioStacks) {
+                lane.audioStacks.forEachValue(audioStack -> audioStack.next(event));
+                lane.audioStacks.clear();
+            }
         } else if (event instanceof UpdateSpeakingMode) {
-            this.getAudioStack(event)
+            this.getAudioStack(lane, event)
                 .next(event);
+        } else if (event instanceof EvictIdleStack) {
+            this.evictIfIdle(lane, (EvictIdleStack) event);
         } else {
             log.warn("Unhandled lifecycle event of class {}", event.getClass().getSimpleName());
         }
     }
 
+    private void handleBatch(final Lane lane, final Batch batch) {
+        final Set<AudioStack> stacks = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Object item : batch.items) {
+            final LifecycleEvent event = item instanceof QueuedEvent
+                    ? lane.take((QueuedEvent) item)
+                    : (LifecycleEvent) item;
+            if (event == null) {
+                batch.onCancelled.run();
+                continue;
+            }
+            this.handle(lane, event);
+            final Member member = event.getMember();
+            // no lock needed for reading, this lane is the only writer
+            final AudioStack audioStack = lane.audioStacks.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+            if (audioStack != null) {
+                stacks.add(audioStack);
+            }
+        }
+        awaitHandled(stacks, batch.completion, batch.onHandled);
+    }
+
+    private void handleCloseMatching(final Lane lane, final CloseMatching closeMatching) {
+        final List<AudioStack> matching = new ArrayList<>();
+        lane.audioStacks.forEachValue(audioStack -> {
+            if (closeMatching.stackFilter.test(audioStack)) {
+                matching.add(audioStack);
+            }
+        });
+        for (final AudioStack audioStack : matching) {
+            this.handle(lane, closeMatching.closeEvent.apply(audioStack.getMember()));
+        }
+        awaitHandled(matching, closeMatching.completion, NO_CALLBACK);
+    }
+
+    /**
+     * Call back for each of the provided stacks, and complete the part of the lane, once they have handled what has
+     * been passed to them so far.
+     */
+    private static void awaitHandled(final Collection<AudioStack> stacks, final Completion completion,
+                                     final Consumer<AudioStack> onHandled) {
+        completion.add(stacks.size());
+        for (final AudioStack audioStack : stacks) {
+            audioStack.whenHandled(() -> {
+                onHandled.accept(audioStack);
+                completion.done();
+            });
+        }
+        completion.done();
+    }
+
     @CheckReturnValue
     public List<WebsocketConnectionState> getAudioConnectionStates() {
-        return this.audioStacks.entrySet().stream()
-                .flatMap(outerEntry -> {
-                    final String userId = outerEntry.getKey();
-                    return outerEntry.getValue().entrySet().stream()
-                            .map(innerEntry -> {
-                                final String guildId = innerEntry.getKey();
-                                final AudioStack audioStack = innerEntry.getValue();
-                                return MagmaWebsocketConnectionState.builder()
-                                        .member(MagmaMember.builder()
-                                                .userId(userId)
-                                                .guildId(guildId)
-                                                .build())
-                                        .phase(audioStack.getConnectionPhase())
-                                        .build();
-                            });
-                })
+        final List<AudioStack> stacks = new ArrayList<>();
+        for (final Lane lane : this.lanes) {
+            synchronized (lane.audioStacks) {
+                lane.audioStacks.forEachValue(stacks::add);
+            }
+        }
+        return stacks.stream()
+                .map(AudioStackLifecyclePipeline::connectionState)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @return the state of the audio stack of the member, empty if there is none. Looks up only that member.
+     */
     @CheckReturnValue
-    private AudioStack getAudioStack(final LifecycleEvent lifecycleEvent) {
-        return this.audioStacks
-                .computeIfAbsent(lifecycleEvent.getUserId(), __ -> new ConcurrentHashMap<>())
-                .computeIfAbsent(lifecycleEvent.getGuildId(), __ ->
-                        new AudioStack(lifecycleEvent.getMember(),
-                                this.sendFactoryProvider.apply(lifecycleEvent.getMember()),
-                                this.webSocketClient,
-                                this.apiEventConsumer,
-                                this.udpSocket));
+    public Optional<WebsocketConnectionState> getAudioConnectionState(final Member member) {
+        final Lane lane = this.laneOf(member);
+        final AudioStack audioStack;
+        synchronized (lane.audioStacks) {
+            audioStack = lane.audioStacks.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+        }
+        return Optional.ofNullable(audioStack).map(AudioStackLifecyclePipeline::connectionState);
+    }
+
+    /**
+     * Like {@link #getAudioConnectionStates()}, but lane by lane: the stacks of a lane are only collected once the
+     * states of the previous lane have been requested, and a state is only built when it is requested, so a consumer
+     * that processes the states in pages never holds all of them at once.
+     */
+    @CheckReturnValue
+    public Flux<WebsocketConnectionState> streamAudioConnectionStates() {
+        return Flux.fromIterable(this.lanes)
+                .concatMapIterable(lane -> {
+                    final List<AudioStack> stacks = new ArrayList<>();
+                    synchronized (lane.audioStacks) {
+                        lane.audioStacks.forEachValue(stacks::add);
+                    }
+                    return stacks;
+                }, 1)
+                .map(AudioStackLifecyclePipeline::connectionState);
+    }
+
+    private static WebsocketConnectionState connectionState(final AudioStack audioStack) {
+        return MagmaWebsocketConnectionState.builder()
+                .member(audioStack.getMember())
+                .phase(audioStack.getConnectionPhase())
+                .heartbeatStats(audioStack.getHeartbeatStats())
+                .lastMigrationGapMillis(audioStack.getLastMigrationGapMillis())
+                .lastSendHandlerSwitchMillis(audioStack.getLastSendHandlerSwitchMillis())
+                .silenceSuppressionStats(audioStack.getSilenceSuppressionStats())
+                .build();
+    }
+
+    /**
+     * Only ever called on the lane of the member, which is the only thread modifying the stacks of that lane.
+     */
+    @CheckReturnValue
+    private AudioStack getAudioStack(final Lane lane, final LifecycleEvent lifecycleEvent) {
+        final Member member = lifecycleEvent.getMember();
+        final long userId = member.getUserIdAsLong();
+        final long guildId = member.getGuildIdAsLong();
+        AudioStack audioStack;
+        synchronized (lane.audioStacks) {
+            audioStack = lane.audioStacks.get(userId, guildId);
+        }
+        if (audioStack == null) {
+            // created outside of the lock, the send factory provider is user code
+            audioStack = new AudioStack(this.configuration,
+                    member,
+                    this.sendFactoryProvider.apply(member),
+                    this.webSocketClient,
+                    this.apiEventConsumer,
+                    this.udpSocket,
+                    this.udpReceiver,
+                    this.scheduler,
+                    this::scheduleEviction);
+            synchronized (lane.audioStacks) {
+                lane.audioStacks.put(userId, guildId, audioStack);
+            }
+        }
+        return audioStack;
+    }
+
+    /**
+     * Called by an audio stack that has become idle.
+     */
+    private void scheduleEviction(final EvictIdleStack evictIdleStack) {
+        this.scheduler.schedule(() -> this.next(evictIdleStack),
+                this.configuration.getIdleAudioStackTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the lane of the member, the only thread passing lane events to its stack, so the stack cannot receive
+     * new events between the check and the removal.
+     */
+    private void evictIfIdle(final Lane lane, final EvictIdleStack evictIdleStack) {
+        final Member member = evictIdleStack.getMember();
+        final AudioStack audioStack;
+        synchronized (lane.audioStacks) {
+            audioStack = lane.audioStacks.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+            if (audioStack == null || !audioStack.isIdle(evictIdleStack.getIdleMark())) {
+                return;
+            }
+            lane.audioStacks.remove(member.getUserIdAsLong(), member.getGuildIdAsLong());
+        }
+        audioStack.evict();
+        log.debug("Evicted idle audio stack of guild {} bot {}", member.getGuildId(), member.getUserId());
+    }
+
+    /**
+     * Bookkeeping of the queued events that may still be replaced or cancelled is guarded by the lock on the
+     * {@code coalescing} map. Events are posted while holding it, so that the bookkeeping always matches the order of
+     * the queue.
+     */
+    private class Lane {
+
+        private final int index;
+        private final PriorityMailbox<Object> mailbox = new PriorityMailbox<>(message -> AudioStackLifecyclePipeline.this.receive(this, message),
+                AudioStackLifecyclePipeline.this.scheduler);
+        // user id <-> guild id <-> audio stack of the members of this lane. written by this lane only, read by anyone
+        // holding its lock
+        private final SnowflakePairMap<AudioStack> audioStacks = new SnowflakePairMap<>();
+        // user id <-> guild id <-> queued events that newer events of the same type may still replace, indexed by slot
+        private final SnowflakePairMap<QueuedEvent[]> coalescing = new SnowflakePairMap<>();
+        // user id <-> guild id <-> every voice server update of the member still queued, be it in a slot or in a batch
+        private final SnowflakePairMap<List<QueuedEvent>> queuedConnects = new SnowflakePairMap<>();
+
+        private Lane(final int index) {
+            this.index = index;
+        }
+
+        private void postCoalescing(final LifecycleEvent event, final int slot) {
+            final Member member = event.getMember();
+            synchronized (this.coalescing) {
+                final QueuedEvent[] slots = this.coalescing.computeIfAbsent(member.getUserIdAsLong(),
+                        member.getGuildIdAsLong(), () -> new QueuedEvent[SLOTS]);
+                final QueuedEvent queued = slots[slot];
+                if (queued != null) {
+                    queued.event = event;
+                    AudioStackLifecyclePipeline.this.coalesced[slot].increment();
+                    return;
+                }
+                final QueuedEvent queuedEvent = new QueuedEvent(slot, event);
+                slots[slot] = queuedEvent;
+                this.track(member, queuedEvent);
+                this.mailbox.post(queuedEvent);
+            }
+        }
+
+        /**
+         * Posted under the lock, so that no event of the same member posted after this one can be coalesced into an
+         * event queued before it.
+         */
+        private void postBarrier(final LifecycleEvent event) {
+            final Member member = event.getMember();
+            synchronized (this.coalescing) {
+                // the queued events stay queued as they are, just can not be replaced anymore
+                this.coalescing.remove(member.getUserIdAsLong(), member.getGuildIdAsLong());
+                this.mailbox.post(event);
+            }
+        }
+
+        /**
+         * A close overtakes everything queued, so it cancels the voice server updates of its member that are still
+         * queued. Posted under the lock, so that a voice server update posted after the close is not cancelled.
+         *
+         * @param message
+         *         the close event, or a batch carrying it
+         */
+        private void postClose(final Member member, final Object message) {
+            synchronized (this.coalescing) {
+                final List<QueuedEvent> connects = this.queuedConnects.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+                if (connects != null) {
+                    new ArrayList<>(connects).forEach(this::cancel);
+                }
+                this.mailbox.postUrgent(message);
+            }
+        }
+
+        /**
+         * Posted under the lock, so that no event posted after the batch can be coalesced into an event of the same
+         * member and type queued before it.
+         */
+        private void postBatch(final List<LifecycleEvent> events, final Batch batch) {
+            synchronized (this.coalescing) {
+                for (final LifecycleEvent event : events) {
+                    final Member member = event.getMember();
+                    final int slot = coalescingSlot(event);
+                    final QueuedEvent[] slots = this.coalescing.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+                    if (slots != null && slots[slot] != null) {
+                        // stays queued as it is, just can not be replaced anymore
+                        this.clearSlot(member, slots, slot);
+                    }
+                    if (slot == SLOT_VOICE_SERVER_UPDATE) {
+                        // tracked so that a close can still cancel it
+                        final QueuedEvent queuedEvent = new QueuedEvent(slot, event);
+                        this.track(member, queuedEvent);
+                        batch.items.add(queuedEvent);
+                    } else {
+                        batch.items.add(event);
+                    }
+                }
+                this.mailbox.post(batch);
+            }
+        }
+
+        private void postCloseMatching(final CloseMatching closeMatching,
+                                       final Predicate<VoiceServerUpdate> queuedFilter) {
+            synchronized (this.coalescing) {
+                final List<QueuedEvent> matching = new ArrayList<>();
+                this.queuedConnects.forEachValue(connects -> connects.forEach(queued -> {
+                    if (queuedFilter.test((VoiceServerUpdate) Objects.requireNonNull(queued.event))) {
+                        matching.add(queued);
+                    }
+                }));
+                // cancelled afterwards, cancelling modifies the map being iterated
+                matching.forEach(this::cancel);
+                this.mailbox.postUrgent(closeMatching);
+            }
+        }
+
+        /**
+         * @return the latest event of the provided queued event, which can not be replaced anymore from now on, or
+         * null if it has been cancelled
+         */
+        @Nullable
+        private LifecycleEvent take(final QueuedEvent queued) {
+            synchronized (this.coalescing) {
+                final LifecycleEvent event = queued.event;
+                if (event != null) {
+                    this.untrack(event.getMember(), queued);
+                }
+                return event;
+            }
+        }
+
+        private void cancel(final QueuedEvent queued) {
+            final LifecycleEvent event = Objects.requireNonNull(queued.event);
+            this.untrack(event.getMember(), queued);
+            queued.event = null;
+            AudioStackLifecyclePipeline.this.cancelledVoiceServerUpdates.increment();
+        }
+
+        private void track(final Member member, final QueuedEvent queued) {
+            if (queued.slot == SLOT_VOICE_SERVER_UPDATE) {
+                this.queuedConnects.computeIfAbsent(member.getUserIdAsLong(), member.getGuildIdAsLong(),
+                        () -> new ArrayList<>(1)).add(queued);
+            }
+        }
+
+        private void untrack(final Member member, final QueuedEvent queued) {
+            final QueuedEvent[] slots = this.coalescing.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+            if (slots != null && slots[queued.slot] == queued) {
+                this.clearSlot(member, slots, queued.slot);
+            }
+            if (queued.slot == SLOT_VOICE_SERVER_UPDATE) {
+                final List<QueuedEvent> connects = this.queuedConnects.get(member.getUserIdAsLong(), member.getGuildIdAsLong());
+                if (connects != null && connects.remove(queued) && connects.isEmpty()) {
+                    this.queuedConnects.remove(member.getUserIdAsLong(), member.getGuildIdAsLong());
+                }
+            }
+        }
+
+        private void clearSlot(final Member member, final QueuedEvent[] slots, final int slot) {
+            slots[slot] = null;
+            if (isEmpty(slots)) {
+                this.coalescing.remove(member.getUserIdAsLong(), member.getGuildIdAsLong());
+            }
+        }
+    }
+
+    private static boolean isEmpty(final QueuedEvent[] slots) {
+        for (final QueuedEvent slot : slots) {
+            if (slot != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The part of a batch of events belonging to one lane.
+     */
+    private static final class Batch {
+
+        // events, and voice server updates wrapped in a queued event so that a close can cancel them
+        private final List<Object> items = new ArrayList<>();
+        private final Completion completion;
+        private final Consumer<AudioStack> onHandled;
+        private final Runnable onCancelled;
+
+        private Batch(final Completion completion, final Consumer<AudioStack> onHandled, final Runnable onCancelled) {
+            this.completion = completion;
+            this.onHandled = onHandled;
+            this.onCancelled = onCancelled;
+        }
+    }
+
+    private static final class CloseMatching {
+
+        private final Predicate<AudioStack> stackFilter;
+        private final Function<Member, LifecycleEvent> closeEvent;
+        private final Completion completion;
+
+        private CloseMatching(final Predicate<AudioStack> stackFilter, final Function<Member, LifecycleEvent> closeEvent,
+                              final Completion completion) {
+            this.stackFilter = stackFilter;
+            this.closeEvent = closeEvent;
+            this.completion = completion;
+        }
+    }
+
+    /**
+     * Completes its processor once all parts added to it are done. Starts out with one part for the poster, so that it
+     * can not complete while parts are still being added.
+     */
+    private static final class Completion {
+
+        private final MonoProcessor<Void> processor = MonoProcessor.create();
+        private final AtomicInteger remaining = new AtomicInteger(1);
+
+        private void add(final int parts) {
+            this.remaining.addAndGet(parts);
+        }
+
+        private void done() {
+            if (this.remaining.decrementAndGet() == 0) {
+                this.processor.onComplete();
+            }
+        }
+    }
+
+    /**
+     * A queued event that may still be replaced by a newer one of the same type and member, or be cancelled. Guarded
+     * by the bookkeeping lock of its lane.
+     */
+    private static final class QueuedEvent {
+
+        private final int slot;
+        // null once cancelled
+        @Nullable
+        private LifecycleEvent event;
+
+        private QueuedEvent(final int slot, final LifecycleEvent event) {
+            this.slot = slot;
+            this.event = event;
+        }
     }
 }
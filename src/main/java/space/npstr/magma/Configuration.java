@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+/**
+ * Tunables of a {@link MagmaApi} instance. Build one with {@code MagmaConfiguration.builder()}, every option that is
+ * not set keeps its default.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class Configuration {
+
+    /**
+     * @return implementation used for the voice websocket connections, see {@link WebSocketImplementation}
+     */
+    @Value.Default
+    public WebSocketImplementation getWebSocketImplementation() {
+        return WebSocketImplementation.UNDERTOW;
+    }
+
+    /**
+     * @return whether to migrate to a new voice server make-before-break: when a voice server update arrives for a
+     * member that is connected and sending audio, the new connection is fully established while the old one keeps
+     * sending, and only then is the sending handed over and the old connection closed. When disabled, the old
+     * connection is closed right away and audio pauses until the new one is ready.
+     */
+    @Value.Default
+    public boolean isVoiceServerMigrationEnabled() {
+        return false;
+    }
+
+    /**
+     * @return amount of lanes the lifecycle events are processed on in parallel. Events of the same member always
+     * share a lane and keep their order. Defaults to the amount of available processors.
+     */
+    @Value.Default
+    public int getLifecycleLanes() {
+        return Schedulers.DEFAULT_POOL_SIZE;
+    }
+
+    /**
+     * @return how long the audio stack of a member is kept around after it became idle, which means it has neither a
+     * websocket connection nor handlers or a recording. Idle stacks are removed after this time to free their
+     * resources. A speaking mode set on an evicted stack is forgotten and has to be set again before connecting.
+     */
+    @Value.Default
+    public Duration getIdleAudioStackTimeout() {
+        return Duration.ofMinutes(1);
+    }
+
+    /**
+     * @return amount of api events buffered for each subscriber of the event streams of {@link MagmaApi}, like
+     * {@link MagmaApi#getEventStream()}. Events are published without waiting for slow subscribers, once the buffer of
+     * a subscriber is full the {@link #getEventOverflowStrategy() overflow strategy} applies to it.
+     */
+    @Value.Default
+    public int getEventBufferSize() {
+        return 1024;
+    }
+
+    /**
+     * @return what to do when the event buffer of a subscriber is full: drop the newest or the oldest event, or
+     * terminate the stream of that subscriber with an error. Defaults to dropping the oldest event.
+     */
+    @Value.Default
+    public BufferOverflowStrategy getEventOverflowStrategy() {
+        return BufferOverflowStrategy.DROP_OLDEST;
+    }
+
+    /**
+     * @return size in bytes up to which the {@link MagmaApi#getClipCache() clip cache} keeps clips that are not
+     * playing. Defaults to 64MB.
+     */
+    @Value.Default
+    public long getClipCacheSize() {
+        return 64 * 1024 * 1024;
+    }
+
+    @Value.Check
+    protected void check() {
+        if (this.getLifecycleLanes() < 1) {
+            throw new IllegalArgumentException("Need at least one lifecycle lane, got " + this.getLifecycleLanes());
+        }
+        if (this.getIdleAudioStackTimeout().isNegative()) {
+            throw new IllegalArgumentException("Idle audio stack timeout must not be negative, got " + this.getIdleAudioStackTimeout());
+        }
+        if (this.getEventBufferSize() < 1) {
+            throw new IllegalArgumentException("Event buffer size must be at least 1, got " + this.getEventBufferSize());
+        }
+        if (this.getClipCacheSize() < 0) {
+            throw new IllegalArgumentException("Clip cache size must not be negative, got " + this.getClipCacheSize());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import space.npstr.magma.events.api.WebSocketClosed;
+
+/**
+ * Fails the operations of the {@link MagmaApi} that wait for an audio connection, when the connection is closed
+ * before they are done.
+ */
+public class ConnectionClosedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Member member;
+    private final int closeCode;
+    private final String reason;
+    private final boolean byRemote;
+
+    public ConnectionClosedException(final Member member, final int closeCode, final String reason,
+                                     final boolean byRemote) {
+        super(String.format("Audio connection of guild %s bot %s closed %s with code %s: %s", member.getGuildId(),
+                member.getUserId(), byRemote ? "by remote" : "by client", closeCode, reason));
+        this.member = member;
+        this.closeCode = closeCode;
+        this.reason = reason;
+        this.byRemote = byRemote;
+    }
+
+    public static ConnectionClosedException of(final WebSocketClosed closed) {
+        return new ConnectionClosedException(closed.getMember(), closed.getCloseCode(), closed.getReason(),
+                closed.isByRemote());
+    }
+
+    public Member getMember() {
+        return this.member;
+    }
+
+    public int getCloseCode() {
+        return this.closeCode;
+    }
+
+    public String getReason() {
+        return this.reason;
+    }
+
+    public boolean isByRemote() {
+        return this.byRemote;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+
+/**
+ * Round trip times of the heartbeats sent over the voice websocket of a single member.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class HeartbeatStats {
+
+    /**
+     * Upper bounds (inclusive) of the buckets of {@link #getRttHistogram()}. The histogram has one additional bucket
+     * for all round trip times exceeding the last bound.
+     */
+    public static final List<Long> RTT_HISTOGRAM_BOUNDS_MILLIS = Collections.unmodifiableList(Arrays.asList(
+            25L, 50L, 100L, 200L, 400L, 800L, 1600L, 3200L
+    ));
+
+    /**
+     * @return round trip time of the most recently acknowledged heartbeat, empty if no heartbeat has been
+     * acknowledged yet
+     */
+    public abstract OptionalLong getLastRttMillis();
+
+    /**
+     * @return exponentially weighted moving average of the round trip times, empty if no heartbeat has been
+     * acknowledged yet
+     */
+    public abstract OptionalDouble getAverageRttMillis();
+
+    /**
+     * @return amount of heartbeats that have been sent but not acknowledged yet
+     */
+    public abstract int getMissedAcks();
+
+    /**
+     * @return amount of acknowledged heartbeats per round trip time bucket, see {@link #RTT_HISTOGRAM_BOUNDS_MILLIS}
+     */
+    public abstract List<Long> getRttHistogram();
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+
+/**
+ * Counts of lifecycle events of a {@link MagmaApi} instance that were superseded by a newer event for the same
+ * member before being processed, and therefore never applied.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class LifecycleStats {
+
+    /**
+     * @return amount of voice server updates replaced by a newer one
+     */
+    public abstract long getCoalescedVoiceServerUpdates();
+
+    /**
+     * @return amount of send handler updates replaced by a newer one
+     */
+    public abstract long getCoalescedSendHandlerUpdates();
+
+    /**
+     * @return amount of speaking mode updates replaced by a newer one
+     */
+    public abstract long getCoalescedSpeakingModeUpdates();
+
+    /**
+     * @return amount of voice server updates dropped because a close of the same member overtook them
+     */
+    public abstract long getCancelledVoiceServerUpdates();
+}
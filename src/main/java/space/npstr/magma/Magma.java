@@ -30,23 +30,36 @@ import org.xnio.Xnio;
 import org.xnio.XnioWorker;
 import org.xnio.ssl.XnioSsl;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.broadcast.AudioBroadcast;
+import space.npstr.magma.clips.OpusClipCache;
+import space.npstr.magma.connections.UdpReceiver;
 import space.npstr.magma.connections.hax.ClosingUndertowWebSocketClient;
 import space.npstr.magma.connections.hax.ClosingWebSocketClient;
+import space.npstr.magma.connections.tls.HandshakeMetrics;
+import space.npstr.magma.connections.tls.MeasuringSSLContext;
+import space.npstr.magma.events.api.ConnectionPhaseChanged;
 import space.npstr.magma.events.api.MagmaEvent;
 import space.npstr.magma.events.api.WebSocketClosedApiEvent;
 import space.npstr.magma.events.audio.lifecycle.Shutdown;
 import space.npstr.magma.events.audio.lifecycle.*;
 
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
 import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.logging.Level;
+import java.util.function.Predicate;
 
 public class Magma implements MagmaApi {
 
@@ -59,44 +72,62 @@ public class Magma implements MagmaApi {
     // for direct buffers
     private static final int DEFAULT_POOL_BUFFER_SIZE = 16 * 1024;
 
-    private final FluxSink<LifecycleEvent> lifecycleSink;
-    @Nullable
-    private FluxSink<MagmaEvent> apiEventSink = null;
-    private final Flux<MagmaEvent> apiEventFlux = Flux.create(sink -> apiEventSink = sink);
+    // sessions cached for resumption when reconnecting to a voice server. each connection holds one session, and
+    // reconnects go to the same endpoint, so this only needs to cover the amount of concurrent voice connections
+    private static final int TLS_SESSION_CACHE_SIZE = 20 * 1024;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private static final String JDK_WEB_SOCKET_CLIENT = "space.npstr.magma.connections.hax.JdkWebSocketClient";
+
+    private final ApiEventBroadcaster apiEvents;
     private final AudioStackLifecyclePipeline lifecyclePipeline;
     private final DatagramSocket udpSocket;
+    private final UdpReceiver udpReceiver;
+    private final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    private final OpusClipCache clipCache;
 
     /**
      * @see MagmaApi
      */
-    Magma(final Function<Member, IAudioSendFactory> sendFactoryProvider, final OptionMap xnioOptions) {
+    Magma(final Function<Member, IAudioSendFactory> sendFactoryProvider, final OptionMap xnioOptions,
+          final Configuration configuration) {
+        this(sendFactoryProvider, xnioOptions, configuration, Schedulers.parallel());
+    }
+
+    /**
+     * @param scheduler
+     *         runs the lifecycle lanes and the audio stacks
+     */
+    Magma(final Function<Member, IAudioSendFactory> sendFactoryProvider, final OptionMap xnioOptions,
+          final Configuration configuration, final Scheduler scheduler) {
+        this.apiEvents = new ApiEventBroadcaster(configuration.getEventBufferSize(),
+                configuration.getEventOverflowStrategy());
+        this.clipCache = new OpusClipCache(configuration.getClipCacheSize());
         final ClosingWebSocketClient webSocketClient;
         try {
-            final XnioWorker xnioWorker = Xnio.getInstance().createWorker(xnioOptions);
-            final ByteBufferPool bufferPool = new DefaultByteBufferPool(true, DEFAULT_POOL_BUFFER_SIZE);
-            final XnioSsl xnioSsl = new UndertowXnioSsl(Xnio.getInstance(), OptionMap.EMPTY);
-            final Consumer<WebSocketClient.ConnectionBuilder> builderConsumer = builder -> builder.setSsl(xnioSsl);
-            webSocketClient = new ClosingUndertowWebSocketClient(xnioWorker, bufferPool, builderConsumer);
-            this.udpSocket = new DatagramSocket();
+            // a single context shared by all connections, so that reconnects can resume a cached TLS session
+            final SSLContext sslContext = MeasuringSSLContext.create(this.handshakeMetrics,
+                    TLS_SESSION_CACHE_SIZE, TLS_SESSION_TIMEOUT_SECONDS);
+            webSocketClient = createWebSocketClient(configuration.getWebSocketImplementation(), xnioOptions, sslContext);
+            // a channel, so that everything arriving on the socket can be received in one place
+            final DatagramChannel udpChannel = DatagramChannel.open();
+            udpChannel.bind(null);
+            this.udpSocket = udpChannel.socket();
+            this.udpReceiver = new UdpReceiver(udpChannel);
         } catch (final Exception e) {
             throw new RuntimeException("Failed to set up websocket client", e);
         }
 
         this.lifecyclePipeline = new AudioStackLifecyclePipeline(
+                configuration,
                 sendFactoryProvider,
                 webSocketClient,
-                magmaEvent -> {
-                    if (this.apiEventSink != null) this.apiEventSink.next(magmaEvent);
-                },
-                udpSocket
+                this.apiEvents::publish,
+                this.udpSocket,
+                this.udpReceiver,
+                scheduler
         );
-
-        final UnicastProcessor<LifecycleEvent> processor = UnicastProcessor.create();
-        this.lifecycleSink = processor.sink();
-        processor
-                .log(log.getName(), Level.FINEST) //FINEST = TRACE
-                .publishOn(Schedulers.parallel())
-                .subscribe(lifecyclePipeline);
+        this.udpReceiver.start();
     }
 
     // ################################################################################
@@ -111,24 +142,46 @@ public class Magma implements MagmaApi {
 
     @Override
     public void shutdown() {
-        this.lifecycleSink.next(Shutdown.INSTANCE);
-        if (this.apiEventSink != null) this.apiEventSink.complete();
+        this.lifecyclePipeline.next(Shutdown.INSTANCE);
+        this.apiEvents.complete();
         this.udpSocket.close();
     }
 
     @Override
     public Flux<MagmaEvent> getEventStream() {
-        return this.apiEventFlux;
+        return this.apiEvents.stream(MagmaEvent.class, event -> true);
+    }
+
+    @Override
+    public <T extends MagmaEvent> Flux<T> getEventStream(final Class<T> type) {
+        return this.apiEvents.stream(type, event -> true);
+    }
+
+    @Override
+    public <T extends MagmaEvent> Flux<T> getEventStream(final Class<T> type, final Predicate<? super T> filter) {
+        return this.apiEvents.stream(type, filter);
+    }
+
+    @Override
+    public Flux<MagmaEvent> getEventStream(final Member member) {
+        return this.apiEvents.stream(MagmaEvent.class, event -> event.getMember().equals(member));
     }
 
     @Override
     public void provideVoiceServerUpdate(final Member member, final ServerUpdate serverUpdate) {
-        this.lifecycleSink.next(VoiceServerUpdateLcEvent.builder()
-                .member(member)
-                .sessionId(serverUpdate.getSessionId())
-                .endpoint(serverUpdate.getEndpoint().replace(":80", "")) //Strip the port from the endpoint.
-                .token(serverUpdate.getToken())
-                .build());
+        this.lifecyclePipeline.next(voiceServerUpdate(member, serverUpdate));
+    }
+
+    @Override
+    public Mono<Void> provideVoiceServerUpdateAsync(final Member member, final ServerUpdate serverUpdate) {
+        return this.awaitSending(voiceServerUpdate(member, serverUpdate));
+    }
+
+    @Override
+    public Mono<Void> provideVoiceServerUpdates(final Map<Member, ServerUpdate> serverUpdates) {
+        final List<LifecycleEvent> events = new ArrayList<>(serverUpdates.size());
+        serverUpdates.forEach((member, serverUpdate) -> events.add(voiceServerUpdate(member, serverUpdate)));
+        return this.lifecyclePipeline.nextAll(events);
     }
 
     @Override
@@ -136,12 +189,28 @@ public class Magma implements MagmaApi {
         this.updateSendHandler(member, sendHandler);
     }
 
+    @Override
+    public Mono<Void> setSendHandlerAsync(final Member member, final AudioSendHandler sendHandler) {
+        return this.awaitSending(sendHandlerUpdate(member, sendHandler));
+    }
+
+    @Override
+    public Mono<Void> setSendHandlers(final Map<Member, AudioSendHandler> sendHandlers) {
+        final List<LifecycleEvent> events = new ArrayList<>(sendHandlers.size());
+        sendHandlers.forEach((member, sendHandler) -> events.add(sendHandlerUpdate(member, sendHandler)));
+        return this.lifecyclePipeline.nextAll(events);
+    }
+
     @Override
     public void setSpeakingMode(final Member member, @Nullable final EnumSet<SpeakingMode> mode) {
-        this.lifecycleSink.next(UpdateSpeakingModeLcEvent.builder()
-                .member(member)
-                .speakingModes(mode)
-                .build());
+        this.lifecyclePipeline.next(speakingModeUpdate(member, mode));
+    }
+
+    @Override
+    public Mono<Void> setSpeakingModes(final Map<Member, EnumSet<SpeakingMode>> modes) {
+        final List<LifecycleEvent> events = new ArrayList<>(modes.size());
+        modes.forEach((member, mode) -> events.add(speakingModeUpdate(member, mode)));
+        return this.lifecyclePipeline.nextAll(events);
     }
 
     @Override
@@ -149,17 +218,60 @@ public class Magma implements MagmaApi {
         this.updateSendHandler(member, null);
     }
 
+    @Override
+    public AudioBroadcast.Subscription setBroadcast(final Member member, final AudioBroadcast broadcast) {
+        final AudioBroadcast.Subscription subscription = broadcast.subscribe();
+        this.updateSendHandler(member, subscription);
+        return subscription;
+    }
+
+    @Override
+    public void setReceiveHandler(final Member member, final AudioReceiveHandler receiveHandler) {
+        this.updateReceiveHandler(member, receiveHandler);
+    }
+
+    @Override
+    public void removeReceiveHandler(final Member member) {
+        this.updateReceiveHandler(member, null);
+    }
+
+    @Override
+    public void startRecording(final Member member, final Path directory) {
+        this.updateRecording(member, directory);
+    }
+
+    @Override
+    public void stopRecording(final Member member) {
+        this.updateRecording(member, null);
+    }
+
     @Override
     public void closeConnection(final Member member) {
-        this.lifecycleSink.next(CloseWebSocketLcEvent.builder()
-                .member(member)
-                .apiEvent(WebSocketClosedApiEvent.builder()
-                        .member(member)
-                        .closeCode(1000)
-                        .reason("Closed by client")
-                        .isByRemote(false)
-                        .build())
-                .build());
+        this.lifecyclePipeline.next(closeByClient(member));
+    }
+
+    @Override
+    public Mono<Void> closeConnectionAsync(final Member member) {
+        final MonoProcessor<Void> result = MonoProcessor.create();
+        this.lifecyclePipeline.nextThen(closeByClient(member), audioStack -> result.onComplete(), result::onComplete);
+        return result;
+    }
+
+    @Override
+    public Mono<Void> closeConnections(final Predicate<Member> filter) {
+        return this.lifecyclePipeline.closeMatching(
+                audioStack -> filter.test(audioStack.getMember()),
+                queued -> filter.test(queued.getMember()),
+                Magma::closeByClient);
+    }
+
+    @Override
+    public Mono<Void> closeConnectionsByEndpoint(final String endpoint) {
+        final String strippedEndpoint = stripPort(endpoint);
+        return this.lifecyclePipeline.closeMatching(
+                audioStack -> audioStack.getEndpoint().filter(strippedEndpoint::equals).isPresent(),
+                queued -> queued.getEndpoint().equals(strippedEndpoint),
+                Magma::closeByClient);
     }
 
     @Override
@@ -167,14 +279,131 @@ public class Magma implements MagmaApi {
         return this.lifecyclePipeline.getAudioConnectionStates();
     }
 
+    @Override
+    public Optional<WebsocketConnectionState> getAudioConnectionState(final Member member) {
+        return this.lifecyclePipeline.getAudioConnectionState(member);
+    }
+
+    @Override
+    public Flux<WebsocketConnectionState> streamAudioConnectionStates() {
+        return this.lifecyclePipeline.streamAudioConnectionStates();
+    }
+
+    @Override
+    public Flux<ConnectionPhaseChanged> getConnectionPhaseChanges() {
+        return this.getEventStream(ConnectionPhaseChanged.class);
+    }
+
+    @Override
+    public TlsHandshakeStats getTlsHandshakeStats() {
+        return this.handshakeMetrics.getStats();
+    }
+
+    @Override
+    public LifecycleStats getLifecycleStats() {
+        return this.lifecyclePipeline.getLifecycleStats();
+    }
+
+    @Override
+    public OpusClipCache getClipCache() {
+        return this.clipCache;
+    }
+
     // ################################################################################
     // #                             Internals
     // ################################################################################
 
+    private static ClosingWebSocketClient createWebSocketClient(final WebSocketImplementation implementation,
+                                                                final OptionMap xnioOptions,
+                                                                final SSLContext sslContext) throws IOException {
+        switch (implementation) {
+            case JDK_HTTP_CLIENT:
+                return createJdkWebSocketClient(sslContext);
+            case UNDERTOW:
+                final XnioWorker xnioWorker = Xnio.getInstance().createWorker(xnioOptions);
+                final ByteBufferPool bufferPool = new DefaultByteBufferPool(true, DEFAULT_POOL_BUFFER_SIZE);
+                final XnioSsl xnioSsl = new UndertowXnioSsl(Xnio.getInstance(), OptionMap.EMPTY, sslContext);
+                final Consumer<WebSocketClient.ConnectionBuilder> builderConsumer = builder -> builder.setSsl(xnioSsl);
+                return new ClosingUndertowWebSocketClient(xnioWorker, bufferPool, builderConsumer);
+            default:
+                throw new IllegalArgumentException("Unknown websocket implementation " + implementation);
+        }
+    }
+
+    // the JDK client is compiled for Java 11 separately from the rest, so it can only be looked up by name
+    private static ClosingWebSocketClient createJdkWebSocketClient(final SSLContext sslContext) {
+        try {
+            return (ClosingWebSocketClient) Class.forName(JDK_WEB_SOCKET_CLIENT)
+                    .getConstructor(SSLContext.class)
+                    .newInstance(sslContext);
+        } catch (final ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("The JDK websocket client requires a Java 11+ runtime", e);
+        }
+    }
+
+    private Mono<Void> awaitSending(final LifecycleEvent event) {
+        final MonoProcessor<Void> result = MonoProcessor.create();
+        this.lifecyclePipeline.nextThen(event,
+                audioStack -> audioStack.awaitSending(result),
+                () -> result.onError(new ConnectionClosedException(event.getMember(), 1000, "Closed by client", false)));
+        return result;
+    }
+
     private void updateSendHandler(final Member member, @Nullable final AudioSendHandler sendHandler) {
-        this.lifecycleSink.next(UpdateSendHandlerLcEvent.builder()
+        this.lifecyclePipeline.next(sendHandlerUpdate(member, sendHandler));
+    }
+
+    private void updateReceiveHandler(final Member member, @Nullable final AudioReceiveHandler receiveHandler) {
+        this.lifecyclePipeline.next(UpdateReceiveHandlerLcEvent.builder()
                 .member(member)
-                .audioSendHandler(Optional.ofNullable(sendHandler))
+                .audioReceiveHandler(Optional.ofNullable(receiveHandler))
+                .build());
+    }
+
+    private void updateRecording(final Member member, @Nullable final Path directory) {
+        this.lifecyclePipeline.next(UpdateRecordingLcEvent.builder()
+                .member(member)
+                .directory(Optional.ofNullable(directory))
                 .build());
     }
+
+    private static LifecycleEvent voiceServerUpdate(final Member member, final ServerUpdate serverUpdate) {
+        return VoiceServerUpdateLcEvent.builder()
+                .member(member)
+                .sessionId(serverUpdate.getSessionId())
+                .endpoint(stripPort(serverUpdate.getEndpoint()))
+                .token(serverUpdate.getToken())
+                .build();
+    }
+
+    //Strip the port from the endpoint.
+    private static String stripPort(final String endpoint) {
+        return endpoint.replace(":80", "");
+    }
+
+    private static LifecycleEvent sendHandlerUpdate(final Member member, @Nullable final AudioSendHandler sendHandler) {
+        return UpdateSendHandlerLcEvent.builder()
+                .member(member)
+                .audioSendHandler(Optional.ofNullable(sendHandler))
+                .build();
+    }
+
+    private static LifecycleEvent speakingModeUpdate(final Member member, @Nullable final EnumSet<SpeakingMode> mode) {
+        return UpdateSpeakingModeLcEvent.builder()
+                .member(member)
+                .speakingModes(mode)
+                .build();
+    }
+
+    private static LifecycleEvent closeByClient(final Member member) {
+        return CloseWebSocketLcEvent.builder()
+                .member(member)
+                .apiEvent(WebSocketClosedApiEvent.builder()
+                        .member(member)
+                        .closeCode(1000)
+                        .reason("Closed by client")
+                        .isByRemote(false)
+                        .build())
+                .build();
+    }
 }
@@ -22,12 +22,21 @@ import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
 import org.xnio.OptionMap;
 import org.xnio.XnioWorker;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import space.npstr.magma.broadcast.AudioBroadcast;
+import space.npstr.magma.clips.OpusClipCache;
+import space.npstr.magma.clips.OpusClipSendHandler;
+import space.npstr.magma.events.api.ConnectionPhaseChanged;
 import space.npstr.magma.events.api.MagmaEvent;
 
 import java.net.DatagramSocket;
+import java.nio.file.Path;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Created by napster on 24.04.18.
@@ -55,7 +64,24 @@ public interface MagmaApi {
      */
     static MagmaApi of(final Function<Member, IAudioSendFactory> sendFactoryProvider,
                        final OptionMap xnioOptions) {
-        return new Magma(sendFactoryProvider, xnioOptions);
+        return of(sendFactoryProvider, xnioOptions, MagmaConfiguration.builder().build());
+    }
+
+    /**
+     * Create a new Magma instance. More than one of these is not necessary, even if you are managing several shards and
+     * several bot accounts. A single instance of this scales automatically according to your needs and hardware.
+     *
+     * @param sendFactoryProvider
+     *         a provider of {@link IAudioSendFactory}s. It will have members applied to it.
+     * @param xnioOptions
+     *         options to build the {@link XnioWorker} that will be used for the websocket connections. Unused if the
+     *         configuration selects a websocket implementation that does not run on XNIO.
+     * @param configuration
+     *         tunables of the instance, see {@link Configuration}
+     */
+    static MagmaApi of(final Function<Member, IAudioSendFactory> sendFactoryProvider,
+                       final OptionMap xnioOptions, final Configuration configuration) {
+        return new Magma(sendFactoryProvider, xnioOptions, configuration);
     }
 
     /**
@@ -72,10 +98,31 @@ public interface MagmaApi {
     void shutdown();
 
     /**
-     * @return a Reactor stream that can be subscribed to for event handling
+     * @return a Reactor stream that can be subscribed to for event handling. Every subscriber receives all events
+     * published after it subscribed, buffered up to {@link Configuration#getEventBufferSize()} events. A subscriber
+     * that falls further behind is handled according to {@link Configuration#getEventOverflowStrategy()}, without
+     * holding up the connections or the other subscribers.
      */
     Flux<MagmaEvent> getEventStream();
 
+    /**
+     * @return like {@link #getEventStream()}, but only the events of the type. Other events do not take up space in
+     * the buffer of the subscriber.
+     */
+    <T extends MagmaEvent> Flux<T> getEventStream(final Class<T> type);
+
+    /**
+     * @return like {@link #getEventStream()}, but only the events of the type that match the filter. The filter is
+     * called on the thread publishing the event and must be cheap, events it rejects do not take up space in the
+     * buffer of the subscriber.
+     */
+    <T extends MagmaEvent> Flux<T> getEventStream(final Class<T> type, final Predicate<? super T> filter);
+
+    /**
+     * @return like {@link #getEventStream()}, but only the events of a single bot member
+     */
+    Flux<MagmaEvent> getEventStream(final Member member);
+
     /**
      * Also see: https://discordapp.com/developers/docs/topics/voice-connections#retrieving-voice-server-information-example-voice-server-update-payload
      *
@@ -93,8 +140,36 @@ public interface MagmaApi {
      */
     void provideVoiceServerUpdate(final Member member, final ServerUpdate serverUpdate);
 
+    /**
+     * Variant of {@link #provideVoiceServerUpdate(Member, ServerUpdate)} that signals when the audio connection is
+     * ready, instead of having to poll {@link #getAudioConnectionStates()}. Unlike the fire-and-forget variant, the
+     * update is never coalesced with other updates for the same member.
+     *
+     * @return a Mono completing once the connection resulting from this update is established and sending audio, which
+     * requires a send handler to be set. Fails with a {@link ConnectionClosedException} if the connection is closed
+     * before that, or if the update is dropped by a close. The update is queued right away, subscribing is only needed
+     * to wait for it.
+     */
+    Mono<Void> provideVoiceServerUpdateAsync(final Member member, final ServerUpdate serverUpdate);
+
+    /**
+     * Bulk variant of {@link #provideVoiceServerUpdate(Member, ServerUpdate)}, for example when moving a shard between
+     * processes. The updates are queued as a single unit per internal lane instead of one by one.
+     *
+     * @param serverUpdates
+     *         voice server updates keyed by the bot member they belong to
+     *
+     * @return a Mono completing once all updates have been applied. The updates are queued right away, subscribing is
+     * only needed to wait for them. Does not complete if this instance is shut down meanwhile.
+     */
+    Mono<Void> provideVoiceServerUpdates(final Map<Member, ServerUpdate> serverUpdates);
+
     /**
      * Set the {@link AudioSendHandler} for a bot member.
+     * <p>
+     * A send handler replacing another one, or one set shortly after removing the previous one, is picked up by the
+     * running send system with its next frame, without a pause in between. The time this takes is reported by
+     * {@link WebsocketConnectionState#getLastSendHandlerSwitchMillis()}.
      *
      * @param member
      *         user id + guild id of the bot member for which the send handler shall be set
@@ -106,6 +181,25 @@ public interface MagmaApi {
      */
     void setSendHandler(final Member member, final AudioSendHandler sendHandler);
 
+    /**
+     * Variant of {@link #setSendHandler(Member, AudioSendHandler)} that signals when audio is being sent.
+     *
+     * @return a Mono completing once the connection of the member is established and sending audio, which requires a
+     * voice server update to have been provided. Fails with a {@link ConnectionClosedException} if the connection is
+     * closed before that. See {@link #provideVoiceServerUpdateAsync(Member, ServerUpdate)}.
+     */
+    Mono<Void> setSendHandlerAsync(final Member member, final AudioSendHandler sendHandler);
+
+    /**
+     * Bulk variant of {@link #setSendHandler(Member, AudioSendHandler)}.
+     *
+     * @param sendHandlers
+     *         send handlers keyed by the bot member they shall be set for
+     *
+     * @return a Mono completing once all send handlers have been set. See {@link #provideVoiceServerUpdates(Map)}.
+     */
+    Mono<Void> setSendHandlers(final Map<Member, AudioSendHandler> sendHandlers);
+
     /**
      * The {@link space.npstr.magma.SpeakingMode SpeakingMode} to use.
      *
@@ -118,6 +212,16 @@ public interface MagmaApi {
      */
     void setSpeakingMode(final Member member, @Nullable final EnumSet<SpeakingMode> mode);
 
+    /**
+     * Bulk variant of {@link #setSpeakingMode(Member, EnumSet)}.
+     *
+     * @param modes
+     *         speaking modes keyed by the bot member they shall be applied to
+     *
+     * @return a Mono completing once all speaking modes have been applied. See {@link #provideVoiceServerUpdates(Map)}.
+     */
+    Mono<Void> setSpeakingModes(final Map<Member, EnumSet<SpeakingMode>> modes);
+
     /**
      * Remove the {@link AudioSendHandler} for a bot member.
      *
@@ -129,7 +233,73 @@ public interface MagmaApi {
     void removeSendHandler(final Member member);
 
     /**
-     * Close the audio connection for a bot member.
+     * Play a broadcast for a bot member, by setting a new subscription of it as the send handler. Many members can
+     * play the same broadcast, which pulls each frame from its source only once for all of them. Setting or removing
+     * the send handler of the member ends its subscription.
+     *
+     * @param member
+     *         user id + guild id of the bot member that shall play the broadcast
+     * @param broadcast
+     *         the broadcast to be played. It needs to be {@link AudioBroadcast#start() started} to provide audio.
+     *
+     * @return the subscription of the member, to follow how well its connection keeps up with the broadcast
+     *
+     * @see Member
+     */
+    AudioBroadcast.Subscription setBroadcast(final Member member, final AudioBroadcast broadcast);
+
+    /**
+     * Set the {@link AudioReceiveHandler} for a bot member, to receive the audio of the other users in its voice
+     * channel.
+     *
+     * @param member
+     *         user id + guild id of the bot member for which the receive handler shall be set
+     * @param receiveHandler
+     *         The receive handler to be set. It is called with the opus frames of each user, which are not decoded.
+     *
+     * @see Member
+     */
+    void setReceiveHandler(final Member member, final AudioReceiveHandler receiveHandler);
+
+    /**
+     * Remove the {@link AudioReceiveHandler} for a bot member.
+     *
+     * @param member
+     *         user id + guild id of the bot member for which the receive handler shall be removed
+     *
+     * @see Member
+     */
+    void removeReceiveHandler(final Member member);
+
+    /**
+     * Record the voice of the other users in the voice channel of a bot member. The opus frames are written as they
+     * are received, without decoding them, into one Ogg Opus file per user, named {@code <user id>-<start millis>.opus}.
+     * Periods in which a user did not talk are filled with silence, so the files of one recording can be mixed by
+     * aligning their starts. Recording works independently of a receive handler that may be set.
+     *
+     * @param member
+     *         user id + guild id of the bot member whose voice channel shall be recorded
+     * @param directory
+     *         directory to write the files into. It is created if it does not exist. Recording into another
+     *         directory finishes the files of the previous one.
+     *
+     * @see Member
+     */
+    void startRecording(final Member member, final Path directory);
+
+    /**
+     * Stop recording the voice channel of a bot member and finish the files.
+     *
+     * @param member
+     *         user id + guild id of the bot member whose recording shall be stopped
+     *
+     * @see Member
+     */
+    void stopRecording(final Member member);
+
+    /**
+     * Close the audio connection for a bot member. Its send and receive handlers are removed and its recording is
+     * finished, so they have to be set again before connecting anew.
      *
      * @param member
      *         user id + guild id of the bot member for which the audio connection shall be closed
@@ -138,10 +308,81 @@ public interface MagmaApi {
      */
     void closeConnection(final Member member);
 
+    /**
+     * Variant of {@link #closeConnection(Member)} that signals when the connection has been closed.
+     *
+     * @return a Mono completing once the audio connection of the member has been closed. The close is queued right
+     * away, subscribing is only needed to wait for it. Does not complete if this instance is shut down meanwhile.
+     */
+    Mono<Void> closeConnectionAsync(final Member member);
+
+    /**
+     * Close the audio connections of all bot members matching the filter, for example all members of a shard that is
+     * moving to another process. Voice server updates for matching members that have not been applied yet are
+     * dropped.
+     *
+     * @param filter
+     *         selects the members whose connections shall be closed
+     *
+     * @return a Mono completing once all matching connections have been closed. The closes are queued right away,
+     * subscribing is only needed to wait for them. Does not complete if this instance is shut down meanwhile.
+     */
+    Mono<Void> closeConnections(final Predicate<Member> filter);
+
+    /**
+     * Close all audio connections to a voice server, for example because it is known to be going away. Voice server
+     * updates pointing to that voice server that have not been applied yet are dropped.
+     *
+     * @param endpoint
+     *         endpoint of the voice server, as provided in the {@link ServerUpdate}
+     *
+     * @return a Mono completing once all connections to the voice server have been closed. See
+     * {@link #closeConnections(Predicate)}.
+     */
+    Mono<Void> closeConnectionsByEndpoint(final String endpoint);
+
 
     /**
      * @return a list of all {@link WebsocketConnectionState WebsocketConnectionStates} detailing the state of
      * the {@link AudioStack AudioStacks} managed by this {@link MagmaApi} instance
      */
     List<WebsocketConnectionState> getAudioConnectionStates();
+
+    /**
+     * @return the {@link WebsocketConnectionState} of a single bot member, empty if this {@link MagmaApi} instance
+     * does not manage an {@link AudioStack} for it. Unlike {@link #getAudioConnectionStates()}, this does not go over
+     * all of them.
+     */
+    Optional<WebsocketConnectionState> getAudioConnectionState(final Member member);
+
+    /**
+     * @return the same states as {@link #getAudioConnectionStates()}, built as they are requested instead of all at
+     * once. Use {@code limitRate} or request in pages to walk a large amount of connections.
+     */
+    Flux<WebsocketConnectionState> streamAudioConnectionStates();
+
+    /**
+     * @return the {@link ConnectionPhaseChanged} events of the {@link #getEventStream() event stream}, to follow the
+     * phases of the connections incrementally instead of polling {@link #getAudioConnectionStates()}
+     */
+    Flux<ConnectionPhaseChanged> getConnectionPhaseChanges();
+
+    /**
+     * @return durations of the TLS handshakes done by the voice websocket connections of this {@link MagmaApi}
+     * instance, split into full handshakes and resumed ones
+     */
+    TlsHandshakeStats getTlsHandshakeStats();
+
+    /**
+     * @return counts of the lifecycle events that were dropped because a newer event of the same type for the same
+     * member superseded them while they were still queued
+     */
+    LifecycleStats getLifecycleStats();
+
+    /**
+     * @return the cache of opus clips shared by all connections of this {@link MagmaApi} instance, to play the same
+     * clips in many guilds while keeping their frames in memory only once, see {@link OpusClipSendHandler}. Its size
+     * is set with {@link Configuration#getClipCacheSize()}.
+     */
+    OpusClipCache getClipCache();
 }
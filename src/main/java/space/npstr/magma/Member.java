@@ -56,30 +56,32 @@ public abstract class Member {
     public abstract String getGuildId();
 
 
-    @Value.Check
-    protected void stringsNotEmpty() {
-        final String userId = this.getUserId();
-        if (userId.isEmpty()) {
-            throw new IllegalArgumentException("Provided user id is empty!");
-        }
-        try {
-            //noinspection ResultOfMethodCallIgnored
-            Long.parseUnsignedLong(userId);
-        } catch (final NumberFormatException e) {
-            throw new IllegalArgumentException("Provided user id '" + userId + "' is not a valid discord snowflake.");
-        }
+    /**
+     * The user id parsed once on construction, for compact storage and cheap lookups.
+     */
+    @Value.Derived
+    @Value.Auxiliary
+    public long getUserIdAsLong() {
+        return parseSnowflake(this.getUserId(), "user");
+    }
 
+    /**
+     * The guild id parsed once on construction, for compact storage and cheap lookups.
+     */
+    @Value.Derived
+    @Value.Auxiliary
+    public long getGuildIdAsLong() {
+        return parseSnowflake(this.getGuildId(), "guild");
+    }
 
-        final String guildId = this.getGuildId();
-        if (guildId.isEmpty()) {
-            throw new IllegalArgumentException("Provided guild id is empty!");
+    private static long parseSnowflake(final String id, final String type) {
+        if (id.isEmpty()) {
+            throw new IllegalArgumentException("Provided " + type + " id is empty!");
         }
-
         try {
-            //noinspection ResultOfMethodCallIgnored
-            Long.parseUnsignedLong(guildId);
+            return Long.parseUnsignedLong(id);
         } catch (final NumberFormatException e) {
-            throw new IllegalArgumentException("Provided guild id '" + guildId + "' is not a valid discord snowflake.");
+            throw new IllegalArgumentException("Provided " + type + " id '" + id + "' is not a valid discord snowflake.");
         }
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+
+/**
+ * What was saved by not sending the silent opus frames of a single member, see
+ * {@link space.npstr.magma.processing.PacketProvider}.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class SilenceSuppressionStats {
+
+    /**
+     * @return amount of silent frames that were neither encrypted nor sent
+     */
+    public abstract long getSuppressedFrames();
+
+    /**
+     * @return size of the udp packets that the suppressed frames would have been sent in, in bytes
+     */
+    public abstract long getSuppressedBytes();
+
+    /**
+     * @return how often sending was paused because of silence
+     */
+    public abstract long getSuppressions();
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * An open addressing hash map from a pair of snowflakes to values, made for looking up the audio stack of a member by
+ * its user and guild id without hashing strings or boxing longs.
+ * <p>
+ * Keys live in one primitive array, two longs per slot, next to a parallel array of values. Collisions are resolved
+ * by linear probing, and removals shift the following entries back instead of leaving tombstones, so lookups never
+ * get slower after lots of removals.
+ * <p>
+ * Not thread safe.
+ */
+class SnowflakePairMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    // resize when more than 3/4 of the slots are taken
+    private static final int LOAD_FACTOR_NUMERATOR = 3;
+    private static final int LOAD_FACTOR_DENOMINATOR = 4;
+
+    // keys[2 * slot] and keys[2 * slot + 1] hold the pair of the value at values[slot]
+    private long[] keys;
+    // a null value marks an empty slot
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+    SnowflakePairMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *         amount of entries the map should be able to hold without resizing
+     */
+    SnowflakePairMap(final int expectedSize) {
+        final int capacity = tableSizeFor((int) Math.min(1 << 30,
+                (long) expectedSize * LOAD_FACTOR_DENOMINATOR / LOAD_FACTOR_NUMERATOR + 1));
+        this.allocate(capacity);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Nullable
+    V get(final long first, final long second) {
+        final int slot = this.find(first, second);
+        return slot < 0 ? null : this.valueAt(slot);
+    }
+
+    V computeIfAbsent(final long first, final long second, final Supplier<V> supplier) {
+        final int slot = this.find(first, second);
+        if (slot >= 0) {
+            return this.valueAt(slot);
+        }
+        final V value = supplier.get();
+        this.put(first, second, value);
+        return value;
+    }
+
+    /**
+     * @return the value previously stored for the pair, if any
+     */
+    @Nullable
+    V put(final long first, final long second, final V value) {
+        int slot = this.slotOf(first, second);
+        while (this.values[slot] != null) {
+            if (this.keys[2 * slot] == first && this.keys[2 * slot + 1] == second) {
+                final V previous = this.valueAt(slot);
+                this.values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[2 * slot] = first;
+        this.keys[2 * slot + 1] = second;
+        this.values[slot] = value;
+        this.size++;
+        if ((long) this.size * LOAD_FACTOR_DENOMINATOR > (long) this.values.length * LOAD_FACTOR_NUMERATOR) {
+            this.resize(this.values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, if any
+     */
+    @Nullable
+    V remove(final long first, final long second) {
+        int slot = this.find(first, second);
+        if (slot < 0) {
+            return null;
+        }
+        final V removed = this.valueAt(slot);
+        this.size--;
+
+        // backward shift deletion: move entries of the probe sequence into the gap, until hitting an empty slot or an
+        // entry that already sits in its home slot or after the gap
+        int next = (slot + 1) & this.mask;
+        while (this.values[next] != null) {
+            final int home = this.slotOf(this.keys[2 * next], this.keys[2 * next + 1]);
+            // distance from the home slot, in probing order
+            if (((next - home) & this.mask) >= ((next - slot) & this.mask)) {
+                this.keys[2 * slot] = this.keys[2 * next];
+                this.keys[2 * slot + 1] = this.keys[2 * next + 1];
+                this.values[slot] = this.values[next];
+                slot = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+        this.values[slot] = null;
+        return removed;
+    }
+
+    void forEachValue(final Consumer<? super V> action) {
+        for (int slot = 0; slot < this.values.length; slot++) {
+            if (this.values[slot] != null) {
+                action.accept(this.valueAt(slot));
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    private int find(final long first, final long second) {
+        int slot = this.slotOf(first, second);
+        while (this.values[slot] != null) {
+            if (this.keys[2 * slot] == first && this.keys[2 * slot + 1] == second) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    private int slotOf(final long first, final long second) {
+        return hash(first, second) & this.mask;
+    }
+
+    /**
+     * The low bits of snowflakes are a per-process counter, so both longs are mixed thoroughly before the table index
+     * is taken from the low bits of the result.
+     */
+    static int hash(final long first, final long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second;
+        // finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Pick one of several maps for a pair, when the entries are split over maps used by different threads. The shard
+     * is taken from the high bits of the hash, while each map indexes its table by the low bits, so every map still
+     * spreads its share of the pairs over all of its slots.
+     */
+    static int shardOf(final long first, final long second, final int shards) {
+        return (int) ((Integer.toUnsignedLong(hash(first, second)) * shards) >>> 32);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(final int slot) {
+        return (V) this.values[slot];
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = this.keys;
+        final Object[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int target = this.slotOf(oldKeys[2 * slot], oldKeys[2 * slot + 1]);
+                while (this.values[target] != null) {
+                    target = (target + 1) & this.mask;
+                }
+                this.keys[2 * target] = oldKeys[2 * slot];
+                this.keys[2 * target + 1] = oldKeys[2 * slot + 1];
+                this.values[target] = oldValues[slot];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new long[2 * capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int tableSizeFor(final int minimum) {
+        final int capacity = Integer.highestOneBit(Math.max(minimum, 2) - 1) << 1;
+        return Math.max(capacity, DEFAULT_CAPACITY);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.immutables.value.Value;
+
+/**
+ * Durations of the TLS handshakes performed for the voice websocket connections of a {@link MagmaApi} instance,
+ * split into full handshakes and abbreviated ones that resumed a cached session.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class TlsHandshakeStats {
+
+    /**
+     * @return amount of full handshakes performed
+     */
+    public abstract long getFullHandshakes();
+
+    /**
+     * @return average duration of the full handshakes
+     */
+    public abstract double getFullHandshakeAverageMillis();
+
+    /**
+     * @return longest duration of a full handshake
+     */
+    public abstract long getFullHandshakeMaxMillis();
+
+    /**
+     * @return amount of handshakes that resumed a cached session
+     */
+    public abstract long getResumedHandshakes();
+
+    /**
+     * @return average duration of the resumed handshakes
+     */
+    public abstract double getResumedHandshakeAverageMillis();
+
+    /**
+     * @return longest duration of a resumed handshake
+     */
+    public abstract long getResumedHandshakeMaxMillis();
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+/**
+ * Available implementations of the client that opens the voice websocket connections.
+ */
+public enum WebSocketImplementation {
+
+    /**
+     * Undertow on top of an XNIO worker. Works on all supported Java versions.
+     */
+    UNDERTOW,
+
+    /**
+     * The {@code java.net.http.WebSocket} client of the JDK. Requires a Java 11+ runtime, and does not need an XNIO
+     * worker, which makes it lighter per connection.
+     */
+    JDK_HTTP_CLIENT,
+}
@@ -18,6 +18,9 @@ package space.npstr.magma;
 
 import org.immutables.value.Value;
 
+import java.util.Optional;
+import java.util.OptionalDouble;
+
 /**
  * Created by napster on 25.10.18.
  */
@@ -38,6 +41,31 @@ public abstract class WebsocketConnectionState {
      */
     public abstract Phase getPhase();
 
+    /**
+     * @return heartbeat round trip times of the websocket connection of this member, empty if there is no websocket
+     * connection
+     */
+    public abstract Optional<HeartbeatStats> getHeartbeatStats();
+
+    /**
+     * @return time between the last audio packet sent over the old connection and the first one sent over the new
+     * connection during the most recent make-before-break voice server migration, empty if there has been none. See
+     * {@link Configuration#isVoiceServerMigrationEnabled()}
+     */
+    public abstract OptionalDouble getLastMigrationGapMillis();
+
+    /**
+     * @return time between a send handler replacing another one on the running send system and the first packet sent
+     * from it, for the most recent replacement over the current connection, empty if there has been none
+     */
+    public abstract OptionalDouble getLastSendHandlerSwitchMillis();
+
+    /**
+     * @return savings from not sending the silent frames provided by the send handler of this member over its current
+     * connection, empty if there is no connection
+     */
+    public abstract Optional<SilenceSuppressionStats> getSilenceSuppressionStats();
+
 
     public enum Phase {
 
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.broadcast;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.processing.OpusPacket;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Plays one audio source into any amount of connections, like a radio station.
+ * <p>
+ * Every 20ms, the upstream send handler is asked for a single frame, which is kept in a short history that all
+ * {@link Subscription subscriptions} read from. The send system of each connection polls its subscription on its own
+ * schedule, so the subscriptions trail the latest frame by one tick to absorb the jitter between the threads. A
+ * subscription that joins late, or falls behind by more than the history, starts at the latest frame instead of
+ * playing old ones. A subscription that polls before the next frame exists gets a silent frame, so its connection
+ * keeps going without the silence preamble of a new stream.
+ * <p>
+ * The upstream has to provide opus. After a frame longer than 20ms, the upstream is not asked again until that frame
+ * has been played, just like the connections skip polling their subscriptions meanwhile. Frames are shared between
+ * the subscriptions, only the encryption is left to each connection.
+ */
+public class AudioBroadcast {
+
+    private static final Logger log = LoggerFactory.getLogger(AudioBroadcast.class);
+
+    private static final long TICK_MILLIS = 20;
+    private static final int TICK_SAMPLES = (int) TICK_MILLIS * OpusPacket.SAMPLES_PER_MILLISECOND;
+    // power of two
+    private static final int HISTORY = 16;
+    private static final int HISTORY_MASK = HISTORY - 1;
+    // how many ticks subscriptions trail the latest frame
+    private static final int LAG = 1;
+    private static final byte[] SILENCE = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+
+    private final AudioSendHandler upstream;
+    private final AtomicReferenceArray<Frame> history = new AtomicReferenceArray<>(HISTORY);
+    // tick of the latest frame, only written by the ticking thread
+    private volatile long latestTick = -1;
+    // samples pulled ahead of the ticks, only touched by the ticking thread
+    private int samplesAhead = 0;
+    @Nullable
+    private Scheduler scheduler;
+    @Nullable
+    private Disposable ticking;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param upstream
+     *         source of the opus frames. It is only called from the ticking thread.
+     */
+    public AudioBroadcast(final AudioSendHandler upstream) {
+        if (!upstream.isOpus()) {
+            throw new IllegalArgumentException("Broadcasts need an upstream providing opus");
+        }
+        this.upstream = upstream;
+    }
+
+    /**
+     * Start pulling frames from the upstream every 20ms, on a thread of this broadcast.
+     */
+    public synchronized void start() {
+        if (this.ticking != null) {
+            return;
+        }
+        this.stopped = false;
+        final Scheduler single = Schedulers.newSingle("magma-broadcast", true);
+        this.scheduler = single;
+        this.ticking = single.schedulePeriodically(this::tick, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop pulling frames. Subscriptions stop providing audio once they have played the frames pulled so far.
+     */
+    public synchronized void stop() {
+        this.stopped = true;
+        if (this.ticking != null) {
+            this.ticking.dispose();
+            this.ticking = null;
+        }
+        if (this.scheduler != null) {
+            this.scheduler.dispose();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * @return a new subscription, to be set as the send handler of a connection, see
+     * {@link space.npstr.magma.MagmaApi#setBroadcast}
+     */
+    public Subscription subscribe() {
+        return new Subscription();
+    }
+
+    /**
+     * @return amount of frames pulled from the upstream so far, including ticks on which it had none
+     */
+    public long getTicks() {
+        return this.latestTick + 1;
+    }
+
+    /**
+     * Pull the next frame, unless the latest one is still playing. Only to be called from the ticking thread.
+     */
+    void tick() {
+        if (this.samplesAhead > 0) {
+            // the latest frame is still playing
+            this.samplesAhead -= TICK_SAMPLES;
+            return;
+        }
+        ByteBuffer data = null;
+        try {
+            if (this.upstream.canProvide()) {
+                final ByteBuffer provided = this.upstream.provide20MsAudio();
+                if (provided != null && provided.hasRemaining()) {
+                    // the upstream may reuse its buffer, subscriptions may still read this one
+                    final byte[] copy = new byte[provided.remaining()];
+                    provided.duplicate().get(copy);
+                    data = ByteBuffer.wrap(copy);
+                }
+            }
+        } catch (final Exception e) {
+            log.error("Upstream of broadcast failed to provide audio", e);
+        }
+        final int packetSamples = data == null ? 0 : OpusPacket.getSamples(data);
+        final int samples = packetSamples > 0 ? packetSamples : TICK_SAMPLES;
+        this.samplesAhead = Math.max(this.samplesAhead + samples - TICK_SAMPLES,
+                -TICK_SAMPLES);
+        final long tick = this.latestTick + 1;
+        this.history.set((int) (tick & HISTORY_MASK), new Frame(tick, data));
+        this.latestTick = tick;
+    }
+
+    @Nullable
+    private Frame frame(final long tick) {
+        final Frame frame = this.history.get((int) (tick & HISTORY_MASK));
+        return frame != null && frame.tick == tick ? frame : null;
+    }
+
+    private static class Frame {
+        private final long tick;
+        @Nullable
+        private final ByteBuffer data;
+
+        private Frame(final long tick, @Nullable final ByteBuffer data) {
+            this.tick = tick;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The send handler of one connection playing the broadcast. Polled by the send system of that connection only.
+     */
+    public class Subscription implements AudioSendHandler {
+
+        private final ByteBuffer silence = ByteBuffer.wrap(SILENCE);
+        // next tick to play, or negative until aligned with the broadcast
+        private long nextTick = -1;
+        // only written by the send thread of the subscription
+        private final AtomicLong underruns = new AtomicLong(0);
+        private final AtomicLong skippedFrames = new AtomicLong(0);
+
+        private Subscription() {
+        }
+
+        @Override
+        public boolean canProvide() {
+            final long latest = AudioBroadcast.this.latestTick;
+            return latest >= 0 && (!AudioBroadcast.this.stopped || latest >= this.nextTick);
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer provide20MsAudio() {
+            final long latest = AudioBroadcast.this.latestTick;
+            if (latest < 0) {
+                return null;
+            }
+            if (this.nextTick < 0 || latest - this.nextTick >= HISTORY - 1) {
+                this.align(latest);
+            }
+            if (this.nextTick > latest) {
+                if (AudioBroadcast.this.stopped) {
+                    return null;
+                }
+                // polled ahead of the broadcast, keep the connection going
+                this.underruns.lazySet(this.underruns.get() + 1);
+                ((Buffer) this.silence).rewind();
+                return this.silence;
+            }
+            final Frame frame = AudioBroadcast.this.frame(this.nextTick);
+            if (frame == null) {
+                // overwritten in the meantime
+                this.align(AudioBroadcast.this.latestTick);
+                return this.provide20MsAudio();
+            }
+            this.nextTick++;
+            return frame.data == null ? null : frame.data.duplicate();
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+
+        /**
+         * @return how often a silent frame was played because the next frame of the broadcast was not there yet
+         */
+        public long getUnderruns() {
+            return this.underruns.get();
+        }
+
+        /**
+         * @return amount of frames of the broadcast skipped because this subscription fell too far behind, not
+         * counting the frames before it joined
+         */
+        public long getSkippedFrames() {
+            return this.skippedFrames.get();
+        }
+
+        private void align(final long latest) {
+            final long aligned = Math.max(0, latest - LAG);
+            if (this.nextTick >= 0) {
+                this.skippedFrames.lazySet(this.skippedFrames.get() + aligned - this.nextTick);
+            }
+            this.nextTick = aligned;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.clips;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The opus frames of a clip, stored back to back in a single direct buffer, outside of the heap.
+ * <p>
+ * Clips are handed out by an {@link OpusClipCache}, which counts the users of each clip and evicts only clips that are
+ * not in use. Every {@link OpusClipCache#acquire acquired} clip has to be {@link #release() released} exactly once.
+ * Frames are read without synchronization, any amount of threads may read a clip at the same time.
+ */
+public final class OpusClip {
+
+    private final OpusClipCache cache;
+    private final String key;
+    private final ByteBuffer frames;
+    // start of every frame in the buffer, and the end of the last one
+    private final int[] offsets;
+    // guarded by the cache
+    int references = 0;
+
+    OpusClip(final OpusClipCache cache, final String key, final List<ByteBuffer> frames) {
+        this.cache = cache;
+        this.key = key;
+        this.offsets = new int[frames.size() + 1];
+        int size = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            this.offsets[i] = size;
+            size += frames.get(i).remaining();
+        }
+        this.offsets[frames.size()] = size;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (final ByteBuffer frame : frames) {
+            buffer.put(frame.duplicate());
+        }
+        ((Buffer) buffer).flip();
+        this.frames = buffer.asReadOnlyBuffer();
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public int getFrameCount() {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * @return size of the frames in bytes
+     */
+    public int getSize() {
+        return this.offsets[this.offsets.length - 1];
+    }
+
+    /**
+     * @return a read only buffer holding the frame at the index, between position zero and its limit
+     */
+    public ByteBuffer getFrame(final int index) {
+        return this.setToFrame(this.newView(), index).slice();
+    }
+
+    /**
+     * Hand this clip back to its cache. It must not be used afterwards.
+     */
+    public void release() {
+        this.cache.release(this);
+    }
+
+    /**
+     * @return a read only view of all frames, for {@link #setToFrame}
+     */
+    ByteBuffer newView() {
+        return this.frames.duplicate();
+    }
+
+    /**
+     * Point a view of this clip at a frame, without allocating anything.
+     */
+    ByteBuffer setToFrame(final ByteBuffer view, final int index) {
+        if (index < 0 || index >= this.getFrameCount()) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + this.getFrameCount());
+        }
+        ((Buffer) view).clear();
+        ((Buffer) view).position(this.offsets[index]);
+        ((Buffer) view).limit(this.offsets[index + 1]);
+        return view;
+    }
+}
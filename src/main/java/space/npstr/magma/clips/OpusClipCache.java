@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.clips;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps the frames of opus clips outside of the heap, so clips played in many guilds are loaded only once.
+ * <p>
+ * A clip is {@link #acquire acquired} for every playback and {@link OpusClip#release() released} once done. Clips that
+ * are not in use are evicted, least recently acquired first, as soon as the cached clips exceed the maximum size.
+ * Clips in use are never evicted, so the cache may grow beyond its size while they are playing.
+ * <p>
+ * Acquiring and releasing happens once per playback, not per frame, so a single lock guards the cache.
+ */
+public class OpusClipCache {
+
+    private static final Logger log = LoggerFactory.getLogger(OpusClipCache.class);
+
+    /**
+     * Provides the frames of a clip that is not cached.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @return the opus frames of the clip, each between its position and limit. The buffers are copied and not
+         * kept by the cache.
+         */
+        List<ByteBuffer> load() throws IOException;
+    }
+
+    private final long maxSize;
+    // access ordered, so iteration starts at the least recently acquired clip
+    private final LinkedHashMap<String, OpusClip> clips = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxSize
+     *         size in bytes up to which clips that are not in use are kept
+     */
+    public OpusClipCache(final long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the clip with the key, loading it if it is not cached. Concurrent misses of the same key may load it more
+     * than once, only one of the results is kept.
+     *
+     * @return the clip, which has to be {@link OpusClip#release() released} once it is no longer used
+     *
+     * @throws IOException
+     *         if the loader fails
+     */
+    public OpusClip acquire(final String key, final Loader loader) throws IOException {
+        synchronized (this) {
+            final OpusClip cached = this.clips.get(key);
+            if (cached != null) {
+                this.hits++;
+                cached.references++;
+                return cached;
+            }
+            this.misses++;
+        }
+
+        final OpusClip loaded = new OpusClip(this, key, loader.load());
+        synchronized (this) {
+            final OpusClip raced = this.clips.get(key);
+            if (raced != null) {
+                raced.references++;
+                return raced;
+            }
+            loaded.references++;
+            this.clips.put(key, loaded);
+            this.size += loaded.getSize();
+            this.evict();
+            return loaded;
+        }
+    }
+
+    /**
+     * Remove all clips that are not in use.
+     */
+    public synchronized void clear() {
+        this.evictWhile(() -> true);
+    }
+
+    public synchronized OpusClipCacheStats getStats() {
+        int inUse = 0;
+        for (final OpusClip clip : this.clips.values()) {
+            if (clip.references > 0) {
+                inUse++;
+            }
+        }
+        return MagmaOpusClipCacheStats.builder()
+                .hits(this.hits)
+                .misses(this.misses)
+                .evictions(this.evictions)
+                .clipCount(this.clips.size())
+                .clipsInUse(inUse)
+                .size(this.size)
+                .build();
+    }
+
+    synchronized void release(final OpusClip clip) {
+        if (clip.references <= 0) {
+            throw new IllegalStateException("Clip " + clip.getKey() + " has been released more often than acquired");
+        }
+        clip.references--;
+        if (clip.references == 0) {
+            this.evict();
+        }
+    }
+
+    private void evict() {
+        this.evictWhile(() -> this.size > this.maxSize);
+    }
+
+    private void evictWhile(final BooleanSupplier condition) {
+        final Iterator<OpusClip> iterator = this.clips.values().iterator();
+        while (condition.getAsBoolean() && iterator.hasNext()) {
+            final OpusClip clip = iterator.next();
+            if (clip.references == 0) {
+                iterator.remove();
+                this.size -= clip.getSize();
+                this.evictions++;
+                log.trace("Evicted clip {} of {} bytes", clip.getKey(), clip.getSize());
+            }
+        }
+    }
+}
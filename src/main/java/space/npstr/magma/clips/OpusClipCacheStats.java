@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.clips;
+
+import org.immutables.value.Value;
+
+/**
+ * Activity of an {@link OpusClipCache} since it was created, and its current content.
+ */
+@Value.Immutable
+@Value.Style(
+        typeAbstract = "*",
+        typeImmutable = "Magma*"
+)
+public abstract class OpusClipCacheStats {
+
+    /**
+     * @return amount of clips acquired that were already cached
+     */
+    public abstract long getHits();
+
+    /**
+     * @return amount of clips acquired that had to be loaded
+     */
+    public abstract long getMisses();
+
+    /**
+     * @return amount of clips removed to stay within the size of the cache, or by {@link OpusClipCache#clear()}
+     */
+    public abstract long getEvictions();
+
+    /**
+     * @return amount of clips currently cached
+     */
+    public abstract int getClipCount();
+
+    /**
+     * @return amount of cached clips that are currently in use
+     */
+    public abstract int getClipsInUse();
+
+    /**
+     * @return size of the frames of all cached clips in bytes
+     */
+    public abstract long getSize();
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.clips;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plays an acquired {@link OpusClip} once, and releases it when done. The frames are handed out as a view of the
+ * cached clip, which is moved from frame to frame, so playing allocates and copies nothing.
+ * <p>
+ * The clip is released when the end has been reached. A handler that is removed before that has to be
+ * {@link #stop() stopped} to release its clip.
+ */
+public class OpusClipSendHandler implements AudioSendHandler {
+
+    private final OpusClip clip;
+    private final ByteBuffer view;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    // only touched by the sending thread
+    private int position = 0;
+
+    /**
+     * @param clip
+     *         an acquired clip, which is released by this handler
+     */
+    public OpusClipSendHandler(final OpusClip clip) {
+        this.clip = clip;
+        this.view = clip.newView();
+    }
+
+    @Override
+    public boolean canProvide() {
+        if (this.position < this.clip.getFrameCount() && !this.released.get()) {
+            return true;
+        }
+        this.stop();
+        return false;
+    }
+
+    /**
+     * @return the next frame. The buffer is reused for the following frame, so it is only valid until the next call.
+     */
+    @Nullable
+    @Override
+    public ByteBuffer provide20MsAudio() {
+        if (!this.canProvide()) {
+            return null;
+        }
+        return this.clip.setToFrame(this.view, this.position++);
+    }
+
+    @Override
+    public boolean isOpus() {
+        return true;
+    }
+
+    /**
+     * Stop playing and release the clip. Does nothing if it has already been released.
+     */
+    public void stop() {
+        if (this.released.compareAndSet(false, true)) {
+            this.clip.release();
+        }
+    }
+
+    public OpusClip getClip() {
+        return this.clip;
+    }
+}
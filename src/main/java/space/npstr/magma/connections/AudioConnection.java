@@ -23,25 +23,31 @@ import net.dv8tion.jda.api.audio.factory.IAudioSendSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
-import reactor.core.publisher.BaseSubscriber;
-import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.AudioReceiveHandler;
 import space.npstr.magma.EncryptionMode;
 import space.npstr.magma.MdcKey;
+import space.npstr.magma.Member;
 import space.npstr.magma.SpeakingMode;
 import space.npstr.magma.events.audio.conn.Shutdown;
 import space.npstr.magma.events.audio.conn.*;
 import space.npstr.magma.processing.PacketProvider;
+import space.npstr.magma.processing.SilenceSuppressionTracker;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -50,7 +56,7 @@ import java.util.function.Supplier;
  * Glue together the send handler and the send system, as well as all udp and related stateful information of the
  * connection.
  */
-public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
+public class AudioConnection {
 
     private static final Logger log = LoggerFactory.getLogger(AudioConnection.class);
 
@@ -64,47 +70,70 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
 
     public static final long MAX_UINT_32 = 4294967295L;
 
+    // how long the send system keeps running after the send handler was removed, so the next one can take over
+    private static final long IDLE_SEND_SYSTEM_TIMEOUT_MILLIS = 5000;
+
     private final IAudioSendFactory sendFactory;
-    private final AudioWebSocket webSocket;
+    private final Signaling signaling;
     private final DatagramSocket udpSocket;
-    private final FluxSink<ConnectionEvent> audioConnectionEventSink;
-    private EnumSet<SpeakingMode> speakingModes = EnumSet.of(SpeakingMode.VOICE);
+    private final UdpReceiver udpReceiver;
+    private final SerialExecutor executor;
+    // read by the send thread whenever speaking starts
+    private volatile EnumSet<SpeakingMode> speakingModes = EnumSet.of(SpeakingMode.VOICE);
 
-    // udp connection info
-    @Nullable
-    private EncryptionMode encryptionMode;
-    @Nullable
-    private byte[] secretKey;
-    @Nullable
-    private Integer ssrc;
-    @Nullable
-    private InetSocketAddress udpTargetAddress;
+    // udp connection info and the send handler. only replaced on the executor, read by the send thread for every packet
+    private volatile SendParameters sendParameters = SendParameters.EMPTY;
 
 
     // audio processing/sending components
     @Nullable
-    private AudioSendHandler sendHandler;
-    @Nullable
     private IAudioSendSystem sendSystem;
+    @Nullable
+    private PacketProvider packetProvider;
+    // read by the audio stack to tell whether this connection is sending
+    private volatile boolean sendSystemStarted = false;
+    private long sendHandlerUpdates = 0;
+    private volatile long lastSendHandlerSwitchNanos = -1;
+    private final SilenceSuppressionTracker silenceSuppressionTracker = new SilenceSuppressionTracker();
+
+    // audio receiving components. the handler is read by the udp receiver
+    @Nullable
+    private volatile AudioReceiveHandler receiveHandler;
+    // ssrcs of the other users in the voice channel, keyed by user id
+    private final Map<String, Integer> userSsrcs = new HashMap<>();
 
     // stateful information of an ongoing connection
     private final AtomicLong nonce = new AtomicLong(0);
     private final Supplier<Long> nonceSupplier;
-    private boolean speaking = false;
+    private final SpeakingState speakingState;
+    private boolean shutDown = false;
+    // a connection in standby does not set up send components of its own, it waits to have them handed over
+    private boolean standby;
+    private boolean standbyReadyReported = false;
 
-    public AudioConnection(final AudioWebSocket webSocket, final IAudioSendFactory sendFactory, final DatagramSocket udpSocket) {
+    /**
+     * @param signaling
+     *         told about changes of this connection that Discord needs to know about, usually the websocket that
+     *         created it
+     * @param executor
+     *         serial execution context of the connection, shared with the websocket so that the state updates it
+     *         makes are applied without a thread handoff
+     * @param standby
+     *         true if this connection is being established in the background to take over sending from another
+     *         connection later on, see {@link #handOverSendComponents}
+     */
+    public AudioConnection(final Signaling signaling, final IAudioSendFactory sendFactory,
+                           final DatagramSocket udpSocket, final UdpReceiver udpReceiver,
+                           final SerialExecutor executor, final boolean standby) {
         this.udpSocket = udpSocket;
-        this.webSocket = webSocket;
+        this.udpReceiver = udpReceiver;
+        this.signaling = signaling;
         this.sendFactory = sendFactory;
-
-        final UnicastProcessor<ConnectionEvent> audioConnectionProcessor = UnicastProcessor.create();
-        this.audioConnectionEventSink = audioConnectionProcessor.sink();
+        this.executor = executor;
+        this.standby = standby;
 
         this.nonceSupplier = () -> this.nonce.updateAndGet(n -> n >= AudioConnection.MAX_UINT_32 ? 0 : n + 1);
-
-        audioConnectionProcessor
-                .publishOn(Schedulers.parallel())
-                .subscribe(this);
+        this.speakingState = new SpeakingState(this::getSpeakingModes, this::publishSpeaking);
     }
 
 
@@ -124,69 +153,165 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
                                 : speakingModes;
     }
 
+    public Member getMember() {
+        return this.signaling.getMember();
+    }
+
     public DatagramSocket getUdpSocket() {
         return this.udpSocket;
     }
 
+    /**
+     * @return everything needed to send packets over this connection, consistent with each other
+     */
+    public SendParameters getSendParameters() {
+        return this.sendParameters;
+    }
+
     @Nullable
     public EncryptionMode getEncryptionMode() {
-        return this.encryptionMode;
+        return this.sendParameters.getEncryptionMode();
     }
 
     @Nullable
     public byte[] getSecretKey() {
-        return this.secretKey;
+        return this.sendParameters.getSecretKey();
     }
 
     @Nullable
     public Integer getSsrc() {
-        return this.ssrc;
+        return this.sendParameters.getSsrc();
     }
 
     @Nullable
     public InetSocketAddress getUdpTargetAddress() {
-        return this.udpTargetAddress;
+        return this.sendParameters.getUdpTargetAddress();
     }
 
     @Nullable
     public AudioSendHandler getSendHandler() {
-        return this.sendHandler;
+        return this.sendParameters.getSendHandler();
+    }
+
+    @Nullable
+    public AudioReceiveHandler getReceiveHandler() {
+        return this.receiveHandler;
+    }
+
+    public SilenceSuppressionTracker getSilenceSuppressionTracker() {
+        return this.silenceSuppressionTracker;
+    }
+
+    public SpeakingState getSpeakingState() {
+        return this.speakingState;
     }
 
     public boolean isSpeaking() {
-        return this.speaking;
+        return this.speakingState.isSpeaking();
     }
 
     public void setEncryptionMode(final EncryptionMode value) {
-        this.audioConnectionEventSink.next(((SetEncryptionMode) () -> value));
+        this.next(((SetEncryptionMode) () -> value));
     }
 
     public void setSecretKey(final byte[] value) {
-        this.audioConnectionEventSink.next(((SetSecretKey) () -> value));
+        this.next(((SetSecretKey) () -> value));
     }
 
     public void setSsrc(final int ssrc) {
-        this.audioConnectionEventSink.next(((SetSsrc) () -> ssrc));
+        this.next(((SetSsrc) () -> ssrc));
     }
 
     public void setTargetAddress(final InetSocketAddress targetAddress) {
-        this.audioConnectionEventSink.next(((SetTargetAddress) () -> targetAddress));
+        this.next(((SetTargetAddress) () -> targetAddress));
     }
 
     public void updateSendHandler(@Nullable final AudioSendHandler sendHandler) {
-        this.audioConnectionEventSink.next(((UpdateSendHandler) () -> Optional.ofNullable(sendHandler)));
+        this.next(((UpdateSendHandler) () -> Optional.ofNullable(sendHandler)));
+    }
+
+    public void updateReceiveHandler(@Nullable final AudioReceiveHandler receiveHandler) {
+        this.next(((UpdateReceiveHandler) () -> Optional.ofNullable(receiveHandler)));
     }
 
     /**
-     * This may be repeatedly called, but will only result in an event sent when the requested speaking state actually
-     * differs from the speaking state at the time this event is processed by the connection.
+     * Route the audio the user sends with the ssrc to the receive handler of this connection.
      */
-    public void updateSpeaking(final boolean shouldSpeak) {
-        this.audioConnectionEventSink.next(new UpdateSpeaking(shouldSpeak, speakingModes));
+    public void mapSsrc(final String userId, final int ssrc) {
+        this.next(new MapSsrc(userId, ssrc));
+    }
+
+    public void unmapUser(final String userId) {
+        this.next(((UnmapUser) () -> userId));
+    }
+
+    /**
+     * @return true if the send system of this connection has been started and has a send handler
+     */
+    public boolean isSending() {
+        return this.sendSystemStarted && this.sendParameters.getSendHandler() != null;
+    }
+
+    /**
+     * @return time between a send handler being swapped in on the running send system and the first packet sent from
+     * it, for the most recent swap over this connection, or -1 if there has been none
+     */
+    public long getLastSendHandlerSwitchNanos() {
+        return this.lastSendHandlerSwitchNanos;
+    }
+
+    /**
+     * Called by the packet provider with the first packet of a send handler that replaced another one.
+     */
+    public void sendHandlerSwitched(final long latencyNanos) {
+        this.lastSendHandlerSwitchNanos = latencyNanos;
     }
 
     public void shutdown() {
-        this.audioConnectionEventSink.next(Shutdown.INSTANCE);
+        this.next(Shutdown.INSTANCE);
+    }
+
+    /**
+     * Move the running send system of this connection over to the target connection, which has to be in standby. The
+     * packet provider of the send system is switched to the target connection, so that sending continues without
+     * restarting the send system, and without resetting the RTP sequence and timestamp.
+     * <p>
+     * This connection keeps its send handler until it is shut down, so packets keep being sent over it right up to
+     * the switch.
+     *
+     * @param gapCallback
+     *         receives the nanoseconds between the last packet sent over this connection and the first one sent over
+     *         the target connection
+     * @param onHandedOver
+     *         run once the target connection has taken over
+     */
+    public void handOverSendComponents(final AudioConnection target, final LongConsumer gapCallback,
+                                       final Runnable onHandedOver) {
+        this.executor.execute(() -> {
+            final IAudioSendSystem system = this.sendSystem;
+            final PacketProvider provider = this.packetProvider;
+            final boolean started = this.sendSystemStarted;
+            // forget about them, so that shutting this connection down does not stop the send system
+            this.sendSystem = null;
+            this.packetProvider = null;
+            this.sendSystemStarted = false;
+            target.executor.execute(() -> {
+                target.adoptSendComponents(system, provider, started, gapCallback);
+                onHandedOver.run();
+            });
+        });
+    }
+
+    /**
+     * Leave standby without having send components handed over, because the connection that was supposed to hand
+     * them over is gone. This connection sets up its own send components as needed.
+     */
+    public void leaveStandby() {
+        this.executor.execute(() -> this.adoptSendComponents(null, null, false, nanos -> {}));
+    }
+
+    private void next(final ConnectionEvent event) {
+        this.executor.execute(() -> this.handleEvent(event));
     }
 
 
@@ -194,28 +319,42 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
     // #                            Event handling
     // ################################################################################
 
-    @Override
-    protected void hookOnNext(final ConnectionEvent event) {
+    private void handleEvent(final ConnectionEvent event) {
+        if (this.shutDown) {
+            log.trace("Dropping event of class {} received after shutdown", event.getClass().getSimpleName());
+            return;
+        }
         try (
-                final MDC.MDCCloseable ignored = MDC.putCloseable(MdcKey.GUILD, this.webSocket.getSession().getVoiceServerUpdate().getGuildId());
-                final MDC.MDCCloseable ignored2 = MDC.putCloseable(MdcKey.BOT, this.webSocket.getSession().getUserId())
+                final MDC.MDCCloseable ignored = MDC.putCloseable(MdcKey.GUILD, this.signaling.getMember().getGuildId());
+                final MDC.MDCCloseable ignored2 = MDC.putCloseable(MdcKey.BOT, this.signaling.getMember().getUserId())
         ) {
             if (event instanceof SetEncryptionMode) {
-                this.encryptionMode = ((SetEncryptionMode) event).getEncryptionMode();
+                final EncryptionMode encryptionMode = ((SetEncryptionMode) event).getEncryptionMode();
+                this.sendParameters = this.sendParameters.withEncryptionMode(encryptionMode);
                 this.startSendSystemIfReady();
             } else if (event instanceof SetSecretKey) {
-                this.secretKey = ((SetSecretKey) event).getSecretKey();
+                final byte[] secretKey = ((SetSecretKey) event).getSecretKey();
+                this.sendParameters = this.sendParameters.withSecretKey(secretKey);
                 this.startSendSystemIfReady();
             } else if (event instanceof SetSsrc) {
-                this.ssrc = ((SetSsrc) event).getSsrc();
+                final int ssrc = ((SetSsrc) event).getSsrc();
+                this.sendParameters = this.sendParameters.withSsrc(ssrc);
                 this.startSendSystemIfReady();
             } else if (event instanceof SetTargetAddress) {
-                this.udpTargetAddress = ((SetTargetAddress) event).getTargetAddress();
+                final InetSocketAddress targetAddress = ((SetTargetAddress) event).getTargetAddress();
+                this.sendParameters = this.sendParameters.withUdpTargetAddress(targetAddress);
+                this.userSsrcs.forEach(this::addRoute);
                 this.startSendSystemIfReady();
             } else if (event instanceof UpdateSendHandler) {
                 this.handleSendHandlerUpdate((UpdateSendHandler) event);
-            } else if (event instanceof UpdateSpeaking) {
-                this.handleSpeakingUpdate((UpdateSpeaking) event);
+            } else if (event instanceof StopIdleSendSystem) {
+                this.handleStopIdleSendSystem((StopIdleSendSystem) event);
+            } else if (event instanceof UpdateReceiveHandler) {
+                this.receiveHandler = ((UpdateReceiveHandler) event).getAudioReceiveHandler().orElse(null);
+            } else if (event instanceof MapSsrc) {
+                this.handleMapSsrc((MapSsrc) event);
+            } else if (event instanceof UnmapUser) {
+                this.removeRoute(((UnmapUser) event).getUserId());
             } else if (event instanceof Shutdown) {
                 this.handleShutdown();
             } else {
@@ -226,51 +365,123 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
 
     private void handleSendHandlerUpdate(final UpdateSendHandler event) {
         final Optional<AudioSendHandler> audioSendHandler = event.getAudioSendHandler();
+        if (this.standby) {
+            // only remember it, the send components are set up when leaving standby
+            this.sendParameters = this.sendParameters.withSendHandler(audioSendHandler.orElse(null));
+            return;
+        }
+        final long updates = ++this.sendHandlerUpdates;
         if (audioSendHandler.isPresent()) {
+            final boolean idle = this.sendSystemStarted && this.sendParameters.getSendHandler() == null;
             this.setupSendComponents(audioSendHandler.get());
+            if (idle) {
+                // the running send system picks it up with its next poll
+                this.signaling.sendingStarted();
+            }
             this.startSendSystemIfReady();
+        } else if (this.sendSystemStarted) {
+            // keep the send system running for a while, in case another send handler follows right away
+            log.trace("Send handler removed, stopping the send system in {}ms", IDLE_SEND_SYSTEM_TIMEOUT_MILLIS);
+            this.sendParameters = this.sendParameters.withSendHandler(null);
+            Schedulers.parallel().schedule(() -> this.next((StopIdleSendSystem) () -> updates),
+                    IDLE_SEND_SYSTEM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         } else {
             this.tearDownSendComponents();
         }
     }
 
-    private void handleSpeakingUpdate(final UpdateSpeaking event) {
-        if (this.speaking != event.shouldSpeak()) {
-            this.setSpeaking(event.getSpeakingMode());
+    private void handleStopIdleSendSystem(final StopIdleSendSystem event) {
+        if (event.getSendHandlerUpdates() == this.sendHandlerUpdates && this.sendParameters.getSendHandler() == null) {
+            this.tearDownSendComponents();
         }
     }
 
-    private void setSpeaking(final int speaking) {
-        if (this.ssrc != null) {
-            log.trace("Setting speaking to {}", speaking);
-            this.speaking = speaking != 0;
-            this.webSocket.setSpeaking(speaking, this.ssrc);
-        } else {
-            log.trace("Not setting speaking to {} due to missing ssrc", speaking);
+    // called by the speaking state, usually from the send thread. the websocket hands the payload to its own executor
+    private void publishSpeaking(final int speaking, final int ssrc) {
+        log.trace("Setting speaking to {}", speaking);
+        this.signaling.setSpeaking(speaking, ssrc);
+    }
+
+    private void handleMapSsrc(final MapSsrc event) {
+        final Integer previous = this.userSsrcs.get(event.getUserId());
+        if (previous != null && previous == event.getSsrc()) {
+            return;
+        }
+        this.removeRoute(event.getUserId());
+        this.userSsrcs.put(event.getUserId(), event.getSsrc());
+        this.addRoute(event.getUserId(), event.getSsrc());
+    }
+
+    private void addRoute(final String userId, final int ssrc) {
+        final InetSocketAddress udpTargetAddress = this.sendParameters.getUdpTargetAddress();
+        if (udpTargetAddress != null) {
+            this.udpReceiver.addRoute(udpTargetAddress, ssrc, userId, this);
+        }
+    }
+
+    private void removeRoute(final String userId) {
+        final Integer ssrc = this.userSsrcs.remove(userId);
+        final InetSocketAddress udpTargetAddress = this.sendParameters.getUdpTargetAddress();
+        if (ssrc != null && udpTargetAddress != null) {
+            this.udpReceiver.removeRoute(udpTargetAddress, ssrc, this);
         }
     }
 
     private void handleShutdown() {
         log.trace("Shutting down");
-        this.setSpeaking(0);
+        final Integer ssrc = this.sendParameters.getSsrc();
+        if (ssrc != null) {
+            this.speakingState.stop(ssrc);
+        }
         this.tearDownSendComponents();
+        new ArrayList<>(this.userSsrcs.keySet()).forEach(this::removeRoute);
+        this.receiveHandler = null;
 
-        this.encryptionMode = null;
-        this.secretKey = null;
-        this.ssrc = null;
-        this.udpTargetAddress = null;
+        this.sendParameters = SendParameters.EMPTY;
 
-        this.dispose();
+        this.shutDown = true;
     }
 
 
     private void tearDownSendComponents() {
         log.trace("Thread {} is tearing down audio components", Thread.currentThread().getName());
-        this.sendHandler = null;
+        this.sendParameters = this.sendParameters.withSendHandler(null);
         if (this.sendSystem != null) {
             this.sendSystem.shutdown();
             this.sendSystem = null;
         }
+        this.packetProvider = null;
+        this.sendSystemStarted = false;
+    }
+
+    private void adoptSendComponents(@Nullable final IAudioSendSystem system, @Nullable final PacketProvider provider,
+                                     final boolean started, final LongConsumer gapCallback) {
+        if (this.shutDown) {
+            // too late, nobody is going to use them anymore
+            if (system != null) {
+                system.shutdown();
+            }
+            return;
+        }
+        this.standby = false;
+        if (system != null && provider != null) {
+            log.trace("Taking over send system");
+            this.sendSystem = system;
+            this.packetProvider = provider;
+            this.sendSystemStarted = started;
+            provider.switchConnection(this, gapCallback);
+            if (started) {
+                this.signaling.sendingStarted();
+            }
+        }
+
+        final AudioSendHandler handler = this.sendParameters.getSendHandler();
+        if (handler == null) {
+            this.tearDownSendComponents();
+        } else {
+            this.setupSendComponents(handler);
+            this.startSendSystemIfReady();
+        }
     }
 
     private void setupSendComponents(final AudioSendHandler sendHandler) {
@@ -278,31 +489,42 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
         if (!sendHandler.isOpus()) {
             throw new IllegalArgumentException("Magma does not support non-opus audio providers. Please use lavaplayer.");
         }
-        this.sendHandler = sendHandler;
+        this.sendParameters = this.sendParameters.withSendHandler(sendHandler);
         if (this.sendSystem == null) {
-            final PacketProvider packetProvider = new PacketProvider(this, this.nonceSupplier);
-            this.sendSystem = this.sendFactory.createSendSystem(packetProvider);
+            final PacketProvider provider = new PacketProvider(this, this.nonceSupplier);
+            this.packetProvider = provider;
+            this.sendSystem = this.sendFactory.createSendSystem(provider);
         }
     }
 
     private void startSendSystemIfReady() {
+        final SendParameters parameters = this.sendParameters;
         //check udp connection info
-        if (this.encryptionMode == null) {
+        if (parameters.getEncryptionMode() == null) {
             log.trace("Not ready cause no encryption mode");
             return;
-        } else if (this.secretKey == null) {
+        } else if (parameters.getSecretKey() == null) {
             log.trace("Not ready cause no secret key");
             return;
-        } else if (this.ssrc == null) {
+        } else if (parameters.getSsrc() == null) {
             log.trace("Not ready cause no ssrc");
             return;
-        } else if (this.udpTargetAddress == null) {
+        } else if (parameters.getUdpTargetAddress() == null) {
             log.trace("Not ready cause no udp target address");
             return;
         }
 
+        if (this.standby) {
+            if (!this.standbyReadyReported) {
+                log.trace("Ready, waiting for the send system to be handed over");
+                this.standbyReadyReported = true;
+                this.signaling.standbyReady();
+            }
+            return;
+        }
+
         //check audio processing/sending components
-        if (this.sendHandler == null) {
+        if (parameters.getSendHandler() == null) {
             log.trace("Not ready cause no send handler");
             return;
         } else if (this.sendSystem == null) {
@@ -310,8 +532,13 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
             return;
         }
 
+        if (this.sendSystemStarted) {
+            return;
+        }
         log.trace("Ready, starting send system");
         this.sendSystem.start();
+        this.sendSystemStarted = true;
+        this.signaling.sendingStarted();
     }
 
 
@@ -351,8 +578,9 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
             return externalAddress;
         };
 
+        // subscribeOn, so that the blocking discovery does not stall the serial execution context of the connection
         return Mono.fromSupplier(externalUdpAddressSupplier)
-                .publishOn(Schedulers.elastic());//elastic scheduler is the correct choice for legacy blocking calls
+                .subscribeOn(Schedulers.elastic());//elastic scheduler is the correct choice for legacy blocking calls
     }
 
     /**
@@ -372,16 +600,17 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
 
             //Construct our packet to be sent loaded with the byte buffer we store the ssrc in.
             final DatagramPacket discoveryPacket = new DatagramPacket(buffer.array(), buffer.array().length, remoteAddress);
-            this.udpSocket.send(discoveryPacket);
 
             //Discord responds to our packet, returning a packet containing our external ip and the port we connected through.
-            final DatagramPacket receivedPacket = new DatagramPacket(new byte[70], 70);   //Give a buffer the same size as the one we sent.
-            this.udpSocket.setSoTimeout(1000);
-            this.udpSocket.receive(receivedPacket);
-
-            //The byte array returned by discord containing our external ip and the port that we used
-            //to connect to discord with.
-            final byte[] received = receivedPacket.getData();
+            //The response arrives on the thread receiving everything on the shared socket, which hands it over.
+            final CompletableFuture<byte[]> response = this.udpReceiver.awaitDiscovery(remoteAddress, ssrc);
+            this.udpSocket.send(discoveryPacket);
+            final byte[] received;
+            try {
+                received = response.get(1, TimeUnit.SECONDS);
+            } finally {
+                response.cancel(false);
+            }
 
             //Example string:"   121.83.253.66                                                   ��"
             //You'll notice that there are 4 leading nulls and a large amount of nulls between the the ip and
@@ -416,4 +645,24 @@ public class AudioConnection extends BaseSubscriber<ConnectionEvent> {
         }
     }
 
+
+    /**
+     * The part of a voice connection that talks to Discord over the websocket, see {@link AudioWebSocket}.
+     */
+    public interface Signaling {
+
+        Member getMember();
+
+        void setSpeaking(int speaking, int ssrc);
+
+        /**
+         * Called by the audio connection in standby once it has everything it needs to send audio.
+         */
+        void standbyReady();
+
+        /**
+         * Called by the audio connection once its send system is running.
+         */
+        void sendingStarted();
+    }
 }
@@ -23,21 +23,21 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import reactor.core.Disposable;
-import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
-import reactor.core.publisher.UnicastProcessor;
-import reactor.core.scheduler.Schedulers;
 import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.HeartbeatStats;
 import space.npstr.magma.MdcKey;
 import space.npstr.magma.Member;
 import space.npstr.magma.WebsocketConnectionState;
 import space.npstr.magma.connections.hax.ClosingWebSocketClient;
+import space.npstr.magma.events.api.ConnectionPhaseChangedApiEvent;
 import space.npstr.magma.events.api.MagmaEvent;
 import space.npstr.magma.events.api.SpeakingApiEvent;
 import space.npstr.magma.events.api.WebSocketClosedApiEvent;
-import space.npstr.magma.events.audio.lifecycle.CloseWebSocket;
 import space.npstr.magma.events.audio.lifecycle.CloseWebSocketLcEvent;
+import space.npstr.magma.events.audio.lifecycle.LifecycleEvent;
+import space.npstr.magma.events.audio.lifecycle.MigrationReadyLcEvent;
+import space.npstr.magma.events.audio.lifecycle.SendingStartedLcEvent;
 import space.npstr.magma.events.audio.ws.CloseCode;
 import space.npstr.magma.events.audio.ws.Speaking;
 import space.npstr.magma.events.audio.ws.SpeakingWsEvent;
@@ -50,8 +50,11 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
@@ -60,55 +63,65 @@ import java.util.stream.Collectors;
  * Created by napster on 19.04.18.
  * <p>
  * Handle the lifecycle of the Discord voice websocket connection.
+ * <p>
+ * Inbound events, heartbeats and closing are all handled on the {@link SerialExecutor} of the connection, which is
+ * shared with the {@link AudioConnection}.
  */
-public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
+public class AudioWebSocket implements AudioConnection.Signaling {
 
     private static final Logger log = LoggerFactory.getLogger(AudioWebSocket.class);
 
+    // consider the connection dead and resume it when this many heartbeats in a row have not been acknowledged
+    private static final int MAX_MISSED_HEARTBEAT_ACKS = 2;
+
     private final SessionInfo session;
     private final URI wssEndpoint;
     private final AudioConnection audioConnection;
-    private final Consumer<CloseWebSocket> closeCallback;
+    private final Consumer<LifecycleEvent> lifecycleCallback;
     private final Consumer<MagmaEvent> apiEventCallback;
     private final ClosingWebSocketClient webSocketClient;
+    private final SerialExecutor executor = new SerialExecutor();
 
-    private final UnicastProcessor<OutboundWsEvent> webSocketProcessor;
-    private final FluxSink<OutboundWsEvent> webSocketSink;
-    private final UnicastProcessor<OutboundWsEvent> readyWebsocketProcessor;
-    private final FluxSink<OutboundWsEvent> readyWebsocketSink;
     private final AudioWebSocketSessionHandler webSocketHandler;
+    private final HeartbeatTracker heartbeatTracker = new HeartbeatTracker();
 
 
     @Nullable
     private Disposable heartbeatSubscription;
     private Disposable webSocketConnection;
+    // events held back until we receive the ready event. only touched in the context of the executor
+    @Nullable
+    private List<OutboundWsEvent> awaitingReady = new ArrayList<>();
 
-    private WebsocketConnectionState.Phase connectionPhase = WebsocketConnectionState.Phase.CONNECTING;
+    private volatile WebsocketConnectionState.Phase connectionPhase = WebsocketConnectionState.Phase.CONNECTING;
 
 
+    /**
+     * @param lifecycleCallback
+     *         receives the lifecycle events caused by this websocket, like it being closed
+     * @param standby
+     *         establish the connection without sending audio over it, to take over sending from another connection
+     *         once it is ready. See {@link AudioConnection#handOverSendComponents}
+     */
     public AudioWebSocket(final IAudioSendFactory sendFactory, final SessionInfo session,
-                          final ClosingWebSocketClient webSocketClient, final Consumer<CloseWebSocket> closeCallback,
-                          final DatagramSocket udpSocket, final Consumer<MagmaEvent> apiEventCallback) {
+                          final ClosingWebSocketClient webSocketClient, final Consumer<LifecycleEvent> lifecycleCallback,
+                          final DatagramSocket udpSocket, final UdpReceiver udpReceiver,
+                          final Consumer<MagmaEvent> apiEventCallback, final boolean standby) {
         this.session = session;
         try {
             this.wssEndpoint = new URI(String.format("wss://%s/?v=4", session.getVoiceServerUpdate().getEndpoint()));
         } catch (final URISyntaxException e) {
             throw new RuntimeException("Endpoint " + session.getVoiceServerUpdate().getEndpoint() + " is not a valid URI", e);
         }
-        this.audioConnection = new AudioConnection(this, sendFactory, udpSocket);
-        this.closeCallback = closeCallback;
+        this.audioConnection = new AudioConnection(this, sendFactory, udpSocket, udpReceiver, this.executor,
+                standby);
+        this.lifecycleCallback = lifecycleCallback;
         this.webSocketClient = webSocketClient;
         this.apiEventCallback = apiEventCallback;
 
-
-        this.webSocketProcessor = UnicastProcessor.create();
-        this.webSocketSink = this.webSocketProcessor.sink();
-
-        this.readyWebsocketProcessor = UnicastProcessor.create();
-        this.readyWebsocketSink = this.readyWebsocketProcessor.sink();
-
-        this.webSocketHandler = new AudioWebSocketSessionHandler(this);
-        this.webSocketProcessor.subscribe(this.webSocketHandler);
+        this.webSocketHandler = new AudioWebSocketSessionHandler(
+                inboundEvent -> this.executor.execute(() -> this.handleInbound(inboundEvent)));
+        this.publishPhaseChange(WebsocketConnectionState.Phase.NO_CONNECTION, this.connectionPhase);
         this.webSocketConnection = this.connect(this.webSocketClient, this.wssEndpoint, this.webSocketHandler);
     }
 
@@ -116,6 +129,12 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
         return this.audioConnection;
     }
 
+    @Override
+    public Member getMember() {
+        return this.session.getVoiceServerUpdate().getMember();
+    }
+
+    @Override
     public void setSpeaking(final int speaking, final int ssrc) {
         sendWhenReady(SpeakingWsEvent.builder()
                 .userId("")
@@ -129,13 +148,39 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
     }
 
     public void close() {
-        this.closeEverything();
+        this.executor.execute(this::closeEverything);
     }
 
     public WebsocketConnectionState.Phase getConnectionPhase() {
         return this.connectionPhase;
     }
 
+    /**
+     * Only called in the context of the executor, so that the changes are published in order.
+     */
+    private void changePhase(final WebsocketConnectionState.Phase phase) {
+        final WebsocketConnectionState.Phase previous = this.connectionPhase;
+        if (previous == phase) {
+            return;
+        }
+        this.connectionPhase = phase;
+        this.publishPhaseChange(previous, phase);
+    }
+
+    private void publishPhaseChange(final WebsocketConnectionState.Phase previous,
+                                    final WebsocketConnectionState.Phase phase) {
+        this.apiEventCallback.accept(ConnectionPhaseChangedApiEvent.builder()
+                .member(this.session.getVoiceServerUpdate().getMember())
+                .endpoint(this.session.getVoiceServerUpdate().getEndpoint())
+                .previousPhase(previous)
+                .phase(phase)
+                .build());
+    }
+
+    public HeartbeatStats getHeartbeatStats() {
+        return this.heartbeatTracker.getStats();
+    }
+
     // ################################################################################
     // #                        Inbound event handlers
     // ################################################################################
@@ -144,8 +189,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
      * Process the incoming events from the websocket.
      */
     @SuppressWarnings("StatementWithEmptyBody")
-    @Override
-    protected void hookOnNext(final InboundWsEvent inboundEvent) {
+    private void handleInbound(final InboundWsEvent inboundEvent) {
         try (
                 final MDC.MDCCloseable ignored = MDC.putCloseable(MdcKey.GUILD, this.session.getVoiceServerUpdate().getGuildId());
                 final MDC.MDCCloseable ignored2 = MDC.putCloseable(MdcKey.BOT, this.session.getUserId())
@@ -157,6 +201,8 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
             } else if (inboundEvent instanceof SessionDescription) {
                 this.handleSessionDescription((SessionDescription) inboundEvent);
             } else if (inboundEvent instanceof Speaking) {
+                final Speaking speaking = (Speaking) inboundEvent;
+                this.audioConnection.mapSsrc(speaking.getUserId(), speaking.getSsrc());
                 final Member member = this.session.getVoiceServerUpdate().getMember();
                 this.apiEventCallback.accept(
                         SpeakingApiEvent.builder()
@@ -165,9 +211,10 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
                                 .speaking(((Speaking) inboundEvent).getSpeakingMask() == 1)
                                 .build()
                 );
-            } else if (inboundEvent instanceof HeartbeatAck
-                    || inboundEvent instanceof ClientDisconnect) {
-                // noop
+            } else if (inboundEvent instanceof HeartbeatAck) {
+                this.handleHeartbeatAck((HeartbeatAck) inboundEvent);
+            } else if (inboundEvent instanceof ClientDisconnect) {
+                ((ClientDisconnect) inboundEvent).getUserId().ifPresent(this.audioConnection::unmapUser);
             } else if (inboundEvent instanceof WebSocketClosed) {
                 this.handleWebSocketClosed((WebSocketClosed) inboundEvent);
             } else if (inboundEvent instanceof Resumed) {
@@ -184,6 +231,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
 
     private void handleHello(final Hello hello) {
         log.trace("Hello");
+        this.stopHeartbeats();
         this.heartbeatSubscription = Flux.interval(Duration.ofMillis(hello.getHeartbeatIntervalMillis()))
                 .doOnNext(tick -> {
                     try (
@@ -193,11 +241,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
                         log.trace("Sending heartbeat {}", tick);
                     }
                 })
-                .publishOn(Schedulers.parallel())
-                .subscribe(tick -> send(HeartbeatWsEvent.builder()
-                        .nonce(tick.intValue())
-                        .build())
-                );
+                .subscribe(tick -> this.executor.execute(() -> this.heartbeat(tick.intValue())));
 
         send(IdentifyWsEvent.builder()
                 .userId(this.session.getUserId())
@@ -210,7 +254,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
 
     private void handleReady(final Ready ready) {
         log.trace("Ready");
-        this.connectionPhase = WebsocketConnectionState.Phase.CONNECTED;
+        this.changePhase(WebsocketConnectionState.Phase.CONNECTED);
         final InetSocketAddress udpTargetAddress = new InetSocketAddress(ready.getIp(), ready.getPort());
         final List<EncryptionMode> receivedModes = ready.getEncryptionModes();
         final Optional<EncryptionMode> preferredModeOpt = EncryptionMode.getPreferredMode(receivedModes);
@@ -223,11 +267,14 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
         final EncryptionMode preferredMode = preferredModeOpt.get();
         log.debug("Selecting encryption mode {}", preferredMode);
 
-        //attach ready event sink to the full event sink
-        this.readyWebsocketProcessor.subscribe(this.webSocketProcessor);
+        //send what was held back, and everything from now on right away
+        final List<OutboundWsEvent> heldBack = this.awaitingReady;
+        this.awaitingReady = null;
+        if (heldBack != null) {
+            heldBack.forEach(this::send);
+        }
 
         this.audioConnection.handleUdpDiscovery(udpTargetAddress, ready.getSsrc())
-                .publishOn(Schedulers.parallel())
                 .subscribe(externalAddress -> sendWhenReady(
                         SelectProtocolWsEvent.builder()
                                 .protocol("udp")
@@ -237,6 +284,15 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
                                 .build()));
     }
 
+    private void handleHeartbeatAck(final HeartbeatAck heartbeatAck) {
+        final OptionalLong rtt = this.heartbeatTracker.acknowledged(heartbeatAck.getNonce());
+        if (rtt.isPresent()) {
+            log.trace("Heartbeat ack, rtt {}ms", TimeUnit.NANOSECONDS.toMillis(rtt.getAsLong()));
+        } else {
+            log.debug("Received heartbeat ack {} that does not match any outstanding heartbeat", heartbeatAck.getNonce());
+        }
+    }
+
     private void handleSessionDescription(final SessionDescription sessionDescription) {
         log.trace("Session description");
         this.audioConnection.setSecretKey(sessionDescription.getSecretKey());
@@ -244,7 +300,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
     }
 
     private void handleWebSocketClosed(final WebSocketClosed webSocketClosed) {
-        this.connectionPhase = WebsocketConnectionState.Phase.DISCONNECTED;
+        this.changePhase(WebsocketConnectionState.Phase.DISCONNECTED);
         final int code = webSocketClosed.getCode();
         final String reason = webSocketClosed.getReason();
         log.info("Websocket to {} closed with code {} and reason {}",
@@ -271,7 +327,8 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
 
         if (resume) {
             log.info("Resuming");
-            this.connectionPhase = WebsocketConnectionState.Phase.RESUMING;
+            this.changePhase(WebsocketConnectionState.Phase.RESUMING);
+            this.stopHeartbeats();
             this.webSocketConnection.dispose();
             this.webSocketHandler.prepareConnect();
             this.webSocketConnection = this.connect(this.webSocketClient, this.wssEndpoint, this.webSocketHandler);
@@ -283,7 +340,7 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
         } else {
             log.info("Closing");
             final Member member = this.session.getVoiceServerUpdate().getMember();
-            this.closeCallback.accept(CloseWebSocketLcEvent.builder()
+            this.lifecycleCallback.accept(CloseWebSocketLcEvent.builder()
                     .member(this.session.getVoiceServerUpdate().getMember())
                     .apiEvent(WebSocketClosedApiEvent.builder()
                             .member(member)
@@ -291,46 +348,103 @@ public class AudioWebSocket extends BaseSubscriber<InboundWsEvent> {
                             .reason(reason)
                             .isByRemote(true)
                             .build())
+                    .sessionInfo(this.session)
                     .build());
         }
     }
 
     private void handleResumed() {
-        this.connectionPhase = WebsocketConnectionState.Phase.CONNECTED;
+        this.changePhase(WebsocketConnectionState.Phase.CONNECTED);
     }
 
     // ################################################################################
     // #                                Internals
     // ################################################################################
 
+    @Override
+    public void standbyReady() {
+        log.debug("Connection to {} is ready to take over", this.wssEndpoint);
+        this.lifecycleCallback.accept(MigrationReadyLcEvent.builder()
+                .sessionInfo(this.session)
+                .build());
+    }
+
+    @Override
+    public void sendingStarted() {
+        this.lifecycleCallback.accept(SendingStartedLcEvent.builder()
+                .sessionInfo(this.session)
+                .build());
+    }
+
+    private void heartbeat(final int nonce) {
+        final int missedAcks = this.heartbeatTracker.getMissedAcks();
+        if (missedAcks >= MAX_MISSED_HEARTBEAT_ACKS) {
+            this.handleZombieConnection(missedAcks);
+            return;
+        }
+        this.heartbeatTracker.sent(nonce);
+        send(HeartbeatWsEvent.builder()
+                .nonce(nonce)
+                .build());
+    }
+
+    /**
+     * Half open connections never receive a close frame, so instead of waiting for Discord to drop us we resume on
+     * our own when the heartbeats stop being acknowledged.
+     */
+    private void handleZombieConnection(final int missedAcks) {
+        try (
+                final MDC.MDCCloseable ignored = MDC.putCloseable(MdcKey.GUILD, this.session.getVoiceServerUpdate().getGuildId());
+                final MDC.MDCCloseable ignored2 = MDC.putCloseable(MdcKey.BOT, this.session.getUserId())
+        ) {
+            log.warn("Missed {} heartbeat acks in a row, connection to {} seems to be dead", missedAcks, this.wssEndpoint);
+        }
+        this.stopHeartbeats();
+        this.handleInbound(WebSocketClosedWsEvent.builder()
+                .code(CloseCode.HEARTBEAT_TIMEOUT.getCode())
+                .reason("Missed " + missedAcks + " heartbeat acks")
+                .build());
+    }
+
+    private void stopHeartbeats() {
+        if (this.heartbeatSubscription != null) {
+            this.heartbeatSubscription.dispose();
+            this.heartbeatSubscription = null;
+        }
+        this.heartbeatTracker.reset();
+    }
+
     private Disposable connect(final ClosingWebSocketClient client, final URI endpoint, final WebSocketHandler handler) {
         return client.execute(endpoint, handler)
                 .log(log.getName() + ".WebSocketConnection", Level.FINEST) //FINEST = TRACE
                 .doOnError(t -> {
                     log.error("Exception in websocket connection, closing", t);
-                    this.closeEverything();
+                    this.executor.execute(this::closeEverything);
                 })
-                .publishOn(Schedulers.parallel())
                 .subscribe();
     }
 
     private void send(final OutboundWsEvent outboundWsEvent) {
-        this.webSocketSink.next(outboundWsEvent);
+        this.webSocketHandler.send(outboundWsEvent);
     }
 
     //use for events that should only happen after we have identified (=after we receive the ready event) to avoid 4003s
     private void sendWhenReady(final OutboundWsEvent outboundWsEvent) {
-        this.readyWebsocketSink.next(outboundWsEvent);
+        this.executor.execute(() -> {
+            if (this.awaitingReady != null) {
+                this.awaitingReady.add(outboundWsEvent);
+            } else {
+                this.send(outboundWsEvent);
+            }
+        });
     }
 
     private void closeEverything() {
         log.trace("Closing everything");
-        this.connectionPhase = WebsocketConnectionState.Phase.DISCONNECTED;
+        this.changePhase(WebsocketConnectionState.Phase.DISCONNECTED);
         this.webSocketHandler.close();
         this.webSocketConnection.dispose();
-        if (this.heartbeatSubscription != null) {
-            this.heartbeatSubscription.dispose();
-        }
+        this.stopHeartbeats();
         this.audioConnection.shutdown();
     }
 }
@@ -17,7 +17,6 @@
 package space.npstr.magma.connections;
 
 import edu.umd.cs.findbugs.annotations.Nullable;
-import org.reactivestreams.Subscriber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.reactive.socket.WebSocketHandler;
@@ -28,14 +27,15 @@ import reactor.core.scheduler.Schedulers;
 import space.npstr.magma.events.audio.ws.in.InboundWsEvent;
 import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
 
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 /**
  * Created by napster on 21.04.18.
  */
-public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent> implements WebSocketHandler {
+public class AudioWebSocketSessionHandler implements WebSocketHandler {
     private static final Logger log = LoggerFactory.getLogger(AudioWebSocketSessionHandler.class);
-    private final Subscriber<InboundWsEvent> inbound;
+    private final Consumer<InboundWsEvent> inbound;
 
     @SuppressWarnings("NullableProblems") //is never actually null
     private volatile Flux<OutboundWsEvent> intermediaryOutbound;
@@ -46,9 +46,10 @@ public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent
 
     /**
      * @param inbound
-     *         Subscriber to the events we will receive from Discord
+     *         Consumer of the events we will receive from Discord. It is called on the thread that received the
+     *         message, and is expected to hand the event off to wherever it is going to be handled.
      */
-    public AudioWebSocketSessionHandler(final Subscriber<InboundWsEvent> inbound) {
+    public AudioWebSocketSessionHandler(final Consumer<InboundWsEvent> inbound) {
         this.prepareConnect();
         this.inbound = inbound;
     }
@@ -66,8 +67,7 @@ public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent
 
     /**
      * Call this when planning to reuse this handler for another session.
-     * We need to replace the intermediary processor so that the new session can be subscribed to the original
-     * {@code Flux<OutboundWsEvent> outbound} constructor parameter.
+     * We need to replace the intermediary processor so that the events sent from now on go to the new session.
      * <p>
      * Any outbound events buffered in the old processor will be lost upon calling this, which is ok,
      * given that this method is expected to be called when the connection has been closed.
@@ -86,7 +86,7 @@ public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent
 //        Mono.delay(Duration.ofSeconds(30))
 //                .subscribe(tick -> {
 //                    session.close(new CloseStatus(CloseCode.VOICE_SERVER_CRASHED, "lol"));
-//                    ((AudioWebSocket) this.inbound).hookOnNext(WebSocketClosedWsEvent.builder()
+//                    this.inbound.accept(WebSocketClosedWsEvent.builder()
 //                            .code(CloseCode.VOICE_SERVER_CRASHED)
 //                            .reason("lol")
 //                            .build());
@@ -100,8 +100,8 @@ public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent
                 .log(log.getName() + ".>>>", Level.FINEST) //FINEST = TRACE
                 .map(InboundWsEvent::from)
                 .doOnTerminate(() -> log.trace("Receiving terminated"))
-                .publishOn(Schedulers.parallel())
-                .subscribe(this.inbound);
+                // a fresh subscriber for every session, the consumer outlives the sessions of resumed connections
+                .subscribe(this.inbound, t -> log.error("Exception when receiving from the websocket session", t));
 
         return session
                 .send(this.intermediaryOutbound
@@ -112,8 +112,11 @@ public class AudioWebSocketSessionHandler extends BaseSubscriber<OutboundWsEvent
                 .doOnTerminate(() -> log.trace("Sending terminated"));
     }
 
-    @Override
-    protected void hookOnNext(final OutboundWsEvent event) {
+    /**
+     * Send an event over the current session. Events sent before the session has been established are buffered until
+     * then.
+     */
+    public void send(final OutboundWsEvent event) {
         this.intermediaryOutboundSink.next(event);
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import space.npstr.magma.HeartbeatStats;
+import space.npstr.magma.MagmaHeartbeatStats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the heartbeats sent over a voice websocket that have not been acknowledged yet, and of the round
+ * trip times of the ones that have been.
+ * <p>
+ * Heartbeats are sent and acknowledged on different threads, so all access is synchronized. There are only ever a
+ * handful of heartbeats outstanding, which keeps the critical sections tiny.
+ */
+public class HeartbeatTracker {
+
+    // weight of a new sample in the moving average
+    private static final double EWMA_ALPHA = 0.25;
+
+    // nonce -> System.nanoTime() of sending, in the order the heartbeats were sent
+    private final Map<Integer, Long> outstanding = new LinkedHashMap<>();
+    private final long[] histogram = new long[HeartbeatStats.RTT_HISTOGRAM_BOUNDS_MILLIS.size() + 1];
+    private long lastRttNanos = -1;
+    private double averageRttNanos = -1;
+
+    public void sent(final int nonce) {
+        this.sent(nonce, System.nanoTime());
+    }
+
+    /**
+     * Discord acknowledges heartbeats in order, so an ack implicitly covers all heartbeats sent before the acked one.
+     * Acks without a nonce are matched to the oldest outstanding heartbeat.
+     *
+     * @return round trip time of the acknowledged heartbeat in nanoseconds, or nothing if the ack did not match any
+     * outstanding heartbeat
+     */
+    public OptionalLong acknowledged(final OptionalInt nonce) {
+        return this.acknowledged(nonce, System.nanoTime());
+    }
+
+    /**
+     * @return amount of heartbeats that have been sent and not acknowledged yet
+     */
+    public synchronized int getMissedAcks() {
+        return this.outstanding.size();
+    }
+
+    /**
+     * Forget about all outstanding heartbeats, for example because the connection they were sent over is gone.
+     * Round trip time statistics are kept.
+     */
+    public synchronized void reset() {
+        this.outstanding.clear();
+    }
+
+    public synchronized HeartbeatStats getStats() {
+        final MagmaHeartbeatStats.Builder builder = MagmaHeartbeatStats.builder()
+                .missedAcks(this.outstanding.size());
+        if (this.lastRttNanos >= 0) {
+            builder.lastRttMillis(TimeUnit.NANOSECONDS.toMillis(this.lastRttNanos))
+                    .averageRttMillis(this.averageRttNanos / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        for (final long count : this.histogram) {
+            builder.addRttHistogram(count);
+        }
+        return builder.build();
+    }
+
+    synchronized void sent(final int nonce, final long nanoTime) {
+        this.outstanding.put(nonce, nanoTime);
+    }
+
+    synchronized OptionalLong acknowledged(final OptionalInt nonce, final long nanoTime) {
+        if (this.outstanding.isEmpty()) {
+            return OptionalLong.empty();
+        }
+        if (nonce.isPresent() && !this.outstanding.containsKey(nonce.getAsInt())) {
+            return OptionalLong.empty();
+        }
+
+        long sentAt = -1;
+        final Iterator<Map.Entry<Integer, Long>> iterator = this.outstanding.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, Long> entry = iterator.next();
+            iterator.remove();
+            if (!nonce.isPresent() || entry.getKey() == nonce.getAsInt()) {
+                sentAt = entry.getValue();
+                break;
+            }
+        }
+
+        final long rtt = Math.max(0, nanoTime - sentAt);
+        this.record(rtt);
+        return OptionalLong.of(rtt);
+    }
+
+    private void record(final long rttNanos) {
+        this.lastRttNanos = rttNanos;
+        if (this.averageRttNanos < 0) {
+            this.averageRttNanos = rttNanos;
+        } else {
+            this.averageRttNanos += EWMA_ALPHA * (rttNanos - this.averageRttNanos);
+        }
+
+        final long rttMillis = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+        int bucket = 0;
+        while (bucket < HeartbeatStats.RTT_HISTOGRAM_BOUNDS_MILLIS.size()
+                && rttMillis > HeartbeatStats.RTT_HISTOGRAM_BOUNDS_MILLIS.get(bucket)) {
+            bucket++;
+        }
+        this.histogram[bucket]++;
+    }
+}
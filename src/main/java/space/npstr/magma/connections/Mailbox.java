@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+/**
+ * A small actor style mailbox: any thread may post messages, and the handler processes them one after another, in
+ * posting order, on a shared {@link Scheduler}. Nothing runs and no thread is held while the mailbox is empty.
+ * <p>
+ * Meant for objects that exist once per guild, where a {@code UnicastProcessor} with a {@code publishOn} and a
+ * subscriber costs several objects with their own queues and a worker each. A mailbox is a single object holding a
+ * multi producer single consumer linked queue, after Dmitry Vyukov's non-intrusive MPSC node based queue.
+ * <p>
+ * A handler that throws is logged, and does not stop the messages posted after it.
+ */
+public class Mailbox<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(Mailbox.class);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Mailbox, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(Mailbox.class, Node.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Mailbox> WIP =
+            AtomicIntegerFieldUpdater.newUpdater(Mailbox.class, "wip");
+
+    private final Consumer<? super T> handler;
+    private final Scheduler scheduler;
+
+    // consumer side, only touched by the draining thread. points to the node whose successor is polled next
+    private Node<T> head;
+    // producer side, swapped by posting threads
+    private volatile Node<T> tail;
+    // amount of posted messages not yet accounted for by a drain
+    private volatile int wip;
+    private volatile boolean disposed;
+    // the thread currently draining, if any
+    @Nullable
+    private volatile Thread drainingThread;
+
+    public Mailbox(final Consumer<? super T> handler) {
+        this(handler, Schedulers.parallel());
+    }
+
+    public Mailbox(final Consumer<? super T> handler, final Scheduler scheduler) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+        final Node<T> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = stub;
+    }
+
+    /**
+     * Post a message to be handled. Messages posted to a disposed mailbox are dropped.
+     */
+    public void post(final T message) {
+        if (this.disposed) {
+            return;
+        }
+        final Node<T> node = new Node<>(message);
+        @SuppressWarnings("unchecked") final Node<T> previous = TAIL.getAndSet(this, node);
+        previous.next = node;
+        this.signal();
+    }
+
+    /**
+     * Account for a message that has been linked into a queue of this mailbox, and start draining if nobody else is.
+     * Only called once the message is linked, so that the drain that accounts for it is guaranteed to see it.
+     */
+    final void signal() {
+        if (WIP.getAndIncrement(this) == 0) {
+            this.scheduler.schedule(this::drain);
+        }
+    }
+
+    /**
+     * Only called by the draining thread.
+     *
+     * @return the next message to handle, or null if there is none
+     */
+    @Nullable
+    T poll() {
+        final Node<T> next = this.head.next;
+        if (next == null) {
+            return null;
+        }
+        final T message = next.value;
+        // the polled node becomes the new stub, drop its value so it can be collected
+        next.value = null;
+        this.head = next;
+        return message;
+    }
+
+    /**
+     * @return true if the calling thread is currently handling a message of this mailbox
+     */
+    public boolean isInContext() {
+        return this.drainingThread == Thread.currentThread();
+    }
+
+    /**
+     * Stop handling messages. Messages that are already queued are dropped, and so are messages posted later.
+     */
+    public void dispose() {
+        this.disposed = true;
+    }
+
+    public boolean isDisposed() {
+        return this.disposed;
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            this.drainingThread = Thread.currentThread();
+            T message;
+            while ((message = this.poll()) != null) {
+                if (!this.disposed) {
+                    this.handleSafely(message);
+                }
+            }
+            // clear before giving up the queue, so it can never overwrite the marker of the next draining thread
+            this.drainingThread = null;
+            missed = WIP.addAndGet(this, -missed);
+        } while (missed != 0);
+    }
+
+    final void handleSafely(final T message) {
+        try {
+            this.handler.accept(message);
+        } catch (final Exception e) {
+            log.error("Uncaught exception when handling message {}", message, e);
+        }
+    }
+
+    static final class Node<T> {
+        @Nullable
+        T value;
+        @Nullable
+        volatile Node<T> next;
+
+        Node(@Nullable final T value) {
+            this.value = value;
+        }
+    }
+}
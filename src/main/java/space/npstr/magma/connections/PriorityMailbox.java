@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Mailbox} with a second queue for urgent messages. Whenever the handler is ready for the next message, it
+ * takes the oldest urgent one if there is any, and only otherwise the oldest regular one. Both queues keep their own
+ * posting order, but an urgent message overtakes all regular messages that are still queued.
+ */
+public class PriorityMailbox<T> extends Mailbox<T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<PriorityMailbox, Node> URGENT_TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(PriorityMailbox.class, Node.class, "urgentTail");
+
+    // consumer side, only touched by the draining thread
+    private Node<T> urgentHead;
+    // producer side, swapped by posting threads
+    private volatile Node<T> urgentTail;
+
+    public PriorityMailbox(final Consumer<? super T> handler) {
+        this(handler, Schedulers.parallel());
+    }
+
+    public PriorityMailbox(final Consumer<? super T> handler, final Scheduler scheduler) {
+        super(handler, scheduler);
+        final Node<T> stub = new Node<>(null);
+        this.urgentHead = stub;
+        this.urgentTail = stub;
+    }
+
+    /**
+     * Post a message to be handled before any regular message that is still queued. Messages posted to a disposed
+     * mailbox are dropped.
+     */
+    public void postUrgent(final T message) {
+        if (this.isDisposed()) {
+            return;
+        }
+        final Node<T> node = new Node<>(message);
+        @SuppressWarnings("unchecked") final Node<T> previous = URGENT_TAIL.getAndSet(this, node);
+        previous.next = node;
+        this.signal();
+    }
+
+    @Nullable
+    @Override
+    T poll() {
+        final Node<T> next = this.urgentHead.next;
+        if (next == null) {
+            return super.poll();
+        }
+        final T message = next.value;
+        next.value = null;
+        this.urgentHead = next;
+        return message;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+import space.npstr.magma.EncryptionMode;
+
+import java.net.InetSocketAddress;
+
+/**
+ * What packets of a connection are built and sent with. Immutable, a connection publishes a new instance whenever any
+ * of these change, so that the send thread sees all of them in one read and never a key that doesn't match the mode.
+ * <p>
+ * Not an immutables value on purpose: the secret key is read for every packet, and must not be copied each time.
+ */
+public final class SendParameters {
+
+    static final SendParameters EMPTY = new SendParameters(null, null, null, null, null, -1);
+
+    @Nullable
+    private final EncryptionMode encryptionMode;
+    @Nullable
+    private final byte[] secretKey;
+    @Nullable
+    private final Integer ssrc;
+    @Nullable
+    private final InetSocketAddress udpTargetAddress;
+    @Nullable
+    private final AudioSendHandler sendHandler;
+    private final long sendHandlerNanos;
+
+    private SendParameters(@Nullable final EncryptionMode encryptionMode, @Nullable final byte[] secretKey,
+                           @Nullable final Integer ssrc, @Nullable final InetSocketAddress udpTargetAddress,
+                           @Nullable final AudioSendHandler sendHandler, final long sendHandlerNanos) {
+        this.encryptionMode = encryptionMode;
+        this.secretKey = secretKey;
+        this.ssrc = ssrc;
+        this.udpTargetAddress = udpTargetAddress;
+        this.sendHandler = sendHandler;
+        this.sendHandlerNanos = sendHandlerNanos;
+    }
+
+    @Nullable
+    public EncryptionMode getEncryptionMode() {
+        return this.encryptionMode;
+    }
+
+    /**
+     * @return the key itself, not a copy. Don't modify it.
+     */
+    @Nullable
+    public byte[] getSecretKey() {
+        return this.secretKey;
+    }
+
+    @Nullable
+    public Integer getSsrc() {
+        return this.ssrc;
+    }
+
+    @Nullable
+    public InetSocketAddress getUdpTargetAddress() {
+        return this.udpTargetAddress;
+    }
+
+    @Nullable
+    public AudioSendHandler getSendHandler() {
+        return this.sendHandler;
+    }
+
+    /**
+     * @return System.nanoTime() of when the send handler was set, -1 if there is none
+     */
+    public long getSendHandlerNanos() {
+        return this.sendHandlerNanos;
+    }
+
+    SendParameters withEncryptionMode(@Nullable final EncryptionMode value) {
+        return new SendParameters(value, this.secretKey, this.ssrc, this.udpTargetAddress, this.sendHandler,
+                this.sendHandlerNanos);
+    }
+
+    SendParameters withSecretKey(@Nullable final byte[] value) {
+        return new SendParameters(this.encryptionMode, value, this.ssrc, this.udpTargetAddress, this.sendHandler,
+                this.sendHandlerNanos);
+    }
+
+    SendParameters withSsrc(@Nullable final Integer value) {
+        return new SendParameters(this.encryptionMode, this.secretKey, value, this.udpTargetAddress, this.sendHandler,
+                this.sendHandlerNanos);
+    }
+
+    SendParameters withUdpTargetAddress(@Nullable final InetSocketAddress value) {
+        return new SendParameters(this.encryptionMode, this.secretKey, this.ssrc, value, this.sendHandler,
+                this.sendHandlerNanos);
+    }
+
+    SendParameters withSendHandler(@Nullable final AudioSendHandler value) {
+        if (value == this.sendHandler) {
+            return this;
+        }
+        return new SendParameters(this.encryptionMode, this.secretKey, this.ssrc, this.udpTargetAddress, value,
+                value == null ? -1 : System.nanoTime());
+    }
+}
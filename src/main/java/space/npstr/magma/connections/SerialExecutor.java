@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks submitted to it one after another, in submission order, on a shared {@link Scheduler}. Each voice
+ * connection owns one of these for its websocket event handling and its connection state, so that both see a
+ * consistent state without locking.
+ * <p>
+ * Tasks submitted from within a running task are executed right away on the same thread instead of being queued,
+ * which lets the websocket handling update the connection state without another handoff.
+ * <p>
+ * A task that throws is logged, and does not stop the tasks queued after it.
+ */
+public class SerialExecutor extends Mailbox<Runnable> implements Executor {
+
+    public SerialExecutor() {
+        this(Schedulers.parallel());
+    }
+
+    public SerialExecutor(final Scheduler scheduler) {
+        super(Runnable::run, scheduler);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (this.isInContext()) {
+            this.handleSafely(task);
+            return;
+        }
+        this.post(task);
+    }
+}
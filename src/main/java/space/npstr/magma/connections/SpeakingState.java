@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import space.npstr.magma.SpeakingMode;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Whether we are speaking over a connection, as told to Discord with Speaking payloads.
+ * <p>
+ * Driven by the send thread on every poll. Speaking starts with the first packet that is sent, and only ends once
+ * nothing has been sent for {@link #RELEASE_NANOS}, so sources that pause for a few frames now and then don't make us
+ * toggle speaking back and forth. Each change is published exactly once: the state is switched with a compare and
+ * set, and only the thread that wins publishes it. Polls that don't change anything cost a volatile read.
+ */
+public class SpeakingState {
+
+    /**
+     * How long nothing has to be sent before speaking ends.
+     */
+    public static final long RELEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @FunctionalInterface
+    public interface Publisher {
+        void publish(int speakingMask, int ssrc);
+    }
+
+    private final Supplier<EnumSet<SpeakingMode>> speakingModes;
+    private final Publisher publisher;
+    private final AtomicBoolean speaking = new AtomicBoolean(false);
+    // only written by the send thread
+    private volatile long lastAudibleNanos = 0;
+
+    /**
+     * @param speakingModes
+     *         read whenever speaking starts
+     * @param publisher
+     *         sends a Speaking payload, may be called from any thread
+     */
+    public SpeakingState(final Supplier<EnumSet<SpeakingMode>> speakingModes, final Publisher publisher) {
+        this.speakingModes = speakingModes;
+        this.publisher = publisher;
+    }
+
+    public boolean isSpeaking() {
+        return this.speaking.get();
+    }
+
+    /**
+     * A packet is being sent.
+     */
+    public void audible(final int ssrc, final long nowNanos) {
+        this.lastAudibleNanos = nowNanos;
+        if (!this.speaking.get() && this.speaking.compareAndSet(false, true)) {
+            this.publisher.publish(SpeakingMode.toMask(this.speakingModes.get()), ssrc);
+        }
+    }
+
+    /**
+     * Nothing is being sent on this poll.
+     */
+    public void inaudible(final int ssrc, final long nowNanos) {
+        if (this.speaking.get()
+                && nowNanos - this.lastAudibleNanos >= RELEASE_NANOS
+                && this.speaking.compareAndSet(true, false)) {
+            this.publisher.publish(0, ssrc);
+        }
+    }
+
+    /**
+     * Stop speaking right away, for example because the connection is shutting down.
+     */
+    public void stop(final int ssrc) {
+        if (this.speaking.compareAndSet(true, false)) {
+            this.publisher.publish(0, ssrc);
+        }
+    }
+}
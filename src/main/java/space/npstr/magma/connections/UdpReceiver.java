@@ -0,0 +1,283 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import space.npstr.magma.AudioReceiveHandler;
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.Member;
+import space.npstr.magma.processing.JitterBuffer;
+import space.npstr.magma.processing.PacketDecryptor;
+import space.npstr.magma.processing.RtpHeader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads all packets arriving on the udp socket shared by the connections of a {@link space.npstr.magma.MagmaApi}
+ * instance, on a single thread, and hands them to where they belong:
+ * <ul>
+ * <li>Responses to the udp discovery go to the connection waiting for them, see {@link #awaitDiscovery}.</li>
+ * <li>Voice packets are routed by their source address and ssrc to the connections that have learned which user sends
+ * with that ssrc, see {@link #addRoute}. They are decrypted with the key of that connection and put in order per
+ * user, then passed to the {@link AudioReceiveHandler} of the connection, if it has one. Several bots in the same
+ * voice channel learn the same ssrc from the same voice server, and receive their packets on the same socket, so
+ * a packet is handed to the first of their connections whose key authenticates it.</li>
+ * </ul>
+ * Everything else is dropped. The packet, decryption and reordering buffers are reused, so handling a packet does not
+ * allocate any of them.
+ * <p>
+ * The socket stays in blocking mode, as the send systems send through it as well.
+ */
+public class UdpReceiver {
+
+    private static final Logger log = LoggerFactory.getLogger(UdpReceiver.class);
+
+    // larger than any voice packet
+    private static final int MAX_PACKET_LENGTH = 2048;
+    private static final int DISCOVERY_PACKET_LENGTH = 70;
+    // up to 8 frames of 20ms waited for a missing frame
+    private static final int JITTER_BUFFER_DEPTH = 8;
+
+    private final DatagramChannel channel;
+    // replaced as a whole when a route is added or removed, read by the receiving thread
+    private final ConcurrentHashMap<Long, Route[]> routes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Discovery> discoveries = new ConcurrentHashMap<>();
+
+    // only touched by the receiving thread
+    private final ByteBuffer packetBuffer = ByteBuffer.allocate(MAX_PACKET_LENGTH);
+    private final PacketDecryptor decryptor = new PacketDecryptor(MAX_PACKET_LENGTH);
+
+    public UdpReceiver(final DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Start receiving on a new thread, until the channel is closed.
+     */
+    public void start() {
+        final Thread thread = new Thread(this::receiveLoop, "magma-udp-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return completes with the discovery response sent by the address for the ssrc. Cancel it to stop waiting.
+     */
+    public CompletableFuture<byte[]> awaitDiscovery(final InetSocketAddress source, final int ssrc) {
+        final long key = key(source, ssrc);
+        final Discovery discovery = new Discovery(source);
+        this.discoveries.put(key, discovery);
+        discovery.response.whenComplete((packet, t) -> this.discoveries.remove(key, discovery));
+        return discovery.response;
+    }
+
+    /**
+     * Route the voice packets the address sends with the ssrc to the connection, next to any other connections they
+     * are routed to already.
+     */
+    public void addRoute(final InetSocketAddress source, final int ssrc, final String userId,
+                         final AudioConnection connection) {
+        final Route route = new Route(source, userId, connection);
+        this.routes.compute(key(source, ssrc), (key, routes) -> {
+            if (routes == null) {
+                return new Route[]{route};
+            }
+            final int index = indexOf(routes, connection);
+            final Route[] updated = Arrays.copyOf(routes, index < 0 ? routes.length + 1 : routes.length);
+            updated[index < 0 ? routes.length : index] = route;
+            return updated;
+        });
+    }
+
+    /**
+     * Stop routing the voice packets of the address and ssrc to the connection.
+     */
+    public void removeRoute(final InetSocketAddress source, final int ssrc, final AudioConnection connection) {
+        this.routes.computeIfPresent(key(source, ssrc), (key, routes) -> {
+            final int index = indexOf(routes, connection);
+            if (index < 0) {
+                return routes;
+            }
+            if (routes.length == 1) {
+                return null;
+            }
+            final Route[] updated = new Route[routes.length - 1];
+            System.arraycopy(routes, 0, updated, 0, index);
+            System.arraycopy(routes, index + 1, updated, index, updated.length - index);
+            return updated;
+        });
+    }
+
+    private static int indexOf(final Route[] routes, final AudioConnection connection) {
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].connection == connection) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // hashes of different addresses may collide, a route is only used if its address matches
+    private static long key(final InetSocketAddress source, final int ssrc) {
+        return (long) ssrc << 32 | source.hashCode() & 0xFFFFFFFFL;
+    }
+
+    private void receiveLoop() {
+        log.debug("Receiving on {}", this.channel.socket().getLocalSocketAddress());
+        final byte[] packet = this.packetBuffer.array();
+        while (this.channel.isOpen()) {
+            final SocketAddress source;
+            try {
+                ((Buffer) this.packetBuffer).clear();
+                source = this.channel.receive(this.packetBuffer);
+            } catch (final ClosedChannelException e) {
+                break;
+            } catch (final IOException e) {
+                log.warn("Failed to receive a udp packet", e);
+                continue;
+            }
+            if (!(source instanceof InetSocketAddress)) {
+                continue;
+            }
+            try {
+                this.handlePacket((InetSocketAddress) source, packet, this.packetBuffer.position());
+            } catch (final Exception e) {
+                log.error("Failed to handle udp packet from {}", source, e);
+            }
+        }
+        log.debug("Stopped receiving");
+    }
+
+    private void handlePacket(final InetSocketAddress source, final byte[] packet, final int length) {
+        if (length == DISCOVERY_PACKET_LENGTH && !this.discoveries.isEmpty()) {
+            final Discovery discovery = this.findDiscovery(source, packet);
+            if (discovery != null) {
+                discovery.response.complete(Arrays.copyOf(packet, length));
+                return;
+            }
+        }
+        if (!RtpHeader.isAudioPacket(packet, length)) {
+            return;
+        }
+        final Route[] routes = this.routes.get(key(source, RtpHeader.getSsrc(packet)));
+        if (routes == null) {
+            return;
+        }
+        for (final Route route : routes) {
+            if (route.source.equals(source) && route.receive(packet, length, this.decryptor)) {
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private Discovery findDiscovery(final InetSocketAddress source, final byte[] packet) {
+        // the response starts with the ssrc it is for
+        final Discovery discovery = this.discoveries.get(key(source, readInt(packet)));
+        if (discovery != null && discovery.source.equals(source)) {
+            return discovery;
+        }
+        // in case the voice server left it out, hand it to any discovery waiting for that voice server
+        for (final Discovery waiting : this.discoveries.values()) {
+            if (waiting.source.equals(source)) {
+                return waiting;
+            }
+        }
+        return null;
+    }
+
+    private static int readInt(final byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+
+    private static class Discovery {
+
+        private final InetSocketAddress source;
+        private final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+        private Discovery(final InetSocketAddress source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * Where the voice packets of one user on one connection go.
+     */
+    private static class Route implements JitterBuffer.FrameConsumer {
+
+        private final InetSocketAddress source;
+        private final String userId;
+        private final AudioConnection connection;
+        private final Member member;
+        // only touched by the receiving thread
+        private final JitterBuffer jitterBuffer = new JitterBuffer(JITTER_BUFFER_DEPTH, MAX_PACKET_LENGTH);
+        @Nullable
+        private AudioReceiveHandler handler;
+
+        private Route(final InetSocketAddress source, final String userId, final AudioConnection connection) {
+            this.source = source;
+            this.userId = userId;
+            this.connection = connection;
+            this.member = connection.getMember();
+        }
+
+        /**
+         * @return true if the packet was meant for this route, false if it should be tried with the next one
+         */
+        private boolean receive(final byte[] packet, final int length, final PacketDecryptor decryptor) {
+            final AudioReceiveHandler receiveHandler = this.connection.getReceiveHandler();
+            final SendParameters parameters = this.connection.getSendParameters();
+            final EncryptionMode encryptionMode = parameters.getEncryptionMode();
+            final byte[] secretKey = parameters.getSecretKey();
+            if (receiveHandler == null || encryptionMode == null || secretKey == null) {
+                return false;
+            }
+            if (!decryptor.decrypt(packet, length, encryptionMode, secretKey)) {
+                log.trace("Voice packet of user {} failed to decrypt with the key of {}", this.userId, this.member);
+                return false;
+            }
+            this.handler = receiveHandler;
+            this.jitterBuffer.offer(RtpHeader.getSequence(packet), RtpHeader.getTimestamp(packet),
+                    decryptor.getBuffer(), decryptor.getPayloadOffset(), decryptor.getPayloadLength(), this);
+            return true;
+        }
+
+        @Override
+        public void accept(final char sequence, final int timestamp, final ByteBuffer frame) {
+            final AudioReceiveHandler receiveHandler = this.handler;
+            if (receiveHandler == null) {
+                return;
+            }
+            try {
+                receiveHandler.handleOpusFrame(this.member, this.userId, sequence, timestamp, frame);
+            } catch (final Exception e) {
+                log.error("Uncaught exception in audio receive handler", e);
+            }
+        }
+    }
+}
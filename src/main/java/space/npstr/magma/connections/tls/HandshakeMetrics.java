@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections.tls;
+
+import space.npstr.magma.MagmaTlsHandshakeStats;
+import space.npstr.magma.TlsHandshakeStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the durations of TLS handshakes, split into full and resumed ones.
+ */
+public class HandshakeMetrics {
+
+    private final LongAdder fullCount = new LongAdder();
+    private final LongAdder fullNanos = new LongAdder();
+    private final LongAccumulator fullMaxNanos = new LongAccumulator(Long::max, 0);
+
+    private final LongAdder resumedCount = new LongAdder();
+    private final LongAdder resumedNanos = new LongAdder();
+    private final LongAccumulator resumedMaxNanos = new LongAccumulator(Long::max, 0);
+
+    public void record(final boolean resumed, final long durationNanos) {
+        if (resumed) {
+            this.resumedCount.increment();
+            this.resumedNanos.add(durationNanos);
+            this.resumedMaxNanos.accumulate(durationNanos);
+        } else {
+            this.fullCount.increment();
+            this.fullNanos.add(durationNanos);
+            this.fullMaxNanos.accumulate(durationNanos);
+        }
+    }
+
+    public TlsHandshakeStats getStats() {
+        final long full = this.fullCount.sum();
+        final long resumed = this.resumedCount.sum();
+        return MagmaTlsHandshakeStats.builder()
+                .fullHandshakes(full)
+                .fullHandshakeAverageMillis(averageMillis(this.fullNanos.sum(), full))
+                .fullHandshakeMaxMillis(TimeUnit.NANOSECONDS.toMillis(this.fullMaxNanos.get()))
+                .resumedHandshakes(resumed)
+                .resumedHandshakeAverageMillis(averageMillis(this.resumedNanos.sum(), resumed))
+                .resumedHandshakeMaxMillis(TimeUnit.NANOSECONDS.toMillis(this.resumedMaxNanos.get()))
+                .build();
+    }
+
+    private static double averageMillis(final long totalNanos, final long count) {
+        if (count == 0) {
+            return 0;
+        }
+        return (double) totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
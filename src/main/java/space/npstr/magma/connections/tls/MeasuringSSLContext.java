@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections.tls;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * An {@link SSLContext} meant to be shared by all voice websocket connections, so that their TLS sessions end up in
+ * the same client session cache. JSSE keys that cache by peer host and port, which means a reconnect to the same
+ * voice endpoint can resume the cached session with an abbreviated handshake instead of doing a full one.
+ * <p>
+ * The engines created by this context report the duration of their handshakes to a {@link HandshakeMetrics}.
+ */
+public class MeasuringSSLContext extends SSLContext {
+
+    private MeasuringSSLContext(final SSLContext delegate, final HandshakeMetrics metrics) {
+        super(new MeasuringSpi(delegate, metrics), delegate.getProvider(), delegate.getProtocol());
+    }
+
+    /**
+     * @param cacheSize
+     *         maximum amount of client sessions kept for resumption
+     * @param sessionTimeoutSeconds
+     *         time after which a cached client session can no longer be resumed
+     */
+    public static SSLContext create(final HandshakeMetrics metrics, final int cacheSize,
+                                    final int sessionTimeoutSeconds) throws GeneralSecurityException {
+        final SSLContext delegate = SSLContext.getInstance("TLS");
+        delegate.init(null, null, null);
+        final SSLSessionContext clientSessions = delegate.getClientSessionContext();
+        clientSessions.setSessionCacheSize(cacheSize);
+        clientSessions.setSessionTimeout(sessionTimeoutSeconds);
+        return new MeasuringSSLContext(delegate, metrics);
+    }
+
+    private static class MeasuringSpi extends SSLContextSpi {
+
+        private final SSLContext delegate;
+        private final HandshakeMetrics metrics;
+
+        private MeasuringSpi(final SSLContext delegate, final HandshakeMetrics metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void engineInit(final KeyManager[] km, final TrustManager[] tm, final SecureRandom sr) {
+            throw new IllegalStateException("Context is initialized on creation");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return this.delegate.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return this.delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new MeasuringSSLEngine(this.delegate.createSSLEngine(), this.metrics);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(final String host, final int port) {
+            return new MeasuringSSLEngine(this.delegate.createSSLEngine(host, port), this.metrics);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return this.delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return this.delegate.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            return this.delegate.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return this.delegate.getSupportedSSLParameters();
+        }
+    }
+}
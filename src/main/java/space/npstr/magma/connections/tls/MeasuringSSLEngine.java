@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections.tls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+
+/**
+ * Delegates everything to the wrapped engine, and measures the time from the first handshake activity until the
+ * engine reports the handshake as finished.
+ * <p>
+ * JSSE does not tell whether a handshake resumed a session. A resumed session was created by an earlier handshake,
+ * so it is treated as resumed when its creation time lies before the start of this handshake.
+ */
+class MeasuringSSLEngine extends SSLEngine {
+
+    private final SSLEngine delegate;
+    private final HandshakeMetrics metrics;
+
+    // wrap and unwrap may be driven from different threads
+    private volatile long handshakeStartNanos = -1;
+    private volatile long handshakeStartMillis = -1;
+    private volatile boolean recorded = false;
+
+    MeasuringSSLEngine(final SSLEngine delegate, final HandshakeMetrics metrics) {
+        super(delegate.getPeerHost(), delegate.getPeerPort());
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length, final ByteBuffer dst)
+            throws SSLException {
+        this.handshakeStarted();
+        return this.measure(this.delegate.wrap(srcs, offset, length, dst));
+    }
+
+    @Override
+    public SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dsts, final int offset, final int length)
+            throws SSLException {
+        this.handshakeStarted();
+        return this.measure(this.delegate.unwrap(src, dsts, offset, length));
+    }
+
+    @Override
+    public void beginHandshake() throws SSLException {
+        this.handshakeStarted();
+        this.delegate.beginHandshake();
+    }
+
+    private void handshakeStarted() {
+        if (this.handshakeStartNanos < 0) {
+            synchronized (this) {
+                if (this.handshakeStartNanos < 0) {
+                    this.handshakeStartMillis = System.currentTimeMillis();
+                    this.handshakeStartNanos = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    private SSLEngineResult measure(final SSLEngineResult result) {
+        if (!this.recorded && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            synchronized (this) {
+                if (!this.recorded) {
+                    this.recorded = true;
+                    final boolean resumed = this.delegate.getSession().getCreationTime() < this.handshakeStartMillis;
+                    this.metrics.record(resumed, System.nanoTime() - this.handshakeStartNanos);
+                }
+            }
+        }
+        return result;
+    }
+
+    // ################################################################################
+    // #                            Plain delegation
+    // ################################################################################
+
+    @Override
+    public Runnable getDelegatedTask() {
+        return this.delegate.getDelegatedTask();
+    }
+
+    @Override
+    public void closeInbound() throws SSLException {
+        this.delegate.closeInbound();
+    }
+
+    @Override
+    public boolean isInboundDone() {
+        return this.delegate.isInboundDone();
+    }
+
+    @Override
+    public void closeOutbound() {
+        this.delegate.closeOutbound();
+    }
+
+    @Override
+    public boolean isOutboundDone() {
+        return this.delegate.isOutboundDone();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return this.delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return this.delegate.getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(final String[] suites) {
+        this.delegate.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return this.delegate.getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return this.delegate.getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(final String[] protocols) {
+        this.delegate.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public SSLSession getSession() {
+        return this.delegate.getSession();
+    }
+
+    @Override
+    public SSLSession getHandshakeSession() {
+        return this.delegate.getHandshakeSession();
+    }
+
+    @Override
+    public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+        return this.delegate.getHandshakeStatus();
+    }
+
+    @Override
+    public void setUseClientMode(final boolean mode) {
+        this.delegate.setUseClientMode(mode);
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return this.delegate.getUseClientMode();
+    }
+
+    @Override
+    public void setNeedClientAuth(final boolean need) {
+        this.delegate.setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return this.delegate.getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(final boolean want) {
+        this.delegate.setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return this.delegate.getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(final boolean flag) {
+        this.delegate.setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return this.delegate.getEnableSessionCreation();
+    }
+
+    @Override
+    public SSLParameters getSSLParameters() {
+        return this.delegate.getSSLParameters();
+    }
+
+    @Override
+    public void setSSLParameters(final SSLParameters params) {
+        this.delegate.setSSLParameters(params);
+    }
+}
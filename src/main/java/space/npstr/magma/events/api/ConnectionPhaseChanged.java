@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.api;
+
+import org.immutables.value.Value;
+import space.npstr.magma.Member;
+import space.npstr.magma.WebsocketConnectionState;
+import space.npstr.magma.immutables.ImmutableApiEvent;
+
+/**
+ * This event is fired whenever the websocket connection of a member changes its
+ * {@link WebsocketConnectionState.Phase Phase}. During a make-before-break voice server migration the old and the new
+ * connection of the same member both report their changes, they can be told apart by their endpoint.
+ */
+@SuppressWarnings("unused")
+@Value.Immutable
+@ImmutableApiEvent
+public abstract class ConnectionPhaseChanged implements MagmaEvent {
+
+    public abstract Member getMember();
+
+    /**
+     * @return endpoint of the voice server the connection goes to
+     */
+    public abstract String getEndpoint();
+
+    public abstract WebsocketConnectionState.Phase getPreviousPhase();
+
+    public abstract WebsocketConnectionState.Phase getPhase();
+}
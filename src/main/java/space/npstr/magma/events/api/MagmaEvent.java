@@ -16,7 +16,15 @@
 
 package space.npstr.magma.events.api;
 
+import space.npstr.magma.Member;
+
 /**
  * Base interface of API events
  */
-public interface MagmaEvent {}
+public interface MagmaEvent {
+
+    /**
+     * @return the bot member whose connection this event is about
+     */
+    Member getMember();
+}
@@ -16,27 +16,23 @@
 
 package space.npstr.magma.events.audio.conn;
 
-import space.npstr.magma.SpeakingMode;
-
-import java.util.EnumSet;
-
 /**
- * Created by napster on 21.06.18.
+ * A user in the voice channel is sending audio with this ssrc.
  */
-public class UpdateSpeaking implements ConnectionEvent {
-    private final boolean shouldSpeak;
-    private final EnumSet<SpeakingMode> modes;
+public class MapSsrc implements ConnectionEvent {
+    private final String userId;
+    private final int ssrc;
 
-    public UpdateSpeaking(boolean shouldSpeak, EnumSet<SpeakingMode> modes) {
-        this.shouldSpeak = shouldSpeak;
-        this.modes = modes;
+    public MapSsrc(final String userId, final int ssrc) {
+        this.userId = userId;
+        this.ssrc = ssrc;
     }
 
-    public boolean shouldSpeak() {
-        return this.shouldSpeak;
+    public String getUserId() {
+        return this.userId;
     }
 
-    public int getSpeakingMode() {
-        return shouldSpeak ? SpeakingMode.toMask(modes) : 0;
+    public int getSsrc() {
+        return this.ssrc;
     }
 }
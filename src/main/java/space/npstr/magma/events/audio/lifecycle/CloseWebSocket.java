@@ -20,6 +20,9 @@ import org.immutables.value.Value;
 import space.npstr.magma.Member;
 import space.npstr.magma.events.api.WebSocketClosed;
 import space.npstr.magma.immutables.ImmutableLcEvent;
+import space.npstr.magma.immutables.SessionInfo;
+
+import java.util.Optional;
 
 /**
  * Created by napster on 24.04.18.
@@ -33,4 +36,10 @@ public abstract class CloseWebSocket implements LifecycleEvent {
 
     public abstract WebSocketClosed getApiEvent();
 
+    /**
+     * @return session of the connection that has been closed, empty if the close was requested without a specific
+     * connection in mind, for example by user code
+     */
+    public abstract Optional<SessionInfo> getSessionInfo();
+
 }
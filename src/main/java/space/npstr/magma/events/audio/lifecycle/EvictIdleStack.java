@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.lifecycle;
+
+import org.immutables.value.Value;
+import space.npstr.magma.Member;
+import space.npstr.magma.immutables.ImmutableLcEvent;
+
+/**
+ * Internal event, scheduled when an audio stack has become idle. If the stack has stayed idle since then, the
+ * pipeline removes it.
+ */
+@Value.Immutable
+@ImmutableLcEvent
+public abstract class EvictIdleStack implements LifecycleEvent {
+
+    @Override
+    public abstract Member getMember();
+
+    /**
+     * @return marker of the idle period this eviction was scheduled for. Any event handled by the stack afterwards
+     * ends that period.
+     */
+    public abstract long getIdleMark();
+}
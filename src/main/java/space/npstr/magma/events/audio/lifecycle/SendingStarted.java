@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.events.audio.lifecycle;
+
+import org.immutables.value.Value;
+import space.npstr.magma.Member;
+import space.npstr.magma.immutables.ImmutableLcEvent;
+import space.npstr.magma.immutables.SessionInfo;
+
+/**
+ * Emitted by a connection once its send system has been started, or has been taken over in a voice server migration.
+ */
+@Value.Immutable
+@ImmutableLcEvent
+public abstract class SendingStarted implements LifecycleEvent {
+
+    @Override
+    public Member getMember() {
+        return this.getSessionInfo().getVoiceServerUpdate().getMember();
+    }
+
+    public abstract SessionInfo getSessionInfo();
+
+}
@@ -20,6 +20,8 @@ import org.immutables.value.Value;
 import space.npstr.magma.events.audio.ws.OpCode;
 import space.npstr.magma.immutables.ImmutableWsEvent;
 
+import java.util.Optional;
+
 /**
  * Created by napster on 21.04.18.
  */
@@ -32,4 +34,9 @@ public abstract class ClientDisconnect implements InboundWsEvent {
         return OpCode.CLIENT_DISCONNECT;
     }
 
+    /**
+     * @return the user that left the voice channel
+     */
+    public abstract Optional<String> getUserId();
+
 }
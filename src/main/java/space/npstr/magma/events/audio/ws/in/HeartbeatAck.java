@@ -20,6 +20,8 @@ import org.immutables.value.Value;
 import space.npstr.magma.events.audio.ws.OpCode;
 import space.npstr.magma.immutables.ImmutableWsEvent;
 
+import java.util.OptionalInt;
+
 /**
  * Created by napster on 21.04.18.
  */
@@ -32,4 +34,9 @@ public abstract class HeartbeatAck implements InboundWsEvent {
         return OpCode.HEARTBEAT_ACK;
     }
 
+    /**
+     * @return the nonce of the heartbeat that is being acknowledged, if Discord echoed it back to us
+     */
+    public abstract OptionalInt getNonce();
+
 }
@@ -26,6 +26,7 @@ import space.npstr.magma.events.audio.ws.WsEvent;
 import space.npstr.magma.events.audio.ws.out.OutboundWsEvent;
 
 import java.util.Optional;
+import java.util.OptionalInt;
 
 /**
  * Created by napster on 20.04.18.
@@ -86,7 +87,9 @@ public interface InboundWsEvent extends WsEvent {
                         .ssrc(speakingD.getInt("ssrc"))
                         .build();
             case OpCode.HEARTBEAT_ACK:
+                final Object ackD = content.opt("d");
                 return HeartbeatAckWsEvent.builder()
+                        .nonce(ackD instanceof Number ? OptionalInt.of(((Number) ackD).intValue()) : OptionalInt.empty())
                         .build();
             case OpCode.RESUMED:
                 return ResumedWsEvent.builder()
@@ -98,7 +101,9 @@ public interface InboundWsEvent extends WsEvent {
                         .payload(payload)
                         .build();
             case OpCode.CLIENT_DISCONNECT:
+                final JSONObject clientDisconnectD = content.optJSONObject("d");
                 return ClientDisconnectWsEvent.builder()
+                        .userId(Optional.ofNullable(clientDisconnectD).map(d -> d.optString("user_id", null)))
                         .build();
             case OpCode.WEBSOCKET_CLOSE:
                 final JSONObject closedD = content.getJSONObject("d");
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The checksum of Ogg pages: CRC-32 with the polynomial 0x04c11db7, no reflection, an initial value of zero and no
+ * final xor.
+ */
+final class OggCrc {
+
+    private static final int POLYNOMIAL = 0x04c11db7;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int remainder = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                remainder = (remainder & 0x80000000) != 0 ? remainder << 1 ^ POLYNOMIAL : remainder << 1;
+            }
+            TABLE[i] = remainder;
+        }
+    }
+
+    private OggCrc() {
+    }
+
+    static int update(int crc, final byte[] data, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc << 8 ^ TABLE[(crc >>> 24 ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    static int update(int crc, final ByteBuffer data, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc << 8 ^ TABLE[(crc >>> 24 ^ data.get(i)) & 0xFF];
+        }
+        return crc;
+    }
+}
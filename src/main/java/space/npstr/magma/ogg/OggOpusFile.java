@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An Ogg Opus file (RFC 7845) mapped into memory, with an index of its audio packets.
+ * <p>
+ * The pages are read and checked once, when the file is opened. Afterwards, packets are handed out as slices of the
+ * mapping, so playing the file copies nothing onto the heap. The rare packets that continue over a page boundary are
+ * joined into a heap buffer while indexing. Instances are immutable and can be read by any amount of threads at once.
+ * <p>
+ * Only the first logical stream of the file is indexed; pages of other streams are skipped. The mapping is released
+ * once the instance has been garbage collected, there is no way to unmap it earlier.
+ */
+public final class OggOpusFile {
+
+    private static final int PAGE_HEADER_LENGTH = 27;
+    private static final int CRC_OFFSET = 22;
+    private static final int FLAG_CONTINUED = 0x01;
+    private static final int FLAG_BEGINNING_OF_STREAM = 0x02;
+    private static final int CAPTURE_PATTERN = 0x5367674F; // "OggS", little endian
+    private static final byte[] CRC_PLACEHOLDER = new byte[4];
+    private static final long OPUS_HEAD = 0x646165487375704FL; // "OpusHead", little endian
+    // the identification and comment headers
+    private static final int HEADER_PACKETS = 2;
+
+    private final ByteBuffer mapping;
+    // offset and length in the mapping of every audio packet
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int packetCount;
+    // packets that continue over a page boundary, by index
+    private final Map<Integer, ByteBuffer> joinedPackets;
+    private final int channelCount;
+    private final int preSkip;
+
+    /**
+     * Map and index the file.
+     *
+     * @throws IOException
+     *         if the file can not be read, is larger than 2GB, or is not a valid Ogg Opus file
+     */
+    public static OggOpusFile open(final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " of " + size + " bytes is too large to be mapped");
+            }
+            // the mapping stays valid after the channel has been closed
+            return new OggOpusFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Index an Ogg Opus stream that is already in memory. The buffer is used between its position and limit, and must
+     * not be changed afterwards.
+     *
+     * @throws IOException
+     *         if the buffer does not hold a valid Ogg Opus stream
+     */
+    public static OggOpusFile of(final ByteBuffer data) throws IOException {
+        return new OggOpusFile(data.slice());
+    }
+
+    private OggOpusFile(final ByteBuffer mapping) throws IOException {
+        this.mapping = mapping.order(ByteOrder.LITTLE_ENDIAN);
+        final Indexer indexer = new Indexer(this.mapping);
+        indexer.indexPages();
+        if (indexer.count < HEADER_PACKETS) {
+            throw new IOException("Stream ends before its headers");
+        }
+        final ByteBuffer head = indexer.packet(0);
+        if (head.remaining() < 19 || head.getLong(0) != OPUS_HEAD) {
+            throw new IOException("Stream is not an opus stream");
+        }
+        this.channelCount = head.get(9) & 0xFF;
+        this.preSkip = head.getShort(10) & 0xFFFF;
+
+        this.packetCount = indexer.count - HEADER_PACKETS;
+        this.offsets = Arrays.copyOfRange(indexer.offsets, HEADER_PACKETS, indexer.count);
+        this.lengths = Arrays.copyOfRange(indexer.lengths, HEADER_PACKETS, indexer.count);
+        final Map<Integer, ByteBuffer> joined = new HashMap<>();
+        indexer.joined.forEach((index, packet) -> {
+            if (index >= HEADER_PACKETS) {
+                joined.put(index - HEADER_PACKETS, packet);
+            }
+        });
+        this.joinedPackets = joined.isEmpty() ? Collections.emptyMap() : joined;
+    }
+
+    /**
+     * @return amount of audio packets, not counting the headers
+     */
+    public int getPacketCount() {
+        return this.packetCount;
+    }
+
+    /**
+     * @return a read only buffer holding the audio packet at the index, between position zero and its limit. Every
+     * call returns a new buffer, so callers may move its position freely.
+     */
+    public ByteBuffer getPacket(final int index) {
+        if (index < 0 || index >= this.packetCount) {
+            throw new IndexOutOfBoundsException("Packet " + index + " of " + this.packetCount);
+        }
+        final ByteBuffer joined = this.joinedPackets.get(index);
+        if (joined != null) {
+            return joined.asReadOnlyBuffer();
+        }
+        final ByteBuffer packet = this.mapping.asReadOnlyBuffer();
+        ((Buffer) packet).limit(this.offsets[index] + this.lengths[index]).position(this.offsets[index]);
+        return packet.slice();
+    }
+
+    public int getChannelCount() {
+        return this.channelCount;
+    }
+
+    /**
+     * @return samples to discard from the start of the decoded audio
+     */
+    public int getPreSkip() {
+        return this.preSkip;
+    }
+
+    /**
+     * Walks the pages once and collects the packets of the first stream.
+     */
+    private static class Indexer {
+        private final ByteBuffer data;
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private int count = 0;
+        private final Map<Integer, ByteBuffer> joined = new HashMap<>();
+
+        // the packet being collected
+        private int packetOffset = -1;
+        private int packetLength = 0;
+        // parts of a packet continuing over a page boundary
+        private final ByteArrayOutputStream parts = new ByteArrayOutputStream();
+        private boolean continuing = false;
+
+        private Indexer(final ByteBuffer data) {
+            this.data = data;
+        }
+
+        private void indexPages() throws IOException {
+            int serial = 0;
+            boolean first = true;
+            int pageOffset = 0;
+            while (pageOffset < this.data.limit()) {
+                if (this.data.limit() - pageOffset < PAGE_HEADER_LENGTH
+                        || this.data.getInt(pageOffset) != CAPTURE_PATTERN) {
+                    throw new IOException("No Ogg page at offset " + pageOffset);
+                }
+                final int flags = this.data.get(pageOffset + 5);
+                final int pageSerial = this.data.getInt(pageOffset + 14);
+                final int segmentCount = this.data.get(pageOffset + 26) & 0xFF;
+                final int bodyOffset = pageOffset + PAGE_HEADER_LENGTH + segmentCount;
+                int bodyLength = 0;
+                for (int i = 0; i < segmentCount && bodyOffset <= this.data.limit(); i++) {
+                    bodyLength += this.data.get(pageOffset + PAGE_HEADER_LENGTH + i) & 0xFF;
+                }
+                final int pageEnd = bodyOffset + bodyLength;
+                if (pageEnd > this.data.limit()) {
+                    throw new IOException("Truncated Ogg page at offset " + pageOffset);
+                }
+                this.checkCrc(pageOffset, pageEnd);
+
+                if (first) {
+                    if ((flags & FLAG_BEGINNING_OF_STREAM) == 0) {
+                        throw new IOException("Stream does not start with a beginning of stream page");
+                    }
+                    serial = pageSerial;
+                    first = false;
+                }
+                if (pageSerial == serial) {
+                    this.indexPage(pageOffset, segmentCount, bodyOffset, (flags & FLAG_CONTINUED) != 0);
+                }
+                pageOffset = pageEnd;
+            }
+        }
+
+        private void checkCrc(final int pageOffset, final int pageEnd) throws IOException {
+            int crc = OggCrc.update(0, this.data, pageOffset, CRC_OFFSET);
+            crc = OggCrc.update(crc, CRC_PLACEHOLDER, 0, CRC_PLACEHOLDER.length);
+            final int afterCrc = pageOffset + CRC_OFFSET + CRC_PLACEHOLDER.length;
+            crc = OggCrc.update(crc, this.data, afterCrc, pageEnd - afterCrc);
+            if (crc != this.data.getInt(pageOffset + CRC_OFFSET)) {
+                throw new IOException("Checksum mismatch of Ogg page at offset " + pageOffset);
+            }
+        }
+
+        private void indexPage(final int pageOffset, final int segmentCount, final int bodyOffset,
+                               final boolean continued) {
+            if (!continued && this.continuing) {
+                // the rest of the packet went missing, drop what we have of it
+                this.parts.reset();
+                this.continuing = false;
+            }
+            // a continuation without its start is skipped up to the end of the packet
+            boolean skipping = continued && !this.continuing;
+            int segmentOffset = bodyOffset;
+            this.packetOffset = bodyOffset;
+            this.packetLength = 0;
+            for (int i = 0; i < segmentCount; i++) {
+                final int segmentLength = this.data.get(pageOffset + PAGE_HEADER_LENGTH + i) & 0xFF;
+                segmentOffset += segmentLength;
+                this.packetLength += segmentLength;
+                if (segmentLength < 255) {
+                    if (!skipping) {
+                        this.finishPacket();
+                    }
+                    skipping = false;
+                    this.packetOffset = segmentOffset;
+                    this.packetLength = 0;
+                }
+            }
+            if (this.packetLength > 0 && !skipping) {
+                // the packet continues on the next page
+                this.appendPart();
+                this.continuing = true;
+            }
+        }
+
+        private void finishPacket() {
+            if (this.continuing) {
+                this.appendPart();
+                this.add(-1, 0);
+                this.joined.put(this.count - 1, ByteBuffer.wrap(this.parts.toByteArray()));
+                this.parts.reset();
+                this.continuing = false;
+            } else {
+                this.add(this.packetOffset, this.packetLength);
+            }
+        }
+
+        private void appendPart() {
+            for (int i = this.packetOffset; i < this.packetOffset + this.packetLength; i++) {
+                this.parts.write(this.data.get(i));
+            }
+        }
+
+        private void add(final int offset, final int length) {
+            if (this.count == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+                this.lengths = Arrays.copyOf(this.lengths, this.count * 2);
+            }
+            this.offsets[this.count] = offset;
+            this.lengths[this.count] = length;
+            this.count++;
+        }
+
+        private ByteBuffer packet(final int index) {
+            final ByteBuffer joinedPacket = this.joined.get(index);
+            if (joinedPacket != null) {
+                return joinedPacket.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            final ByteBuffer packet = this.data.duplicate();
+            ((Buffer) packet).limit(this.offsets[index] + this.lengths[index]).position(this.offsets[index]);
+            return packet.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
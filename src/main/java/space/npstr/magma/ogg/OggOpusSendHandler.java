@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays an {@link OggOpusFile} once, one packet per call of {@link #provide20MsAudio()}. The packets are handed out
+ * as slices of the mapped file, so any amount of handlers can play the same file at the same time without copying
+ * it.
+ * <p>
+ * Packets longer than 20ms are paced by the connection, see {@link space.npstr.magma.processing.PacketProvider}.
+ * Seeking may happen from any thread.
+ */
+public class OggOpusSendHandler implements AudioSendHandler {
+
+    private final OggOpusFile file;
+    private final AtomicInteger position = new AtomicInteger();
+
+    public OggOpusSendHandler(final OggOpusFile file) {
+        this(file, 0);
+    }
+
+    /**
+     * @param startFrame
+     *         index of the first packet to play
+     */
+    public OggOpusSendHandler(final OggOpusFile file, final int startFrame) {
+        this.file = file;
+        this.seek(startFrame);
+    }
+
+    @Override
+    public boolean canProvide() {
+        return this.position.get() < this.file.getPacketCount();
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer provide20MsAudio() {
+        int current;
+        do {
+            current = this.position.get();
+            if (current >= this.file.getPacketCount()) {
+                return null;
+            }
+        } while (!this.position.compareAndSet(current, current + 1)); // lost against a seek
+        return this.file.getPacket(current);
+    }
+
+    @Override
+    public boolean isOpus() {
+        return true;
+    }
+
+    /**
+     * Continue playing at the packet with the index, which is clamped to the packets of the file. Seeking to the
+     * packet count ends playback.
+     */
+    public void seek(final int frame) {
+        this.position.set(Math.max(0, Math.min(frame, this.file.getPacketCount())));
+    }
+
+    /**
+     * @return index of the next packet to be played
+     */
+    public int getPosition() {
+        return this.position.get();
+    }
+
+    public OggOpusFile getFile() {
+        return this.file;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a single Ogg Opus stream (RFC 7845) of already encoded opus packets to a channel.
+ * <p>
+ * Packets are collected into pages, and the pages into a buffer, which is written to the channel only when it is full
+ * or when {@link #flush()} is called, so the channel sees few large writes. Not thread safe.
+ */
+public class OggOpusWriter {
+
+    public static final int OPUS_SAMPLE_RATE = 48000;
+
+    private static final int PAGE_HEADER_LENGTH = 27;
+    private static final int MAX_SEGMENTS = 255;
+    private static final int MAX_SEGMENT_LENGTH = 255;
+    private static final int MAX_PAGE_LENGTH = PAGE_HEADER_LENGTH + MAX_SEGMENTS + MAX_SEGMENTS * MAX_SEGMENT_LENGTH;
+    private static final int CRC_OFFSET = 22;
+
+    private static final int FLAG_BEGINNING_OF_STREAM = 0x02;
+    private static final int FLAG_END_OF_STREAM = 0x04;
+
+    private static final byte[] CAPTURE_PATTERN = "OggS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPUS_HEAD = "OpusHead".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPUS_TAGS = "OpusTags".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VENDOR = "Magma".getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final int serial;
+    // finished pages waiting to be written to the channel
+    private final ByteBuffer out;
+    // the page being filled
+    private final byte[] lacing = new byte[MAX_SEGMENTS];
+    private int segmentCount = 0;
+    private final ByteBuffer payload = ByteBuffer.allocate(MAX_SEGMENTS * MAX_SEGMENT_LENGTH);
+    private long granulePosition = 0;
+    private int pageSequence = 0;
+    private boolean finished = false;
+
+    /**
+     * Writes the identification and comment headers right away, into the buffer.
+     *
+     * @param serial
+     *         serial number of the stream, should be random
+     * @param channelCount
+     *         amount of channels of the opus packets
+     * @param preSkip
+     *         samples to discard from the start of the decoded audio
+     * @param bufferSize
+     *         size of the buffer collecting pages before they are written to the channel
+     */
+    public OggOpusWriter(final WritableByteChannel channel, final int serial, final int channelCount, final int preSkip,
+                         final int bufferSize) throws IOException {
+        if (bufferSize < MAX_PAGE_LENGTH) {
+            throw new IllegalArgumentException("Buffer needs to hold at least one page of " + MAX_PAGE_LENGTH
+                    + " bytes, got " + bufferSize);
+        }
+        this.channel = channel;
+        this.serial = serial;
+        this.out = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        // identification header, alone on the first page
+        this.payload.order(ByteOrder.LITTLE_ENDIAN)
+                .put(OPUS_HEAD)
+                .put((byte) 1) // version
+                .put((byte) channelCount)
+                .putShort((short) preSkip)
+                .putInt(OPUS_SAMPLE_RATE) // of the input, informational only
+                .putShort((short) 0) // output gain
+                .put((byte) 0); // channel mapping family: mono or stereo
+        this.addLacing(this.payload.position());
+        this.finishPage(FLAG_BEGINNING_OF_STREAM);
+
+        // comment header, also on a page of its own, audio starts on a fresh page
+        this.payload
+                .put(OPUS_TAGS)
+                .putInt(VENDOR.length)
+                .put(VENDOR)
+                .putInt(0); // no user comments
+        this.addLacing(this.payload.position());
+        this.finishPage(0);
+    }
+
+    /**
+     * @param packet
+     *         an opus packet, between its position and limit. Its position is not changed.
+     * @param granulePosition
+     *         position of the end of this packet in the stream, in samples at 48kHz
+     */
+    public void writePacket(final ByteBuffer packet, final long granulePosition) throws IOException {
+        if (this.finished) {
+            throw new IllegalStateException("Stream has already been finished");
+        }
+        final int length = packet.remaining();
+        final int segments = length / MAX_SEGMENT_LENGTH + 1;
+        if (segments > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("Packet of " + length + " bytes does not fit into a page");
+        }
+        if (this.segmentCount + segments > MAX_SEGMENTS) {
+            this.finishPage(0);
+        }
+        this.payload.put(packet.duplicate());
+        this.addLacing(length);
+        this.granulePosition = granulePosition;
+    }
+
+    /**
+     * Finish the page being filled, and write everything buffered to the channel.
+     */
+    public void flush() throws IOException {
+        if (this.segmentCount > 0) {
+            this.finishPage(0);
+        }
+        this.drain();
+    }
+
+    /**
+     * Mark the end of the stream and write everything buffered to the channel. Does not close the channel.
+     */
+    public void finish() throws IOException {
+        if (this.finished) {
+            return;
+        }
+        // the last page carries the flag, even if there are no packets left for it
+        this.finishPage(FLAG_END_OF_STREAM);
+        this.finished = true;
+        this.drain();
+    }
+
+    // one segment per full 255 bytes, and a shorter one that ends the packet, which may be empty
+    private void addLacing(final int packetLength) {
+        for (int remaining = packetLength; ; remaining -= MAX_SEGMENT_LENGTH) {
+            if (remaining >= MAX_SEGMENT_LENGTH) {
+                this.lacing[this.segmentCount++] = (byte) MAX_SEGMENT_LENGTH;
+            } else {
+                this.lacing[this.segmentCount++] = (byte) remaining;
+                return;
+            }
+        }
+    }
+
+    private void finishPage(final int flags) throws IOException {
+        final int pageLength = PAGE_HEADER_LENGTH + this.segmentCount + this.payload.position();
+        if (this.out.remaining() < pageLength) {
+            this.drain();
+        }
+        final int pageStart = this.out.position();
+        this.out.put(CAPTURE_PATTERN)
+                .put((byte) 0) // version
+                .put((byte) flags)
+                .putLong(this.granulePosition)
+                .putInt(this.serial)
+                .putInt(this.pageSequence++)
+                .putInt(0) // checksum, calculated over the page with this field zeroed
+                .put((byte) this.segmentCount)
+                .put(this.lacing, 0, this.segmentCount);
+        ((Buffer) this.payload).flip();
+        this.out.put(this.payload);
+        ((Buffer) this.payload).clear();
+        this.segmentCount = 0;
+
+        final int crc = OggCrc.update(0, this.out.array(), this.out.arrayOffset() + pageStart, pageLength);
+        this.out.putInt(pageStart + CRC_OFFSET, crc);
+    }
+
+    private void drain() throws IOException {
+        ((Buffer) this.out).flip();
+        while (this.out.hasRemaining()) {
+            this.channel.write(this.out);
+        }
+        ((Buffer) this.out).clear();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Puts the received frames of one source back into sequence order.
+ * <p>
+ * Frames are handed on as soon as all frames before them have been. A missing frame is waited for until a frame
+ * arrives that is as many frames ahead of it as this buffer is deep, then it is given up on as lost. Frames that
+ * arrive after their place has been given up on, and duplicates, are dropped. Nothing is ever waited for by time, so
+ * the delay caused by a loss is bounded by the depth in frames.
+ * <p>
+ * The frames are copied into preallocated slots. Not thread safe, meant to be used by the receiving thread only.
+ */
+public class JitterBuffer {
+
+    /**
+     * Receives the frames of a {@link JitterBuffer} in sequence order.
+     */
+    @FunctionalInterface
+    public interface FrameConsumer {
+
+        /**
+         * @param frame
+         *         the frame between its position and limit. Only valid during the call, the buffer is reused.
+         */
+        void accept(char sequence, int timestamp, ByteBuffer frame);
+    }
+
+    private static final int SEQUENCE_RANGE = 1 << 16;
+    private static final int NONE = -1;
+
+    private final int depth;
+    private final byte[][] frames;
+    private final ByteBuffer[] views;
+    private final int[] timestamps;
+    private final boolean[] present;
+    // sequence of the next frame to hand on, or NONE before the first frame
+    private int next = NONE;
+
+    /**
+     * @param depth
+     *         amount of frames to wait for a missing frame, a power of two so that it divides the sequence range
+     * @param maxFrameLength
+     *         longest frame that can be buffered, longer ones are dropped
+     */
+    public JitterBuffer(final int depth, final int maxFrameLength) {
+        if (depth < 1 || Integer.bitCount(depth) != 1) {
+            throw new IllegalArgumentException("Depth must be a power of two, got " + depth);
+        }
+        this.depth = depth;
+        this.frames = new byte[depth][maxFrameLength];
+        this.views = new ByteBuffer[depth];
+        for (int i = 0; i < depth; i++) {
+            this.views[i] = ByteBuffer.wrap(this.frames[i]);
+        }
+        this.timestamps = new int[depth];
+        this.present = new boolean[depth];
+    }
+
+    /**
+     * Add a received frame, and hand on all frames that are in order now.
+     */
+    public void offer(final char sequence, final int timestamp, final byte[] data, final int offset, final int length,
+                      final FrameConsumer consumer) {
+        if (length > this.frames[0].length) {
+            return;
+        }
+        if (this.next == NONE) {
+            this.next = sequence;
+        }
+        // distance in the sequence range, with wraparound. the upper half is behind the next frame
+        int ahead = (sequence - this.next) & (SEQUENCE_RANGE - 1);
+        if (ahead >= SEQUENCE_RANGE / 2) {
+            return; // late
+        }
+        while (ahead >= this.depth) {
+            // no room in the window for this frame, give up on the oldest
+            this.handOnNext(consumer);
+            ahead--;
+        }
+        final int slot = sequence & (this.depth - 1);
+        if (this.present[slot]) {
+            return; // duplicate
+        }
+        System.arraycopy(data, offset, this.frames[slot], 0, length);
+        ((Buffer) this.views[slot]).clear().limit(length);
+        this.timestamps[slot] = timestamp;
+        this.present[slot] = true;
+
+        while (this.present[this.next & (this.depth - 1)]) {
+            this.handOnNext(consumer);
+        }
+    }
+
+    /**
+     * Hand on all buffered frames in order, skipping the missing ones, and start over.
+     */
+    public void flush(final FrameConsumer consumer) {
+        if (this.next == NONE) {
+            return;
+        }
+        for (int i = 0; i < this.depth; i++) {
+            this.handOnNext(consumer);
+        }
+        this.next = NONE;
+    }
+
+    // hand on the next frame if it is present, and move on to the one after it
+    private void handOnNext(final FrameConsumer consumer) {
+        final int slot = this.next & (this.depth - 1);
+        final char sequence = (char) this.next;
+        this.next = (this.next + 1) & (SEQUENCE_RANGE - 1);
+        if (this.present[slot]) {
+            this.present[slot] = false;
+            consumer.accept(sequence, this.timestamps[slot], this.views[slot]);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the duration of an opus packet from its TOC byte, see RFC 6716 section 3.1, and tells silent packets apart.
+ * <p>
+ * Durations are counted in samples at 48kHz, the clock rate of the RTP timestamps. A packet holds one or more frames
+ * of 2.5 to 60ms each, but never more than 120ms in total.
+ */
+public class OpusPacket {
+
+    public static final int SAMPLES_PER_MILLISECOND = 48;
+    public static final int MAX_SAMPLES = 120 * SAMPLES_PER_MILLISECOND;
+
+    // encoders in discontinuous transmission (DTX) mode send packets of up to this length when there is nothing to hear
+    private static final int MAX_DTX_LENGTH = 2;
+    private static final byte[] SILENCE = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+
+    // samples of one frame by configuration, the upper five bits of the TOC byte
+    private static final int[] FRAME_SAMPLES = {
+            // SILK only: 10, 20, 40, 60ms
+            480, 960, 1920, 2880, 480, 960, 1920, 2880, 480, 960, 1920, 2880,
+            // hybrid: 10, 20ms
+            480, 960, 480, 960,
+            // CELT only: 2.5, 5, 10, 20ms
+            120, 240, 480, 960, 120, 240, 480, 960, 120, 240, 480, 960, 120, 240, 480, 960,
+    };
+
+    private OpusPacket() {
+    }
+
+    /**
+     * @param packet
+     *         an opus packet, between its position and limit
+     *
+     * @return duration of the packet in samples at 48kHz, or 0 if the packet is malformed
+     */
+    public static int getSamples(final ByteBuffer packet) {
+        if (!packet.hasRemaining()) {
+            return 0;
+        }
+        final int toc = packet.get(packet.position()) & 0xFF;
+        final int frameCount;
+        switch (toc & 0x03) {
+            case 0:
+                frameCount = 1;
+                break;
+            case 1:
+            case 2:
+                frameCount = 2;
+                break;
+            default:
+                if (packet.remaining() < 2) {
+                    return 0;
+                }
+                frameCount = packet.get(packet.position() + 1) & 0x3F;
+                break;
+        }
+        final int samples = FRAME_SAMPLES[toc >>> 3] * frameCount;
+        return samples <= MAX_SAMPLES ? samples : 0;
+    }
+
+    /**
+     * @param packet
+     *         an opus packet, between its position and limit
+     *
+     * @return true if the packet carries no sound: a DTX packet, or the silence frame {@code F8 FF FE} that Discord
+     * expects before a pause
+     */
+    public static boolean isSilence(final ByteBuffer packet) {
+        final int length = packet.remaining();
+        if (length <= MAX_DTX_LENGTH) {
+            return true;
+        }
+        if (length != SILENCE.length) {
+            return false;
+        }
+        for (int i = 0; i < SILENCE.length; i++) {
+            if (packet.get(packet.position() + i) != SILENCE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
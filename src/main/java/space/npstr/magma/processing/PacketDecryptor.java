@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import space.npstr.magma.EncryptionMode;
+
+import java.util.Arrays;
+
+/**
+ * Decrypts received voice packets into buffers owned by this decryptor, the reverse of
+ * {@link PacketEncryptor#encrypt}. The buffers are reused for every packet, so an instance must only be used by one
+ * thread, and the payload of a packet is only valid until the next one is decrypted.
+ */
+public class PacketDecryptor {
+
+    // length of the poly1305 authenticator in front of the encrypted data
+    private static final int MAC_LENGTH = 16;
+    // tweetnacl expects the box to start with this many zero bytes, and leaves this many zero bytes in front of the
+    // decrypted message
+    private static final int BOX_ZERO_BYTES = 16;
+    private static final int ZERO_BYTES = 32;
+    private static final int LITE_NONCE_LENGTH = 4;
+
+    private final byte[] nonce = new byte[TweetNaclFast.SecretBox.nonceLength];
+    private final byte[] box;
+    private final byte[] message;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * @param maxPacketLength
+     *         longest packet this decryptor can handle, longer ones fail to decrypt
+     */
+    public PacketDecryptor(final int maxPacketLength) {
+        this.box = new byte[BOX_ZERO_BYTES + maxPacketLength];
+        this.message = new byte[this.box.length];
+    }
+
+    /**
+     * Decrypt a received packet, and locate the opus payload in the decrypted data.
+     *
+     * @return true if the packet has been decrypted. False if it could not be authenticated with the key, for example
+     * because it was encrypted with a different one, or if it is malformed.
+     */
+    public boolean decrypt(final byte[] packet, final int length, final EncryptionMode encryptionMode,
+                           final byte[] secretKey) {
+        final int encryptedEnd;
+        switch (encryptionMode) {
+            case XSALSA20_POLY1305:
+                // the nonce is the rtp header, padded with zeros
+                System.arraycopy(packet, 0, this.nonce, 0, RtpHeader.FIXED_LENGTH);
+                Arrays.fill(this.nonce, RtpHeader.FIXED_LENGTH, this.nonce.length, (byte) 0);
+                encryptedEnd = length;
+                break;
+            case XSALSA20_POLY1305_LITE:
+                encryptedEnd = length - LITE_NONCE_LENGTH;
+                if (encryptedEnd < RtpHeader.FIXED_LENGTH) {
+                    return false;
+                }
+                System.arraycopy(packet, encryptedEnd, this.nonce, 0, LITE_NONCE_LENGTH);
+                Arrays.fill(this.nonce, LITE_NONCE_LENGTH, this.nonce.length, (byte) 0);
+                break;
+            case XSALSA20_POLY1305_SUFFIX:
+                encryptedEnd = length - this.nonce.length;
+                if (encryptedEnd < RtpHeader.FIXED_LENGTH) {
+                    return false;
+                }
+                System.arraycopy(packet, encryptedEnd, this.nonce, 0, this.nonce.length);
+                break;
+            default:
+                throw new IllegalStateException("Encryption mode [" + encryptionMode + "] is not supported!");
+        }
+
+        final int encryptedLength = encryptedEnd - RtpHeader.FIXED_LENGTH;
+        final int boxLength = BOX_ZERO_BYTES + encryptedLength;
+        if (encryptedLength < MAC_LENGTH || boxLength > this.box.length) {
+            return false;
+        }
+        Arrays.fill(this.box, 0, BOX_ZERO_BYTES, (byte) 0);
+        System.arraycopy(packet, RtpHeader.FIXED_LENGTH, this.box, BOX_ZERO_BYTES, encryptedLength);
+        if (TweetNaclFast.crypto_secretbox_open(this.message, this.box, boxLength, this.nonce, secretKey) != 0) {
+            return false;
+        }
+
+        final int offset = RtpHeader.getPayloadOffset(packet, this.message, ZERO_BYTES, boxLength);
+        if (offset < 0) {
+            return false;
+        }
+        final int end = RtpHeader.getPayloadEnd(packet, this.message, offset, boxLength);
+        if (end < 0) {
+            return false;
+        }
+        this.payloadOffset = offset;
+        this.payloadLength = end - offset;
+        return true;
+    }
+
+    /**
+     * @return the buffer holding the payload of the last decrypted packet
+     */
+    public byte[] getBuffer() {
+        return this.message;
+    }
+
+    public int getPayloadOffset() {
+        return this.payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return this.payloadLength;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import net.dv8tion.jda.api.audio.AudioPacket;
+import space.npstr.magma.EncryptionMode;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Builds encrypted voice packets in buffers owned by this encryptor, producing the same packets as
+ * {@link PacketUtil#encryptPacket}. The opus packet is copied straight from the buffer it is provided in into the
+ * box that is encrypted, whether that buffer has an array or not, so mapped files and direct buffers cost no extra
+ * copy. The buffers are reused for every packet, so an instance must only be used by one thread, and a packet is
+ * only valid until the next one is built.
+ */
+public class PacketEncryptor {
+
+    // tweetnacl expects the message to start with this many zero bytes, and leaves this many zero bytes in front of the
+    // authenticator and the encrypted data
+    private static final int ZERO_BYTES = 32;
+    private static final int BOX_ZERO_BYTES = 16;
+    private static final int LITE_NONCE_LENGTH = 4;
+
+    private final byte[] nonce = new byte[TweetNaclFast.SecretBox.nonceLength];
+    private byte[] message;
+    private byte[] box;
+    private ByteBuffer packet;
+
+    /**
+     * @param maxAudioLength
+     *         longest opus packet expected, the buffers grow if a longer one comes along
+     */
+    public PacketEncryptor(final int maxAudioLength) {
+        this.message = new byte[ZERO_BYTES + maxAudioLength];
+        this.box = new byte[this.message.length];
+        this.packet = ByteBuffer.allocate(PacketUtil.getEncryptedLength(maxAudioLength,
+                EncryptionMode.XSALSA20_POLY1305_SUFFIX));
+    }
+
+    /**
+     * @param audio
+     *         the opus packet, from its position to its limit. Its position is left unchanged.
+     *
+     * @return the encrypted packet, from position to limit, in a buffer that is reused by the next call
+     */
+    public ByteBuffer encrypt(final char sequence, final int timestamp, final int ssrc, final ByteBuffer audio,
+                              final EncryptionMode encryptionMode, final byte[] secretKey,
+                              final Supplier<Long> nonceSupplier) {
+        final int audioLength = audio.remaining();
+        final int messageLength = ZERO_BYTES + audioLength;
+        if (this.message.length < messageLength) {
+            this.message = new byte[messageLength];
+            this.box = new byte[messageLength];
+        }
+        final int packetLength = PacketUtil.getEncryptedLength(audioLength, encryptionMode);
+        if (this.packet.capacity() < packetLength) {
+            this.packet = ByteBuffer.allocate(packetLength);
+        }
+
+        ((Buffer) this.packet).clear();
+        this.packet.put(AudioPacket.RTP_VERSION_PAD_EXTEND)
+                .put(AudioPacket.RTP_PAYLOAD_TYPE)
+                .putChar(sequence)
+                .putInt(timestamp)
+                .putInt(ssrc);
+
+        final int nonceLength;
+        switch (encryptionMode) {
+            case XSALSA20_POLY1305:
+                // the nonce is the rtp header, padded with zeros
+                System.arraycopy(this.packet.array(), 0, this.nonce, 0, RtpHeader.FIXED_LENGTH);
+                Arrays.fill(this.nonce, RtpHeader.FIXED_LENGTH, this.nonce.length, (byte) 0);
+                nonceLength = 0;
+                break;
+            case XSALSA20_POLY1305_LITE:
+                PacketUtil.writeNonce(nonceSupplier.get(), this.nonce);
+                Arrays.fill(this.nonce, LITE_NONCE_LENGTH, this.nonce.length, (byte) 0);
+                nonceLength = LITE_NONCE_LENGTH;
+                break;
+            case XSALSA20_POLY1305_SUFFIX:
+                ThreadLocalRandom.current().nextBytes(this.nonce);
+                nonceLength = this.nonce.length;
+                break;
+            default:
+                throw new IllegalStateException("Encryption mode [" + encryptionMode + "] is not supported!");
+        }
+
+        Arrays.fill(this.message, 0, ZERO_BYTES, (byte) 0);
+        final int position = audio.position();
+        if (audio.hasArray()) {
+            System.arraycopy(audio.array(), audio.arrayOffset() + position, this.message, ZERO_BYTES, audioLength);
+        } else {
+            audio.get(this.message, ZERO_BYTES, audioLength);
+            ((Buffer) audio).position(position);
+        }
+        TweetNaclFast.crypto_secretbox(this.box, this.message, messageLength, this.nonce, secretKey);
+
+        this.packet.put(this.box, BOX_ZERO_BYTES, messageLength - BOX_ZERO_BYTES)
+                .put(this.nonce, 0, nonceLength);
+        ((Buffer) this.packet).flip();
+        return this.packet;
+    }
+}
@@ -16,9 +16,7 @@
 
 package space.npstr.magma.processing;
 
-import com.iwebpp.crypto.TweetNaclFast;
 import edu.umd.cs.findbugs.annotations.Nullable;
-import net.dv8tion.jda.api.audio.AudioPacket;
 import net.dv8tion.jda.api.audio.AudioSendHandler;
 import net.dv8tion.jda.api.audio.factory.IPacketProvider;
 import net.dv8tion.jda.api.audio.hooks.ConnectionStatus;
@@ -26,15 +24,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import space.npstr.magma.EncryptionMode;
 import space.npstr.magma.connections.AudioConnection;
+import space.npstr.magma.connections.SendParameters;
+import space.npstr.magma.connections.SpeakingState;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 /**
  * Created by napster on 23.06.18.
+ * <p>
+ * The connection the packets are built for can be switched while the send system keeps polling, see
+ * {@link #switchConnection}. Sequence and timestamp carry over to the new connection.
+ * <p>
+ * Send systems poll every 20ms, but opus packets may be longer or shorter. The timestamp advances by the duration
+ * read from each packet, and after a packet longer than 20ms, polls are skipped until it has been played. Packets
+ * shorter than 20ms can't be sent faster than they are polled, so audio made of them plays too slow.
+ * <p>
+ * Silent frames, see {@link OpusPacket#isSilence}, are sent only until the five frames of silence that Discord expects
+ * before a pause have gone out. After that, they are dropped until the first frame with sound, which is sent right
+ * away. The timestamp keeps advancing meanwhile, so that receivers see the length of the pause. The savings are
+ * counted by the {@link SilenceSuppressionTracker} of the connection.
+ * <p>
+ * Speaking is started with the first packet sent, and turned off by the {@link SpeakingState} of the connection once
+ * nothing has been sent for a while.
+ * <p>
+ * The send handler may be replaced while the send system keeps polling. The new one is used from the next frame on,
+ * sequence and timestamp carry on, and no silence is sent in between. The time until its first packet is reported to
+ * {@link AudioConnection#sendHandlerSwitched}.
  */
 public class PacketProvider implements IPacketProvider {
 
@@ -43,10 +63,12 @@ public class PacketProvider implements IPacketProvider {
     private static final ByteBuffer SILENCE_BYTES = ByteBuffer.wrap(new byte[] {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE});
     private static final int EMPTY_FRAMES_COUNT = 5;
 
-    private final AudioConnection audioConnection;
+    private volatile AudioConnection audioConnection;
+    @Nullable
+    private volatile Migration migration;
     private final Supplier<Long> nonceSupplier;
-    private ByteBuffer packetBuffer = ByteBuffer.allocate(512); //packets usually take up about 400-500 bytes
-    private final byte[] nonceBuffer = new byte[TweetNaclFast.SecretBox.nonceLength];
+    //packets usually take up about 400-500 bytes
+    private final PacketEncryptor packetEncryptor = new PacketEncryptor(512);
 
     private char seq = 0;           //Sequence of audio packets. Used to determine the order of the packets.
     private int timestamp = 0;      //Used to sync up our packets within the same timeframe of other people talking.
@@ -55,11 +77,37 @@ public class PacketProvider implements IPacketProvider {
     // https://discordapp.com/developers/docs/topics/voice-connections#voice-data-interpolation
     private int sendSilentFrames = EMPTY_FRAMES_COUNT;
 
+    // samples sent ahead of the polls, polls are skipped while this is positive
+    private int samplesAhead = 0;
+
+    // silent frames provided in a row by the send handler
+    private int silentFrames = 0;
+
+    // System.nanoTime() of the last packet built, only touched by the sending thread
+    private long lastPacketNanos = -1;
+
+    // the send handler packets have last been built from, and when the one replacing it was set, or -1
+    @Nullable
+    private AudioSendHandler sendHandler;
+    private long sendHandlerSwitchNanos = -1;
+
     public PacketProvider(final AudioConnection audioConnection, final Supplier<Long> nonceSupplier) {
         this.audioConnection = audioConnection;
         this.nonceSupplier = nonceSupplier;
     }
 
+    /**
+     * Build all following packets for the passed connection.
+     *
+     * @param gapCallback
+     *         receives the nanoseconds between the last packet built for the previous connection and the first one
+     *         built for the new one. Not called if no packet has been built for the previous connection.
+     */
+    public void switchConnection(final AudioConnection audioConnection, final LongConsumer gapCallback) {
+        this.migration = new Migration(audioConnection, gapCallback);
+        this.audioConnection = audioConnection;
+    }
+
     @Override
     public String getIdentifier() {
         return "";
@@ -78,7 +126,7 @@ public class PacketProvider implements IPacketProvider {
     @Nullable
     @Override
     public InetSocketAddress getSocketAddress() {
-        return this.audioConnection.getUdpTargetAddress();
+        return this.audioConnection.getSendParameters().getUdpTargetAddress();
     }
 
     @Override
@@ -97,19 +145,29 @@ public class PacketProvider implements IPacketProvider {
     @Nullable
     @Override
     public DatagramPacket getNextPacket(final boolean changeTalking) {
-        final InetSocketAddress targetAddress = this.audioConnection.getUdpTargetAddress();
+        // read once, so that the whole packet is built for the same connection and with consistent parameters
+        final AudioConnection connection = this.audioConnection;
+        final SendParameters parameters = connection.getSendParameters();
+        final InetSocketAddress targetAddress = parameters.getUdpTargetAddress();
         if (targetAddress == null) {
             return null;
         }
-        final ByteBuffer nextPacket = getNextPacketRaw(changeTalking);
+        final ByteBuffer nextPacket = getNextPacketRaw(connection, parameters, changeTalking);
         return nextPacket == null ? null : asDatagramPacket(nextPacket, targetAddress);
     }
 
     @Nullable
     @Override
     public ByteBuffer getNextPacketRaw(final boolean changeTalking) {
+        final AudioConnection connection = this.audioConnection;
+        return this.getNextPacketRaw(connection, connection.getSendParameters(), changeTalking);
+    }
+
+    @Nullable
+    private ByteBuffer getNextPacketRaw(final AudioConnection connection, final SendParameters parameters,
+                                        final boolean changeTalking) {
         try {
-            return this.buildNextPacket(changeTalking);
+            return this.buildNextPacket(connection, parameters, changeTalking);
         } catch (final Exception e) {
             log.error("Failed to get next packet", e);
             return null;
@@ -117,12 +175,19 @@ public class PacketProvider implements IPacketProvider {
     }
 
     @Nullable
-    private ByteBuffer buildNextPacket(final boolean changeTalking) {
+    private ByteBuffer buildNextPacket(final AudioConnection audioConnection, final SendParameters parameters,
+                                       final boolean changeTalking) {
 
-        final EncryptionMode encryptionMode = this.audioConnection.getEncryptionMode();
-        final byte[] secretKey = this.audioConnection.getSecretKey();
-        final Integer ssrc = this.audioConnection.getSsrc();
-        final AudioSendHandler sendHandler = this.audioConnection.getSendHandler();
+        if (this.samplesAhead > 0) {
+            // the last packet is still playing
+            this.samplesAhead -= AudioConnection.OPUS_FRAME_SIZE;
+            return null;
+        }
+
+        final EncryptionMode encryptionMode = parameters.getEncryptionMode();
+        final byte[] secretKey = parameters.getSecretKey();
+        final Integer ssrc = parameters.getSsrc();
+        final AudioSendHandler sendHandler = parameters.getSendHandler();
 
         //preconditions fulfilled?
         if (encryptionMode == null
@@ -130,42 +195,55 @@ public class PacketProvider implements IPacketProvider {
                 || ssrc == null
                 || sendHandler == null
                 || !sendHandler.canProvide()) {
-            if (this.audioConnection.isSpeaking() && changeTalking) {
-                this.audioConnection.updateSpeaking(false);
+            if (changeTalking) {
+                this.releaseSpeaking(audioConnection, ssrc);
             }
             this.sendSilentFrames = EMPTY_FRAMES_COUNT;
+            this.samplesAhead = 0;
+            this.silentFrames = 0;
             return null;
         }
 
-        final AudioPacket nextAudioPacket;
+        if (sendHandler != this.sendHandler) {
+            this.switchSendHandler(sendHandler, parameters.getSendHandlerNanos());
+        }
+
+        final ByteBuffer audio;
+        final int samples;
         if (this.sendSilentFrames <= 0) {
             //audio data provided?
             final ByteBuffer rawAudio = sendHandler.provide20MsAudio();
             if (rawAudio == null || !rawAudio.hasRemaining()) {
-                if (this.audioConnection.isSpeaking() && changeTalking) {
-                    this.audioConnection.updateSpeaking(false);
+                if (changeTalking) {
+                    this.releaseSpeaking(audioConnection, ssrc);
                 }
                 this.sendSilentFrames = EMPTY_FRAMES_COUNT;
+                this.samplesAhead = 0;
+                this.silentFrames = 0;
                 return null;
             }
-            if (!rawAudio.hasArray()) {
-                // we can't use the boxer without an array so encryption would not work
-                log.error("AudioSendHandler provided ByteBuffer without a backing array! This is unsupported.");
+            final int packetSamples = OpusPacket.getSamples(rawAudio);
+            samples = packetSamples > 0 ? packetSamples : AudioConnection.OPUS_FRAME_SIZE;
+            if (this.suppressSilence(audioConnection, rawAudio, encryptionMode)) {
+                if (changeTalking) {
+                    this.releaseSpeaking(audioConnection, ssrc);
+                }
+                this.advance(samples);
                 return null;
             }
-            nextAudioPacket = new AudioPacket(this.seq, this.timestamp, ssrc, rawAudio);
+            audio = rawAudio;
         } else {
-            nextAudioPacket = new AudioPacket(this.seq, this.timestamp, ssrc, SILENCE_BYTES);
+            audio = SILENCE_BYTES;
+            samples = AudioConnection.OPUS_FRAME_SIZE;
             this.sendSilentFrames--;
             log.trace("Sending silent frame, silent frames left {}", this.sendSilentFrames);
         }
 
-        final ByteBuffer nextPacket = this.packetBuffer = PacketUtil.encryptPacket(nextAudioPacket, this.packetBuffer,
-                encryptionMode, secretKey, this.nonceSupplier, this.nonceBuffer);
+        final ByteBuffer nextPacket = this.packetEncryptor.encrypt(this.seq, this.timestamp, ssrc, audio,
+                encryptionMode, secretKey, this.nonceSupplier);
 
-        if (!this.audioConnection.isSpeaking()) {
-            this.audioConnection.updateSpeaking(true);
-        }
+        final long now = System.nanoTime();
+        audioConnection.getSpeakingState().audible(ssrc, now);
 
         if (this.seq + 1 > Character.MAX_VALUE) {
             this.seq = 0;
@@ -173,11 +251,84 @@ public class PacketProvider implements IPacketProvider {
             this.seq++;
         }
 
-        this.timestamp += AudioConnection.OPUS_FRAME_SIZE;
+        this.advance(samples);
 
+        this.trackPacketTime(audioConnection, now);
+        if (this.sendHandlerSwitchNanos >= 0) {
+            audioConnection.sendHandlerSwitched(now - this.sendHandlerSwitchNanos);
+            this.sendHandlerSwitchNanos = -1;
+        }
         return nextPacket;
     }
 
+    private void switchSendHandler(final AudioSendHandler sendHandler, final long setNanos) {
+        if (this.sendHandler != null) {
+            // swapped on the running send system, so there is no pause to mark with silence
+            log.trace("Switching to the next send handler");
+            this.sendSilentFrames = 0;
+            this.sendHandlerSwitchNanos = setNanos;
+        }
+        this.sendHandler = sendHandler;
+    }
+
+    /**
+     * @return true if the frame is silent and enough silence has been sent already
+     */
+    private boolean suppressSilence(final AudioConnection audioConnection, final ByteBuffer audio,
+                                    final EncryptionMode encryptionMode) {
+        if (!OpusPacket.isSilence(audio)) {
+            this.silentFrames = 0;
+            return false;
+        }
+        this.silentFrames++;
+        if (this.silentFrames <= EMPTY_FRAMES_COUNT) {
+            return false;
+        }
+        final SilenceSuppressionTracker tracker = audioConnection.getSilenceSuppressionTracker();
+        if (this.silentFrames == EMPTY_FRAMES_COUNT + 1) {
+            log.trace("Pausing sending during silence");
+            tracker.suppressionStarted();
+        }
+        tracker.frameSuppressed(PacketUtil.getEncryptedLength(audio.remaining(), encryptionMode));
+        return true;
+    }
+
+    // speaking ends once nothing has been sent for a while, see SpeakingState
+    private void releaseSpeaking(final AudioConnection audioConnection, @Nullable final Integer ssrc) {
+        final SpeakingState speakingState = audioConnection.getSpeakingState();
+        if (ssrc != null && speakingState.isSpeaking()) {
+            speakingState.inaudible(ssrc, System.nanoTime());
+        }
+    }
+
+    private void advance(final int samples) {
+        this.timestamp += samples;
+        // one poll of shorter packets may be made up for by a longer packet, more is lost
+        this.samplesAhead = Math.max(this.samplesAhead + samples - AudioConnection.OPUS_FRAME_SIZE,
+                -AudioConnection.OPUS_FRAME_SIZE);
+    }
+
+    private void trackPacketTime(final AudioConnection connection, final long now) {
+        final Migration m = this.migration;
+        if (m != null && m.target == connection) {
+            this.migration = null;
+            if (this.lastPacketNanos >= 0) {
+                m.gapCallback.accept(now - this.lastPacketNanos);
+            }
+        }
+        this.lastPacketNanos = now;
+    }
+
+    private static class Migration {
+        private final AudioConnection target;
+        private final LongConsumer gapCallback;
+
+        private Migration(final AudioConnection target, final LongConsumer gapCallback) {
+            this.target = target;
+            this.gapCallback = gapCallback;
+        }
+    }
+
     private DatagramPacket asDatagramPacket(final ByteBuffer buffer, final InetSocketAddress targetAddress) {
         final byte[] data = buffer.array();
         final int offset = buffer.arrayOffset();
@@ -57,6 +57,26 @@ public class PacketUtil {
         return audioPacket.asEncryptedPacket(packetBuffer, secretKey, nonceBuffer, nonceLength);
     }
 
+    /**
+     * @return length of the udp packet that an opus packet of the passed length is sent in
+     */
+    public static int getEncryptedLength(final int audioLength, final EncryptionMode encryptionMode) {
+        final int nonceLength;
+        switch (encryptionMode) {
+            case XSALSA20_POLY1305_LITE:
+                nonceLength = 4;
+                break;
+            case XSALSA20_POLY1305_SUFFIX:
+                nonceLength = TweetNaclFast.SecretBox.nonceLength;
+                break;
+            default:
+                // the nonce is made from the header
+                nonceLength = 0;
+                break;
+        }
+        return RtpHeader.FIXED_LENGTH + TweetNaclFast.SecretBox.overheadLength + audioLength + nonceLength;
+    }
+
     //@formatter:off
     public static void writeNonce(final long nonce, final byte[] nonceBuffer) {
         nonceBuffer[0] = (byte) ((nonce >>> 24) & 0xFF);
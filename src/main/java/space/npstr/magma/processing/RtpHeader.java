@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+/**
+ * Reads the fields of the RTP header of a received voice packet, the reverse of how
+ * {@link net.dv8tion.jda.api.audio.AudioPacket AudioPacket} populates it for sending.
+ * <p>
+ * Only the fixed part of the header is sent in the clear. The CSRCs and the header extension follow it in the
+ * encrypted part of the packet, see {@link #getPayloadOffset}.
+ */
+public class RtpHeader {
+
+    public static final int FIXED_LENGTH = 12;
+
+    private static final int RTP_VERSION = 2;
+    // the payload type discord uses for opus
+    private static final int PAYLOAD_TYPE_OPUS = 0x78;
+    private static final int EXTENSION_HEADER_LENGTH = 4;
+
+    private RtpHeader() {
+    }
+
+    /**
+     * @return true if the packet is an RTP packet carrying opus audio, as opposed to RTCP or other packets
+     */
+    public static boolean isAudioPacket(final byte[] packet, final int length) {
+        return length >= FIXED_LENGTH
+                && (packet[0] & 0xC0) >>> 6 == RTP_VERSION
+                && (packet[1] & 0x7F) == PAYLOAD_TYPE_OPUS;
+    }
+
+    public static boolean hasPadding(final byte[] packet) {
+        return (packet[0] & 0x20) != 0;
+    }
+
+    public static boolean hasExtension(final byte[] packet) {
+        return (packet[0] & 0x10) != 0;
+    }
+
+    public static int getCsrcCount(final byte[] packet) {
+        return packet[0] & 0x0F;
+    }
+
+    public static char getSequence(final byte[] packet) {
+        return (char) ((packet[2] & 0xFF) << 8 | packet[3] & 0xFF);
+    }
+
+    public static int getTimestamp(final byte[] packet) {
+        return readInt(packet, 4);
+    }
+
+    public static int getSsrc(final byte[] packet) {
+        return readInt(packet, 8);
+    }
+
+    /**
+     * @param header
+     *         the packet, for the flags of its fixed header
+     * @param decrypted
+     *         holds the decrypted part of the packet, which follows the fixed header
+     * @param offset
+     *         start of the decrypted part
+     * @param end
+     *         end of the decrypted part, exclusive
+     *
+     * @return offset of the opus payload, after the CSRCs and the header extension, or -1 if they do not fit
+     */
+    public static int getPayloadOffset(final byte[] header, final byte[] decrypted, final int offset, final int end) {
+        int payloadOffset = offset + getCsrcCount(header) * 4;
+        if (hasExtension(header)) {
+            if (payloadOffset + EXTENSION_HEADER_LENGTH > end) {
+                return -1;
+            }
+            // the length of the extension is given in 32 bit words, without its own header
+            final int extensionWords = (decrypted[payloadOffset + 2] & 0xFF) << 8 | decrypted[payloadOffset + 3] & 0xFF;
+            payloadOffset += EXTENSION_HEADER_LENGTH + extensionWords * 4;
+        }
+        return payloadOffset <= end ? payloadOffset : -1;
+    }
+
+    /**
+     * @return end of the opus payload, exclusive, without the padding, or -1 if the padding does not fit
+     */
+    public static int getPayloadEnd(final byte[] header, final byte[] decrypted, final int payloadOffset,
+                                    final int end) {
+        if (!hasPadding(header)) {
+            return end;
+        }
+        // the last byte counts the padding bytes, itself included
+        final int payloadEnd = end - (decrypted[end - 1] & 0xFF);
+        return payloadEnd >= payloadOffset ? payloadEnd : -1;
+    }
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+}
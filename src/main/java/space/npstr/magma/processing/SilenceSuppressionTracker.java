@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import space.npstr.magma.MagmaSilenceSuppressionStats;
+import space.npstr.magma.SilenceSuppressionStats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the silent frames a {@link PacketProvider} did not send. Only the sending thread writes the counters, so they
+ * are incremented with an ordered write instead of an atomic read-modify-write.
+ */
+public class SilenceSuppressionTracker {
+
+    private final AtomicLong suppressedFrames = new AtomicLong(0);
+    private final AtomicLong suppressedBytes = new AtomicLong(0);
+    private final AtomicLong suppressions = new AtomicLong(0);
+
+    void suppressionStarted() {
+        this.suppressions.lazySet(this.suppressions.get() + 1);
+    }
+
+    void frameSuppressed(final int packetLength) {
+        this.suppressedFrames.lazySet(this.suppressedFrames.get() + 1);
+        this.suppressedBytes.lazySet(this.suppressedBytes.get() + packetLength);
+    }
+
+    public SilenceSuppressionStats getStats() {
+        return MagmaSilenceSuppressionStats.builder()
+                .suppressedFrames(this.suppressedFrames.get())
+                .suppressedBytes(this.suppressedBytes.get())
+                .suppressions(this.suppressions.get())
+                .build();
+    }
+}
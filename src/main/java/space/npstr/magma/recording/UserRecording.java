@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.recording;
+
+import space.npstr.magma.connections.AudioConnection;
+import space.npstr.magma.ogg.OggOpusWriter;
+import space.npstr.magma.processing.OpusPacket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Ogg Opus file of one user of a {@link VoiceRecorder}.
+ * <p>
+ * The granule positions follow the time the frames were sent at, which is taken from their RTP timestamps, and their
+ * durations, which are read from the frames. Gaps, from lost frames or from the user not talking, are filled with
+ * silent 20ms frames, so the file keeps the timing of the
+ * conversation. RTP timestamps start over at a random value when the user reconnects, so when they disagree with
+ * the time that actually passed by more than a second, the time that passed is used instead.
+ * <p>
+ * Only used by the writing thread of its recorder, which also flushes it periodically.
+ */
+class UserRecording {
+
+    private static final int FRAME_SAMPLES = AudioConnection.OPUS_FRAME_SIZE;
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // gaps that differ from the elapsed time by more than this are not trusted
+    private static final long MAX_TIMESTAMP_DRIFT_FRAMES = 50;
+    // longer gaps are shortened to this, ten minutes
+    private static final long MAX_GAP_FRAMES = 30_000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] SILENCE = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+
+    private final FileChannel channel;
+    private final OggOpusWriter writer;
+    private final ByteBuffer silence = ByteBuffer.wrap(SILENCE);
+    private boolean started = false;
+    // timestamp at which the last frame ended
+    private int lastEndTimestamp;
+    private long lastFrameNanos;
+    private int lastFrameSamples;
+    // position of the end of the last frame written
+    private long granulePosition = 0;
+    private boolean closed = false;
+
+    UserRecording(final Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        try {
+            this.writer = new OggOpusWriter(this.channel, ThreadLocalRandom.current().nextInt(),
+                    AudioConnection.OPUS_CHANNEL_COUNT, 0, BUFFER_SIZE);
+        } catch (final IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param receivedNanos
+     *         {@link System#nanoTime()} at which the frame was received, it may be written a lot later
+     */
+    void write(final int timestamp, final long receivedNanos, final ByteBuffer opus) throws IOException {
+        if (this.closed) {
+            return;
+        }
+        final int packetSamples = OpusPacket.getSamples(opus);
+        final int samples = packetSamples > 0 ? packetSamples : FRAME_SAMPLES;
+        if (this.started) {
+            final long gapFrames = this.gapFrames(timestamp, receivedNanos);
+            for (long i = 0; i < Math.min(gapFrames, MAX_GAP_FRAMES); i++) {
+                this.granulePosition += FRAME_SAMPLES;
+                this.writer.writePacket(this.silence, this.granulePosition);
+            }
+        }
+        this.started = true;
+        this.lastEndTimestamp = timestamp + samples;
+        this.lastFrameNanos = receivedNanos;
+        this.lastFrameSamples = samples;
+        this.granulePosition += samples;
+        this.writer.writePacket(opus, this.granulePosition);
+    }
+
+    // amount of frames missing between the last frame and this one
+    private long gapFrames(final int timestamp, final long receivedNanos) {
+        // wraps around like the timestamps do
+        final long timestampFrames = (timestamp - this.lastEndTimestamp) / FRAME_SAMPLES;
+        final long lastDurationNanos = TimeUnit.MILLISECONDS.toNanos(this.lastFrameSamples)
+                / OpusPacket.SAMPLES_PER_MILLISECOND;
+        final long elapsedFrames = Math.max(0,
+                (receivedNanos - this.lastFrameNanos - lastDurationNanos + FRAME_NANOS / 2) / FRAME_NANOS);
+        if (Math.abs(timestampFrames - elapsedFrames) > MAX_TIMESTAMP_DRIFT_FRAMES) {
+            return elapsedFrames;
+        }
+        return Math.max(0, timestampFrames);
+    }
+
+    void flush() throws IOException {
+        if (!this.closed) {
+            this.writer.flush();
+        }
+    }
+
+    void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.writer.finish();
+        } finally {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.recording;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.AudioReceiveHandler;
+import space.npstr.magma.Member;
+import space.npstr.magma.connections.Mailbox;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the voice of the users in the voice channel of a bot member, without decoding it: the opus frames are
+ * written as they are received into one Ogg Opus file per user, named {@code <user id>-<start millis>.opus}, in the
+ * directory of the recording.
+ * <p>
+ * The receiving thread only copies the frames and queues them. The files are opened, written and flushed by a mailbox
+ * on the elastic scheduler, since that blocks on the disk. Writes are collected in large buffers, which are written to
+ * the files when full, and every second so that a crash loses little. When the disk falls behind by too many frames,
+ * further frames are dropped, and their gaps filled with silence like lost ones. The files are finished when the
+ * recorder is closed.
+ */
+public class VoiceRecorder implements AudioReceiveHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(VoiceRecorder.class);
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    // ten minutes of a single user
+    private static final int MAX_QUEUED_FRAMES = 30_000;
+
+    private final Path directory;
+    // file access, in posting order, off the receiving thread
+    private final Mailbox<Runnable> writes = new Mailbox<>(Runnable::run, Schedulers.elastic());
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final Disposable flushTask;
+    private volatile boolean closed = false;
+    private volatile boolean dropping = false;
+
+    // only touched by the mailbox
+    private final Map<String, UserRecording> recordings = new HashMap<>();
+    private boolean finished = false;
+
+    public VoiceRecorder(final Path directory) {
+        this.directory = directory;
+        this.flushTask = Schedulers.elastic().schedulePeriodically(() -> this.writes.post(this::flush),
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    @Override
+    public void handleOpusFrame(final Member member, final String userId, final char sequence, final int timestamp,
+                                final ByteBuffer opus) {
+        if (this.closed) {
+            return;
+        }
+        final long receivedNanos = System.nanoTime();
+        if (this.queuedFrames.incrementAndGet() > MAX_QUEUED_FRAMES) {
+            this.queuedFrames.decrementAndGet();
+            if (!this.dropping) {
+                this.dropping = true;
+                log.warn("Recording to {} can not keep up, dropping frames", this.directory);
+            }
+            return;
+        }
+        this.dropping = false;
+        // the buffer of the frame is reused by the receiver once this returns
+        final ByteBuffer frame = ByteBuffer.allocate(opus.remaining());
+        frame.put(opus.duplicate());
+        ((Buffer) frame).flip();
+        this.writes.post(() -> this.write(member, userId, timestamp, receivedNanos, frame));
+    }
+
+    /**
+     * Finish all files once the frames received so far have been written. Frames received afterwards are ignored.
+     */
+    public void close() {
+        this.closed = true;
+        this.flushTask.dispose();
+        this.writes.post(this::finish);
+    }
+
+    private void write(final Member member, final String userId, final int timestamp, final long receivedNanos,
+                       final ByteBuffer frame) {
+        this.queuedFrames.decrementAndGet();
+        if (this.finished) {
+            // received while the recorder was being closed
+            return;
+        }
+        UserRecording recording = this.recordings.get(userId);
+        if (recording == null) {
+            recording = this.open(userId);
+            if (recording == null) {
+                return;
+            }
+            this.recordings.put(userId, recording);
+        }
+        try {
+            recording.write(timestamp, receivedNanos, frame);
+        } catch (final IOException e) {
+            log.error("Failed to record voice of user {} in guild {}, stopping its recording", userId,
+                    member.getGuildId(), e);
+            this.recordings.remove(userId);
+            closeQuietly(recording);
+        }
+    }
+
+    @Nullable
+    private UserRecording open(final String userId) {
+        final Path file = this.directory.resolve(userId + "-" + System.currentTimeMillis() + ".opus");
+        try {
+            Files.createDirectories(this.directory);
+            final UserRecording recording = new UserRecording(file);
+            log.debug("Recording user {} to {}", userId, file);
+            return recording;
+        } catch (final IOException e) {
+            log.error("Failed to create recording {}", file, e);
+            return null;
+        }
+    }
+
+    private void flush() {
+        this.recordings.forEach((userId, recording) -> {
+            try {
+                recording.flush();
+            } catch (final IOException e) {
+                log.warn("Failed to flush recording of user {}", userId, e);
+            }
+        });
+    }
+
+    private void finish() {
+        this.finished = true;
+        this.recordings.values().forEach(VoiceRecorder::closeQuietly);
+        this.recordings.clear();
+    }
+
+    private static void closeQuietly(final UserRecording recording) {
+        try {
+            recording.close();
+        } catch (final IOException e) {
+            log.warn("Failed to finish recording", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.BufferOverflowStrategy;
+import space.npstr.magma.events.api.MagmaEvent;
+import space.npstr.magma.events.api.WebSocketClosed;
+import space.npstr.magma.events.api.WebSocketClosedApiEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ApiEventBroadcasterTest {
+
+    private static final Member MEMBER_A = MagmaMember.builder().userId("1").guildId("10").build();
+    private static final Member MEMBER_B = MagmaMember.builder().userId("1").guildId("20").build();
+
+    @Test
+    public void everySubscriberReceivesEveryEvent() {
+        final ApiEventBroadcaster broadcaster = new ApiEventBroadcaster(16, BufferOverflowStrategy.ERROR);
+        final List<MagmaEvent> first = new ArrayList<>();
+        final List<MagmaEvent> second = new ArrayList<>();
+        broadcaster.stream(MagmaEvent.class, event -> true).subscribe(first::add);
+        broadcaster.stream(MagmaEvent.class, event -> true).subscribe(second::add);
+
+        final MagmaEvent event = closed(MEMBER_A, 1000);
+        broadcaster.publish(event);
+
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertSame(event, first.get(0));
+        assertSame(event, second.get(0));
+    }
+
+    @Test
+    public void slowSubscriberDropsOldestWithoutHoldingUpOthers() {
+        final ApiEventBroadcaster broadcaster = new ApiEventBroadcaster(4, BufferOverflowStrategy.DROP_OLDEST);
+        final List<Integer> fast = new ArrayList<>();
+        final List<Integer> slow = new ArrayList<>();
+        broadcaster.stream(WebSocketClosed.class, event -> true).subscribe(event -> fast.add(event.getCloseCode()));
+        final BaseSubscriber<WebSocketClosed> slowSubscriber = new BaseSubscriber<WebSocketClosed>() {
+            @Override
+            protected void hookOnSubscribe(final Subscription subscription) {
+                // request nothing yet
+            }
+
+            @Override
+            protected void hookOnNext(final WebSocketClosed event) {
+                slow.add(event.getCloseCode());
+            }
+        };
+        broadcaster.stream(WebSocketClosed.class, event -> true).subscribe(slowSubscriber);
+
+        IntStream.range(0, 10).forEach(i -> broadcaster.publish(closed(MEMBER_A, i)));
+        assertEquals(IntStream.range(0, 10).boxed().collect(Collectors.toList()), fast);
+        assertTrue(slow.isEmpty());
+
+        slowSubscriber.requestUnbounded();
+        assertEquals(IntStream.range(6, 10).boxed().collect(Collectors.toList()), slow);
+    }
+
+    @Test
+    public void filtersBeforeBuffering() {
+        final ApiEventBroadcaster broadcaster = new ApiEventBroadcaster(1, BufferOverflowStrategy.ERROR);
+        final List<MagmaEvent> received = new ArrayList<>();
+        final BaseSubscriber<WebSocketClosed> subscriber = new BaseSubscriber<WebSocketClosed>() {
+            @Override
+            protected void hookOnSubscribe(final Subscription subscription) {
+            }
+
+            @Override
+            protected void hookOnNext(final WebSocketClosed event) {
+                received.add(event);
+            }
+        };
+        broadcaster.stream(WebSocketClosed.class, event -> event.getMember().equals(MEMBER_A)).subscribe(subscriber);
+
+        // would overflow the buffer of one if it was not filtered out
+        broadcaster.publish(closed(MEMBER_B, 1000));
+        broadcaster.publish(closed(MEMBER_B, 1001));
+        broadcaster.publish(closed(MEMBER_A, 1002));
+
+        subscriber.requestUnbounded();
+        assertFalse(subscriber.isDisposed());
+        assertEquals(1, received.size());
+        assertEquals(MEMBER_A, received.get(0).getMember());
+    }
+
+    @Test
+    public void completesCurrentAndLaterSubscribers() {
+        final ApiEventBroadcaster broadcaster = new ApiEventBroadcaster(16, BufferOverflowStrategy.ERROR);
+        final boolean[] completed = new boolean[2];
+        broadcaster.stream(MagmaEvent.class, event -> true).subscribe(event -> {}, error -> {}, () -> completed[0] = true);
+        broadcaster.complete();
+        broadcaster.stream(MagmaEvent.class, event -> true).subscribe(event -> {}, error -> {}, () -> completed[1] = true);
+
+        assertTrue(completed[0]);
+        assertTrue(completed[1]);
+    }
+
+    private static MagmaEvent closed(final Member member, final int code) {
+        return WebSocketClosedApiEvent.builder()
+                .member(member)
+                .closeCode(code)
+                .reason("test")
+                .isByRemote(false)
+                .build();
+    }
+}
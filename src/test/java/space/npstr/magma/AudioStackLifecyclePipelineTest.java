@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.xnio.OptionMap;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import space.npstr.magma.WebsocketConnectionState.Phase;
+import space.npstr.magma.connections.UdpReceiver;
+import space.npstr.magma.connections.hax.ClosingWebSocketClient;
+import space.npstr.magma.events.api.WebSocketClosedApiEvent;
+import space.npstr.magma.events.audio.lifecycle.CloseWebSocketLcEvent;
+import space.npstr.magma.events.audio.lifecycle.LifecycleEvent;
+import space.npstr.magma.events.audio.lifecycle.Shutdown;
+import space.npstr.magma.events.audio.lifecycle.UpdateReceiveHandlerLcEvent;
+import space.npstr.magma.events.audio.lifecycle.UpdateSendHandlerLcEvent;
+import space.npstr.magma.events.audio.lifecycle.UpdateSpeakingModeLcEvent;
+import space.npstr.magma.events.audio.lifecycle.VoiceServerUpdateLcEvent;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the lanes and audio stacks of the pipeline on the calling thread, with websocket connections that never get
+ * past connecting.
+ */
+public class AudioStackLifecyclePipelineTest {
+
+    private static final Member MEMBER = MagmaMember.builder()
+            .userId("166604053629894657")
+            .guildId("174820236481134592")
+            .build();
+
+    // none of the connections gets ready to send
+    private static final IAudioSendFactory NO_SEND_SYSTEM = packetProvider -> {
+        throw new UnsupportedOperationException();
+    };
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private DatagramChannel udpChannel;
+    private AudioStackLifecyclePipeline pipeline;
+
+    @BeforeEach
+    public void createPipeline() throws IOException {
+        this.udpChannel = DatagramChannel.open();
+        this.pipeline = new AudioStackLifecyclePipeline(MagmaConfiguration.builder().build(),
+                member -> NO_SEND_SYSTEM, new PendingWebSocketClient(), event -> {},
+                this.udpChannel.socket(), new UdpReceiver(this.udpChannel), this.scheduler);
+    }
+
+    @AfterEach
+    public void shutdown() throws IOException {
+        this.scheduler.resume();
+        this.pipeline.next(Shutdown.INSTANCE);
+        this.udpChannel.close();
+    }
+
+    @Test
+    public void idleStackIsEvicted() {
+        this.pipeline.next(sendHandler(null));
+        assertTrue(this.pipeline.getAudioConnectionState(MEMBER).isPresent());
+
+        this.scheduler.fireTimers();
+        assertFalse(this.pipeline.getAudioConnectionState(MEMBER).isPresent());
+    }
+
+    @Test
+    public void stackWithSendHandlerIsKept() {
+        this.pipeline.next(sendHandler(null));
+        this.pipeline.next(sendHandler(new NoAudio()));
+
+        this.scheduler.fireTimers();
+        assertTrue(this.pipeline.getAudioConnectionState(MEMBER).isPresent(),
+                "a send handler set after the stack became idle keeps it");
+    }
+
+    @Test
+    public void closeByClientRemovesHandlers() {
+        this.pipeline.next(sendHandler(new NoAudio()));
+        this.pipeline.next(closeByClient());
+
+        this.scheduler.fireTimers();
+        assertFalse(this.pipeline.getAudioConnectionState(MEMBER).isPresent());
+    }
+
+    @Test
+    public void closeCancelsQueuedVoiceServerUpdate() {
+        this.scheduler.pause();
+        this.pipeline.next(voiceServerUpdate("first.discord.media"));
+        this.pipeline.next(closeByClient());
+        this.scheduler.resume();
+
+        assertEquals(Optional.of(Phase.NO_CONNECTION), this.phase());
+        assertEquals(1, this.pipeline.getLifecycleStats().getCancelledVoiceServerUpdates());
+    }
+
+    @Test
+    public void voiceServerUpdateAfterCloseConnects() {
+        this.scheduler.pause();
+        this.pipeline.next(voiceServerUpdate("first.discord.media"));
+        this.pipeline.next(closeByClient());
+        this.pipeline.next(voiceServerUpdate("second.discord.media"));
+        this.scheduler.resume();
+
+        assertEquals(Optional.of(Phase.CONNECTING), this.phase());
+        assertEquals(1, this.pipeline.getLifecycleStats().getCancelledVoiceServerUpdates());
+    }
+
+    @Test
+    public void cancelledAsyncVoiceServerUpdateFails() {
+        final Magma magma = new Magma(member -> NO_SEND_SYSTEM, OptionMap.EMPTY, MagmaConfiguration.builder().build(),
+                this.scheduler);
+        try {
+            this.scheduler.pause();
+            final Mono<Void> sending = magma.provideVoiceServerUpdateAsync(MEMBER, MagmaServerUpdate.builder()
+                    .sessionId("session")
+                    .endpoint("first.discord.media")
+                    .token("token")
+                    .build());
+            magma.closeConnection(MEMBER);
+            this.scheduler.resume();
+
+            final ConnectionClosedException closed = assertThrows(ConnectionClosedException.class,
+                    () -> sending.block(Duration.ofSeconds(10)));
+            assertEquals(MEMBER, closed.getMember());
+        } finally {
+            magma.shutdown();
+        }
+    }
+
+    @Test
+    public void onlyLatestQueuedSendHandlerIsApplied() {
+        this.scheduler.pause();
+        this.pipeline.next(sendHandler(null));
+        this.pipeline.next(sendHandler(new NoAudio()));
+        this.pipeline.next(sendHandler(null));
+        this.pipeline.next(sendHandler(new NoAudio()));
+        this.scheduler.resume();
+
+        // a stack that handled a removal would have become idle and scheduled its eviction
+        assertEquals(0, this.scheduler.pendingTimers());
+        assertEquals(3, this.pipeline.getLifecycleStats().getCoalescedSendHandlerUpdates());
+    }
+
+    @Test
+    public void otherEventKeepsQueuedUpdatesApart() {
+        this.scheduler.pause();
+        this.pipeline.next(sendHandler(null));
+        this.pipeline.next(UpdateReceiveHandlerLcEvent.builder()
+                .member(MEMBER)
+                .audioReceiveHandler(Optional.empty())
+                .build());
+        this.pipeline.next(sendHandler(new NoAudio()));
+        this.scheduler.resume();
+
+        assertEquals(2, this.scheduler.pendingTimers(), "the stack is idle after the removal and the receive handler");
+        assertEquals(0, this.pipeline.getLifecycleStats().getCoalescedSendHandlerUpdates());
+        this.scheduler.fireTimers();
+        assertTrue(this.pipeline.getAudioConnectionState(MEMBER).isPresent());
+    }
+
+    @Test
+    public void countsCoalescedUpdatesPerType() {
+        this.scheduler.pause();
+        this.pipeline.next(voiceServerUpdate("first.discord.media"));
+        this.pipeline.next(voiceServerUpdate("second.discord.media"));
+        this.pipeline.next(voiceServerUpdate("third.discord.media"));
+        this.pipeline.next(speakingMode(SpeakingMode.VOICE));
+        this.pipeline.next(speakingMode(SpeakingMode.PRIORITY));
+        this.pipeline.next(sendHandler(new NoAudio()));
+        this.scheduler.resume();
+
+        final LifecycleStats stats = this.pipeline.getLifecycleStats();
+        assertEquals(2, stats.getCoalescedVoiceServerUpdates());
+        assertEquals(1, stats.getCoalescedSpeakingModeUpdates());
+        assertEquals(0, stats.getCoalescedSendHandlerUpdates());
+        assertEquals(0, stats.getCancelledVoiceServerUpdates());
+        assertEquals(Optional.of(Phase.CONNECTING), this.phase());
+    }
+
+    private Optional<Phase> phase() {
+        return this.pipeline.getAudioConnectionState(MEMBER).map(WebsocketConnectionState::getPhase);
+    }
+
+    private static LifecycleEvent voiceServerUpdate(final String endpoint) {
+        return VoiceServerUpdateLcEvent.builder()
+                .member(MEMBER)
+                .sessionId("session")
+                .endpoint(endpoint)
+                .token("token")
+                .build();
+    }
+
+    private static LifecycleEvent sendHandler(final AudioSendHandler sendHandler) {
+        return UpdateSendHandlerLcEvent.builder()
+                .member(MEMBER)
+                .audioSendHandler(Optional.ofNullable(sendHandler))
+                .build();
+    }
+
+    private static LifecycleEvent speakingMode(final SpeakingMode speakingMode) {
+        return UpdateSpeakingModeLcEvent.builder()
+                .member(MEMBER)
+                .speakingModes(EnumSet.of(speakingMode))
+                .build();
+    }
+
+    private static LifecycleEvent closeByClient() {
+        return CloseWebSocketLcEvent.builder()
+                .member(MEMBER)
+                .apiEvent(WebSocketClosedApiEvent.builder()
+                        .member(MEMBER)
+                        .closeCode(1000)
+                        .reason("Closed by client")
+                        .isByRemote(false)
+                        .build())
+                .build();
+    }
+
+    private static class NoAudio implements AudioSendHandler {
+
+        @Override
+        public boolean canProvide() {
+            return false;
+        }
+
+        @Override
+        public ByteBuffer provide20MsAudio() {
+            return null;
+        }
+    }
+
+    private static class PendingWebSocketClient implements ClosingWebSocketClient {
+
+        @Override
+        public Mono<Void> execute(final URI url, final WebSocketHandler handler) {
+            return Mono.never();
+        }
+
+        @Override
+        public Mono<Void> execute(final URI url, final HttpHeaders headers, final WebSocketHandler handler) {
+            return Mono.never();
+        }
+    }
+
+    /**
+     * Runs tasks right away on the calling thread, or queues them while paused. Delayed tasks only run when the timers
+     * are fired.
+     */
+    private static class ManualScheduler implements Scheduler {
+
+        private final Queue<Runnable> queued = new ArrayDeque<>();
+        private final List<Runnable> timers = new ArrayList<>();
+        private boolean paused;
+
+        private void pause() {
+            this.paused = true;
+        }
+
+        private void resume() {
+            this.paused = false;
+            Runnable task;
+            while ((task = this.queued.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private int pendingTimers() {
+            return this.timers.size();
+        }
+
+        private void fireTimers() {
+            final List<Runnable> due = new ArrayList<>(this.timers);
+            this.timers.clear();
+            due.forEach(Runnable::run);
+        }
+
+        @Override
+        public Disposable schedule(final Runnable task) {
+            if (this.paused) {
+                this.queued.add(task);
+            } else {
+                task.run();
+            }
+            return () -> {};
+        }
+
+        @Override
+        public Disposable schedule(final Runnable task, final long delay, final TimeUnit unit) {
+            this.timers.add(task);
+            return () -> {};
+        }
+
+        @Override
+        public Worker createWorker() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
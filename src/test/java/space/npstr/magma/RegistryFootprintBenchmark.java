@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the heap footprint and lookup cost of the audio stack registry at 100k members: nested string keyed
+ * concurrent hash maps, as used previously, against a single {@link SnowflakePairMap}, and against the layout of the
+ * {@link AudioStackLifecyclePipeline}, one map per lane picked by {@link SnowflakePairMap#shardOf}.
+ * <p>
+ * Not a test, run the main method by hand, ideally with a fixed heap ({@code -Xms2g -Xmx2g}).
+ */
+public class RegistryFootprintBenchmark {
+
+    private static final int ENTRIES = 100_000;
+    // spread the members over a realistic amount of bots
+    private static final int BOTS = 16;
+    private static final long FIRST_SNOWFLAKE = 174820236481134592L;
+    private static final int LANES = 8;
+
+    public static void main(final String[] args) {
+        final Member[] members = new Member[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            members[i] = MagmaMember.builder()
+                    .userId(Long.toUnsignedString(FIRST_SNOWFLAKE + (i % BOTS)))
+                    .guildId(Long.toUnsignedString(FIRST_SNOWFLAKE + 1_000_000 + i * 4194304L))
+                    .build();
+        }
+        final Object value = new Object();
+
+        final long baseline = usedHeap();
+        final Map<String, Map<String, Object>> nested = new ConcurrentHashMap<>();
+        for (final Member member : members) {
+            nested.computeIfAbsent(member.getUserId(), __ -> new ConcurrentHashMap<>())
+                    .put(member.getGuildId(), value);
+        }
+        final long nestedBytes = usedHeap() - baseline;
+
+        final long baseline2 = usedHeap();
+        final SnowflakePairMap<Object> primitive = new SnowflakePairMap<>();
+        for (final Member member : members) {
+            primitive.put(member.getUserIdAsLong(), member.getGuildIdAsLong(), value);
+        }
+        final long primitiveBytes = usedHeap() - baseline2;
+
+        final long baseline3 = usedHeap();
+        final List<SnowflakePairMap<Object>> lanes = new ArrayList<>(LANES);
+        for (int i = 0; i < LANES; i++) {
+            lanes.add(new SnowflakePairMap<>());
+        }
+        for (final Member member : members) {
+            lane(lanes, member).put(member.getUserIdAsLong(), member.getGuildIdAsLong(), value);
+        }
+        final long shardedBytes = usedHeap() - baseline3;
+
+        System.out.printf("nested string maps: %,d bytes, %.1f per entry%n", nestedBytes, (double) nestedBytes / ENTRIES);
+        System.out.printf("snowflake pair map: %,d bytes, %.1f per entry%n", primitiveBytes, (double) primitiveBytes / ENTRIES);
+        System.out.printf("%d lane maps: %,d bytes, %.1f per entry%n", LANES, shardedBytes,
+                (double) shardedBytes / ENTRIES);
+
+        for (int round = 0; round < 5; round++) {
+            long found = 0;
+            long start = System.nanoTime();
+            for (final Member member : members) {
+                if (nested.get(member.getUserId()).get(member.getGuildId()) != null) found++;
+            }
+            final long nestedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final Member member : members) {
+                if (primitive.get(member.getUserIdAsLong(), member.getGuildIdAsLong()) != null) found++;
+            }
+            final long primitiveNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final Member member : members) {
+                if (lane(lanes, member).get(member.getUserIdAsLong(), member.getGuildIdAsLong()) != null) found++;
+            }
+            final long shardedNanos = System.nanoTime() - start;
+            System.out.printf("lookups round %d: nested %.1fns, primitive %.1fns, lanes %.1fns per lookup (%d found)%n",
+                    round, (double) nestedNanos / ENTRIES, (double) primitiveNanos / ENTRIES,
+                    (double) shardedNanos / ENTRIES, found);
+        }
+    }
+
+    private static SnowflakePairMap<Object> lane(final List<SnowflakePairMap<Object>> lanes, final Member member) {
+        return lanes.get(SnowflakePairMap.shardOf(member.getUserIdAsLong(), member.getGuildIdAsLong(), lanes.size()));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
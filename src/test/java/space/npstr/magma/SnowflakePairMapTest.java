@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnowflakePairMapTest {
+
+    @Test
+    public void putGetRemove() {
+        final SnowflakePairMap<String> map = new SnowflakePairMap<>();
+        assertNull(map.put(166604053629894657L, 174820236481134592L, "a"));
+        assertNull(map.put(166604053629894657L, 174820236481134593L, "b"));
+
+        assertEquals("a", map.get(166604053629894657L, 174820236481134592L));
+        assertEquals("b", map.get(166604053629894657L, 174820236481134593L));
+        assertNull(map.get(174820236481134592L, 166604053629894657L), "pairs are ordered");
+
+        assertEquals("a", map.put(166604053629894657L, 174820236481134592L, "c"), "put replaces");
+        assertEquals(2, map.size());
+
+        assertEquals("c", map.remove(166604053629894657L, 174820236481134592L));
+        assertNull(map.remove(166604053629894657L, 174820236481134592L));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void computeIfAbsent() {
+        final SnowflakePairMap<String> map = new SnowflakePairMap<>();
+        assertEquals("a", map.computeIfAbsent(1, 2, () -> "a"));
+        assertEquals("a", map.computeIfAbsent(1, 2, () -> fail("must not be called when present")));
+    }
+
+    /**
+     * Lots of inserts and removals through several resizes, with the table small enough for long probe sequences,
+     * checked against a plain map.
+     */
+    @Test
+    public void matchesHashMap() {
+        final SnowflakePairMap<Long> map = new SnowflakePairMap<>();
+        final Map<List<Long>, Long> expected = new HashMap<>();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            final long first = random.nextInt(64);
+            final long second = random.nextInt(256);
+            final List<Long> key = pair(first, second);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(first, second));
+            } else {
+                final long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(first, second, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key.get(0), key.get(1))));
+        final List<Long> values = new ArrayList<>();
+        map.forEachValue(values::add);
+        assertEquals(expected.size(), values.size());
+    }
+
+    /**
+     * The maps of a sharded layout index their tables by the low bits of the hash, so the shard must not be picked
+     * from those, or each map only ever uses a fraction of its slots as home slots.
+     */
+    @Test
+    public void shardsUseAllSlotsOfTheirMaps() {
+        final int shards = 8;
+        final int slots = 1024;
+        final List<Set<Integer>> homeSlots = new ArrayList<>();
+        final int[] sizes = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            homeSlots.add(new HashSet<>());
+        }
+        for (int i = 0; i < 100_000; i++) {
+            final long user = 174820236481134592L + (i % 16);
+            final long guild = 174820236482134592L + i * 4194304L;
+            final int shard = SnowflakePairMap.shardOf(user, guild, shards);
+            sizes[shard]++;
+            homeSlots.get(shard).add(SnowflakePairMap.hash(user, guild) & (slots - 1));
+        }
+
+        for (int i = 0; i < shards; i++) {
+            assertTrue(Math.abs(sizes[i] - 100_000 / shards) < 100_000 / shards / 10, "shard " + i + " is unbalanced");
+            assertTrue(homeSlots.get(i).size() > slots * 99 / 100, "shard " + i + " misses home slots");
+        }
+    }
+
+    private static List<Long> pair(final long first, final long second) {
+        final List<Long> pair = new ArrayList<>(2);
+        pair.add(first);
+        pair.add(second);
+        return pair;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.broadcast;
+
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AudioBroadcastTest {
+
+    @Test
+    public void subscriptionsShareFramesAndTrailByOneTick() {
+        final CountingUpstream upstream = new CountingUpstream();
+        final AudioBroadcast broadcast = new AudioBroadcast(upstream);
+        final AudioBroadcast.Subscription first = broadcast.subscribe();
+        final AudioBroadcast.Subscription second = broadcast.subscribe();
+        assertFalse(first.canProvide());
+
+        broadcast.tick();
+        broadcast.tick();
+        assertEquals(2, upstream.provided);
+        assertEquals(0, frameNumber(first.provide20MsAudio()));
+        assertEquals(0, frameNumber(second.provide20MsAudio()));
+        assertEquals(1, frameNumber(first.provide20MsAudio()));
+
+        broadcast.tick();
+        assertEquals(1, frameNumber(second.provide20MsAudio()));
+        assertEquals(2, frameNumber(first.provide20MsAudio()));
+        assertEquals(2, frameNumber(second.provide20MsAudio()));
+        assertEquals(3, upstream.provided);
+    }
+
+    @Test
+    public void lateSubscriptionsStartAtLatestFrame() {
+        final AudioBroadcast broadcast = new AudioBroadcast(new CountingUpstream());
+        for (int i = 0; i < 10; i++) {
+            broadcast.tick();
+        }
+        final AudioBroadcast.Subscription late = broadcast.subscribe();
+        assertEquals(8, frameNumber(late.provide20MsAudio()));
+        assertEquals(0, late.getSkippedFrames());
+    }
+
+    @Test
+    public void underrunsPlaySilenceAndLaggingSubscriptionsSkipAhead() {
+        final AudioBroadcast broadcast = new AudioBroadcast(new CountingUpstream());
+        final AudioBroadcast.Subscription subscription = broadcast.subscribe();
+        broadcast.tick();
+        assertEquals(0, frameNumber(subscription.provide20MsAudio()));
+
+        final ByteBuffer silence = subscription.provide20MsAudio();
+        assertNotNull(silence);
+        assertEquals(3, silence.remaining());
+        assertEquals(1, subscription.getUnderruns());
+
+        for (int i = 0; i < 40; i++) {
+            broadcast.tick();
+        }
+        assertEquals(39, frameNumber(subscription.provide20MsAudio()));
+        assertEquals(38, subscription.getSkippedFrames());
+    }
+
+    @Test
+    public void stoppedBroadcastEndsAfterRemainingFrames() {
+        final AudioBroadcast broadcast = new AudioBroadcast(new CountingUpstream());
+        final AudioBroadcast.Subscription subscription = broadcast.subscribe();
+        broadcast.tick();
+        broadcast.tick();
+        broadcast.stop();
+
+        assertTrue(subscription.canProvide());
+        assertEquals(0, frameNumber(subscription.provide20MsAudio()));
+        assertEquals(1, frameNumber(subscription.provide20MsAudio()));
+        assertFalse(subscription.canProvide());
+        assertNull(subscription.provide20MsAudio());
+        assertEquals(0, subscription.getUnderruns());
+    }
+
+    @Test
+    public void longFramesArePulledOncePerDuration() {
+        final CountingUpstream upstream = new CountingUpstream(3 << 3); // 60ms
+        final AudioBroadcast broadcast = new AudioBroadcast(upstream);
+        for (int i = 0; i < 7; i++) {
+            broadcast.tick();
+        }
+        assertEquals(3, upstream.provided);
+        assertEquals(3, broadcast.getTicks());
+    }
+
+    private static int frameNumber(final ByteBuffer frame) {
+        assertNotNull(frame);
+        return frame.getShort(frame.position() + 2);
+    }
+
+    // provides frames holding their number after the TOC byte, reusing its buffer
+    private static class CountingUpstream implements AudioSendHandler {
+        private final ByteBuffer buffer = ByteBuffer.allocate(4);
+        private final int toc;
+        private int provided = 0;
+
+        private CountingUpstream() {
+            this(1 << 3); // 20ms
+        }
+
+        private CountingUpstream(final int toc) {
+            this.toc = toc;
+        }
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer provide20MsAudio() {
+            this.buffer.clear();
+            this.buffer.put(0, (byte) this.toc);
+            this.buffer.putShort(2, (short) this.provided++);
+            return this.buffer;
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+}
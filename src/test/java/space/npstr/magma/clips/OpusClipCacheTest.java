@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.clips;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpusClipCacheTest {
+
+    @Test
+    public void loadsOnceAndCountsHits() throws IOException {
+        final OpusClipCache cache = new OpusClipCache(1024);
+        final AtomicInteger loads = new AtomicInteger();
+        final OpusClipCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return frames(3, 10);
+        };
+
+        final OpusClip first = cache.acquire("a", loader);
+        final OpusClip second = cache.acquire("a", loader);
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertEquals(3, first.getFrameCount());
+        assertEquals(30, first.getSize());
+        assertArrayEquals(frame(10, 2), bytes(first.getFrame(2)));
+
+        final OpusClipCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getClipCount());
+        assertEquals(1, stats.getClipsInUse());
+        assertEquals(30, stats.getSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedClipsNotInUse() throws IOException {
+        final OpusClipCache cache = new OpusClipCache(100);
+        final OpusClip a = cache.acquire("a", () -> frames(4, 10));
+        final OpusClip b = cache.acquire("b", () -> frames(4, 10));
+        b.release();
+        a.release();
+        // a was released last, but acquired first, which is what the order goes by
+        cache.acquire("c", () -> frames(4, 10)).release();
+
+        final OpusClipCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getClipCount());
+        assertEquals(80, stats.getSize());
+        final AtomicInteger loads = new AtomicInteger();
+        cache.acquire("a", () -> {
+            loads.incrementAndGet();
+            return frames(4, 10);
+        }).release();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void keepsClipsInUse() throws IOException {
+        final OpusClipCache cache = new OpusClipCache(10);
+        final OpusClip clip = cache.acquire("a", () -> frames(4, 10));
+        final OpusClip again = cache.acquire("a", () -> frames(4, 10));
+        assertEquals(1, cache.getStats().getClipCount());
+
+        clip.release();
+        assertEquals(1, cache.getStats().getClipCount());
+        again.release();
+        assertEquals(0, cache.getStats().getClipCount());
+        assertEquals(1, cache.getStats().getEvictions());
+        assertThrows(IllegalStateException.class, again::release);
+    }
+
+    @Test
+    public void sendHandlerPlaysClipAndReleasesIt() throws IOException {
+        final OpusClipCache cache = new OpusClipCache(0);
+        final OpusClipSendHandler handler = new OpusClipSendHandler(cache.acquire("a", () -> frames(3, 5)));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(handler.canProvide());
+            assertArrayEquals(frame(5, i), bytes(handler.provide20MsAudio()));
+        }
+        assertEquals(1, cache.getStats().getClipsInUse());
+        assertFalse(handler.canProvide());
+        assertNull(handler.provide20MsAudio());
+        assertEquals(0, cache.getStats().getClipCount());
+
+        final OpusClipSendHandler stopped = new OpusClipSendHandler(cache.acquire("b", () -> frames(3, 5)));
+        stopped.stop();
+        stopped.stop();
+        assertFalse(stopped.canProvide());
+        assertEquals(0, cache.getStats().getClipCount());
+    }
+
+    private static List<ByteBuffer> frames(final int count, final int length) {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(ByteBuffer.wrap(frame(length, i)));
+        }
+        return frames;
+    }
+
+    private static byte[] frame(final int length, final int fill) {
+        final byte[] frame = new byte[length];
+        Arrays.fill(frame, (byte) fill);
+        return frame;
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
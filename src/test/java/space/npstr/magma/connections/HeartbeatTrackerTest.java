@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import space.npstr.magma.HeartbeatStats;
+
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeartbeatTrackerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void rttOfAckedHeartbeat() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        tracker.sent(1, 100 * MS);
+
+        final OptionalLong rtt = tracker.acknowledged(OptionalInt.of(1), 142 * MS);
+        assertEquals(OptionalLong.of(42 * MS), rtt, "rtt is the time between sending and the ack");
+        assertEquals(0, tracker.getMissedAcks(), "acked heartbeat is no longer outstanding");
+
+        final HeartbeatStats stats = tracker.getStats();
+        assertEquals(OptionalLong.of(42), stats.getLastRttMillis());
+        assertEquals(42, stats.getAverageRttMillis().getAsDouble(), 0.001);
+        assertEquals(1L, (long) stats.getRttHistogram().get(1), "42ms falls into the 25-50ms bucket");
+    }
+
+    @Test
+    public void ackCoversOlderHeartbeats() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        tracker.sent(1, 0);
+        tracker.sent(2, 10 * MS);
+        tracker.sent(3, 20 * MS);
+        assertEquals(3, tracker.getMissedAcks());
+
+        assertEquals(OptionalLong.of(20 * MS), tracker.acknowledged(OptionalInt.of(2), 30 * MS));
+        assertEquals(1, tracker.getMissedAcks(), "heartbeats sent before the acked one are dropped");
+    }
+
+    @Test
+    public void ackWithoutNonceMatchesOldest() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        tracker.sent(7, 0);
+        tracker.sent(8, 50 * MS);
+
+        assertEquals(OptionalLong.of(60 * MS), tracker.acknowledged(OptionalInt.empty(), 60 * MS));
+        assertEquals(1, tracker.getMissedAcks());
+    }
+
+    @Test
+    public void unknownAckIsIgnored() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        assertFalse(tracker.acknowledged(OptionalInt.empty(), 0).isPresent(), "nothing outstanding");
+
+        tracker.sent(1, 0);
+        assertFalse(tracker.acknowledged(OptionalInt.of(5), 10 * MS).isPresent(), "nonce was never sent");
+        assertEquals(1, tracker.getMissedAcks());
+        assertFalse(tracker.getStats().getLastRttMillis().isPresent());
+    }
+
+    @Test
+    public void movingAverage() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        tracker.sent(1, 0);
+        tracker.acknowledged(OptionalInt.of(1), 100 * MS);
+        tracker.sent(2, 0);
+        tracker.acknowledged(OptionalInt.of(2), 200 * MS);
+
+        final HeartbeatStats stats = tracker.getStats();
+        assertEquals(125, stats.getAverageRttMillis().getAsDouble(), 0.001, "new samples are weighted by a quarter");
+        assertEquals(OptionalLong.of(200), stats.getLastRttMillis());
+    }
+
+    @Test
+    public void resetForgetsOutstanding() {
+        final HeartbeatTracker tracker = new HeartbeatTracker();
+        tracker.sent(1, 0);
+        tracker.sent(2, 0);
+        tracker.reset();
+        assertEquals(0, tracker.getMissedAcks());
+        assertEquals(0, tracker.getStats().getMissedAcks());
+    }
+}
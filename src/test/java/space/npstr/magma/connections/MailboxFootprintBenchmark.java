@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compares the heap footprint of the queueing a single voice connection needs: the reactor chains used before,
+ * against the mailboxes replacing them. Only the queueing machinery is measured, not the connections themselves.
+ * <p>
+ * Before, per connection:
+ * <ul>
+ *   <li>audio stack lifecycle: processor, publishOn, subscriber</li>
+ *   <li>audio connection events: processor, publishOn, subscriber</li>
+ *   <li>websocket outbound: processor, subscriber</li>
+ *   <li>websocket outbound held back until ready: processor</li>
+ *   <li>session handler intermediary: processor</li>
+ * </ul>
+ * After: an audio stack mailbox, a serial executor shared by websocket and audio connection, the list holding events
+ * back until ready and the session handler intermediary processor, which is what the websocket session sends from.
+ * <p>
+ * Not a test, run the main method by hand, ideally with a fixed heap ({@code -Xms2g -Xmx2g}).
+ */
+public class MailboxFootprintBenchmark {
+
+    private static final int CONNECTIONS = 10_000;
+
+    public static void main(final String[] args) {
+        final long before = measure(MailboxFootprintBenchmark::reactorChains);
+        final long after = measure(MailboxFootprintBenchmark::mailboxes);
+        System.out.printf("reactor chains: %,d bytes per connection%n", before / CONNECTIONS);
+        System.out.printf("mailboxes:      %,d bytes per connection%n", after / CONNECTIONS);
+    }
+
+    private static long measure(final Supplier<Object> connection) {
+        final List<Object> connections = new ArrayList<>(CONNECTIONS);
+        final long baseline = usedHeap();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            connections.add(connection.get());
+        }
+        final long used = usedHeap() - baseline;
+        // keep them reachable until measured
+        if (connections.size() != CONNECTIONS) {
+            throw new IllegalStateException();
+        }
+        return used;
+    }
+
+    private static Object reactorChains() {
+        final List<Object> parts = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final UnicastProcessor<Object> processor = UnicastProcessor.create();
+            final FluxSink<Object> sink = processor.sink();
+            processor.publishOn(Schedulers.parallel()).subscribe(new NoopSubscriber());
+            parts.add(sink);
+        }
+        final UnicastProcessor<Object> outbound = UnicastProcessor.create();
+        parts.add(outbound.sink());
+        outbound.subscribe(new NoopSubscriber());
+        final UnicastProcessor<Object> ready = UnicastProcessor.create();
+        parts.add(ready.sink());
+        final UnicastProcessor<Object> intermediary = UnicastProcessor.create();
+        parts.add(intermediary.sink());
+        return parts;
+    }
+
+    private static Object mailboxes() {
+        final List<Object> parts = new ArrayList<>();
+        parts.add(new Mailbox<>(message -> {}));
+        parts.add(new SerialExecutor());
+        parts.add(new ArrayList<>());
+        final UnicastProcessor<Object> intermediary = UnicastProcessor.create();
+        parts.add(intermediary.sink());
+        return parts;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class NoopSubscriber extends BaseSubscriber<Object> {
+    }
+}
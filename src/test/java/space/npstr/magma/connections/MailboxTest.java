@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MailboxTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 50_000;
+
+    @Test
+    public void keepsOrderOfEachProducer() throws InterruptedException {
+        final int[] lastSeen = new int[PRODUCERS];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger concurrentHandlers = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(PRODUCERS * MESSAGES_PER_PRODUCER);
+
+        final Mailbox<int[]> mailbox = new Mailbox<>(message -> {
+            if (concurrentHandlers.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            // handled by one thread at a time, so the plain array is safe
+            if (message[1] != lastSeen[message[0]] + 1) {
+                outOfOrder.incrementAndGet();
+            }
+            lastSeen[message[0]] = message[1];
+            concurrentHandlers.decrementAndGet();
+            done.countDown();
+        }, Schedulers.parallel());
+
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 1; i <= MESSAGES_PER_PRODUCER; i++) {
+                    mailbox.post(new int[]{producer, i});
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS), "all messages are handled");
+        assertEquals(0, outOfOrder.get(), "messages of a producer are handled in posting order");
+        assertEquals(0, overlaps.get(), "messages are never handled concurrently");
+    }
+
+    @Test
+    public void disposedMailboxDropsMessages() throws InterruptedException {
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Mailbox<Integer> mailbox = new Mailbox<>(message -> {
+            handled.incrementAndGet();
+            first.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, Schedulers.parallel());
+
+        mailbox.post(1);
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+        mailbox.post(2);
+        mailbox.dispose();
+        mailbox.post(3);
+        release.countDown();
+
+        // give a wrongly continued drain the chance to handle the queued message
+        Thread.sleep(100);
+        assertEquals(1, handled.get(), "queued and later messages are dropped");
+        assertTrue(mailbox.isDisposed());
+    }
+}
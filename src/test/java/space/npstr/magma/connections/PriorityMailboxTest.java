@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PriorityMailboxTest {
+
+    @Test
+    public void urgentMessagesOvertakeQueuedOnes() throws InterruptedException {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final PriorityMailbox<String> mailbox = new PriorityMailbox<>(message -> {
+            handled.add(message);
+            if ("blocking".equals(message)) {
+                blocking.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if ("regular 2".equals(message)) {
+                done.countDown();
+            }
+        }, Schedulers.parallel());
+
+        mailbox.post("blocking");
+        assertTrue(blocking.await(10, TimeUnit.SECONDS));
+        mailbox.post("regular 1");
+        mailbox.post("regular 2");
+        mailbox.postUrgent("urgent 1");
+        mailbox.postUrgent("urgent 2");
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocking", "urgent 1", "urgent 2", "regular 1", "regular 2"), handled);
+    }
+
+    @Test
+    public void urgentMessageOnEmptyMailbox() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final PriorityMailbox<String> mailbox = new PriorityMailbox<>(message -> done.countDown(), Schedulers.parallel());
+
+        mailbox.postUrgent("urgent");
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void runsTasksInSubmissionOrder() throws InterruptedException {
+        final SerialExecutor executor = new SerialExecutor(Schedulers.parallel());
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 10_000; i++) {
+            final int task = i;
+            executor.execute(() -> executed.add(task));
+        }
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(IntStream.range(0, 10_000).boxed().collect(Collectors.toList()), executed);
+    }
+
+    @Test
+    public void nestedTaskRunsInline() throws InterruptedException {
+        final SerialExecutor executor = new SerialExecutor(Schedulers.parallel());
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            assertTrue(executor.isInContext());
+            executed.add("outer start");
+            executor.execute(() -> executed.add("nested"));
+            executed.add("outer end");
+            done.countDown();
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("outer start", "nested", "outer end"), executed);
+        assertFalse(executor.isInContext(), "submitting thread is not part of the execution context");
+    }
+
+    @Test
+    public void failingTaskDoesNotStopQueue() throws InterruptedException {
+        final SerialExecutor executor = new SerialExecutor(Schedulers.parallel());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            throw new IllegalStateException("expected by the test");
+        });
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
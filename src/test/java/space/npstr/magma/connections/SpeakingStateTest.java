@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import org.junit.jupiter.api.Test;
+import space.npstr.magma.SpeakingMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpeakingStateTest {
+
+    private static final int SSRC = 42;
+    private static final long FRAME = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final List<Integer> published = new ArrayList<>();
+    private final SpeakingState state = new SpeakingState(() -> EnumSet.of(SpeakingMode.VOICE, SpeakingMode.PRIORITY),
+            (mask, ssrc) -> {
+                assertEquals(SSRC, ssrc);
+                this.published.add(mask);
+            });
+
+    @Test
+    public void startsSpeakingOnce() {
+        for (int i = 0; i < 10; i++) {
+            this.state.audible(SSRC, i * FRAME);
+        }
+
+        assertTrue(this.state.isSpeaking());
+        assertEquals(Arrays.asList(SpeakingMode.toMask(EnumSet.of(SpeakingMode.VOICE, SpeakingMode.PRIORITY))),
+                this.published);
+    }
+
+    @Test
+    public void shortPausesKeepSpeaking() {
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            now += FRAME;
+            if (i % 3 == 0) {
+                this.state.inaudible(SSRC, now);
+            } else {
+                this.state.audible(SSRC, now);
+            }
+        }
+
+        assertTrue(this.state.isSpeaking());
+        assertEquals(1, this.published.size());
+    }
+
+    @Test
+    public void stopsSpeakingOnceAfterReleaseDelay() {
+        this.state.audible(SSRC, 0);
+        this.state.inaudible(SSRC, SpeakingState.RELEASE_NANOS - 1);
+        assertTrue(this.state.isSpeaking());
+
+        this.state.inaudible(SSRC, SpeakingState.RELEASE_NANOS);
+        this.state.inaudible(SSRC, SpeakingState.RELEASE_NANOS + FRAME);
+
+        assertFalse(this.state.isSpeaking());
+        assertEquals(Arrays.asList(SpeakingMode.toMask(EnumSet.of(SpeakingMode.VOICE, SpeakingMode.PRIORITY)), 0),
+                this.published);
+    }
+
+    @Test
+    public void stopWhenNotSpeakingPublishesNothing() {
+        this.state.stop(SSRC);
+        this.state.inaudible(SSRC, SpeakingState.RELEASE_NANOS);
+
+        assertTrue(this.published.isEmpty());
+    }
+
+    @Test
+    public void concurrentCallersPublishOneTransition() throws InterruptedException {
+        final List<Integer> masks = new ArrayList<>();
+        final SpeakingState shared = new SpeakingState(() -> EnumSet.of(SpeakingMode.VOICE),
+                (mask, ssrc) -> {
+                    synchronized (masks) {
+                        masks.add(mask);
+                    }
+                });
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    shared.audible(SSRC, 0);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(SpeakingMode.VOICE.getKey()), masks);
+    }
+}
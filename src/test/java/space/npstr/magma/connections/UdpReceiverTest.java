@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.connections;
+
+import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.MagmaMember;
+import space.npstr.magma.Member;
+import space.npstr.magma.processing.PacketEncryptor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two bots in the same voice channel, whose connections learned the same ssrc of a user from the same voice server.
+ * Packets are sent over loopback, and the single receiving thread handles them in the order they were sent.
+ */
+public class UdpReceiverTest {
+
+    private static final int SSRC = 42;
+    private static final String USER_ID = "166604053629894657";
+    private static final EncryptionMode MODE = EncryptionMode.XSALSA20_POLY1305_LITE;
+    private static final IAudioSendFactory NO_SEND_SYSTEM = packetProvider -> {
+        throw new UnsupportedOperationException();
+    };
+
+    private final PacketEncryptor encryptor = new PacketEncryptor(64);
+    private final AtomicLong nonce = new AtomicLong();
+    private final BlockingQueue<Character> firstFrames = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Character> secondFrames = new LinkedBlockingQueue<>();
+    private DatagramChannel receiverChannel;
+    private DatagramChannel voiceServer;
+    private InetSocketAddress voiceServerAddress;
+    private UdpReceiver receiver;
+    private AudioConnection first;
+    private AudioConnection second;
+
+    @BeforeEach
+    public void connect() throws IOException {
+        this.receiverChannel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.voiceServer = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.voiceServerAddress = (InetSocketAddress) this.voiceServer.getLocalAddress();
+        this.receiver = new UdpReceiver(this.receiverChannel);
+        this.receiver.start();
+        this.first = this.connection("174820236481134592", key(1), this.firstFrames);
+        this.second = this.connection("174820236481134593", key(2), this.secondFrames);
+        this.receiver.addRoute(this.voiceServerAddress, SSRC, USER_ID, this.first);
+        this.receiver.addRoute(this.voiceServerAddress, SSRC, USER_ID, this.second);
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        this.first.shutdown();
+        this.second.shutdown();
+        this.voiceServer.close();
+        this.receiverChannel.close();
+    }
+
+    @Test
+    public void packetReachesOnlyTheConnectionOfItsKey() throws Exception {
+        this.send((char) 0, key(2), 'b');
+        this.send((char) 1, key(1), 'a');
+
+        assertEquals('b', take(this.secondFrames));
+        assertEquals('a', take(this.firstFrames), "the first connection is tried first, but can not decrypt 'b'");
+        assertTrue(this.firstFrames.isEmpty());
+        assertTrue(this.secondFrames.isEmpty());
+    }
+
+    @Test
+    public void removingRouteKeepsTheOther() throws Exception {
+        this.receiver.removeRoute(this.voiceServerAddress, SSRC, this.first);
+        this.send((char) 0, key(1), 'a');
+        this.send((char) 1, key(2), 'b');
+
+        assertEquals('b', take(this.secondFrames));
+        assertTrue(this.secondFrames.isEmpty(), "the packet of the removed route is not handed to the other one");
+        assertTrue(this.firstFrames.isEmpty());
+    }
+
+    private AudioConnection connection(final String botId, final byte[] secretKey,
+                                       final BlockingQueue<Character> frames) {
+        final Member bot = MagmaMember.builder()
+                .userId(botId)
+                .guildId("174820236481134592")
+                .build();
+        final AudioConnection connection = new AudioConnection(new Bot(bot), NO_SEND_SYSTEM,
+                this.receiverChannel.socket(), this.receiver, new SerialExecutor(Schedulers.immediate()), false);
+        connection.setEncryptionMode(MODE);
+        connection.setSecretKey(secretKey);
+        connection.updateReceiveHandler((member, userId, sequence, timestamp, opus) -> {
+            // the frame is the toc byte, followed by the label of the test
+            frames.add((char) opus.get(opus.position() + 1));
+        });
+        return connection;
+    }
+
+    private void send(final char sequence, final byte[] secretKey, final char label) throws IOException {
+        final ByteBuffer opus = ByteBuffer.wrap(new byte[]{(byte) 0xFC, (byte) label});
+        final ByteBuffer packet = this.encryptor.encrypt(sequence, sequence * AudioConnection.OPUS_FRAME_SIZE, SSRC,
+                opus, MODE, secretKey, this.nonce::incrementAndGet);
+        this.voiceServer.send(packet, this.receiverChannel.getLocalAddress());
+    }
+
+    private static char take(final BlockingQueue<Character> frames) throws InterruptedException {
+        final Character frame = frames.poll(10, TimeUnit.SECONDS);
+        assertNotNull(frame, "no frame received");
+        return frame;
+    }
+
+    private static byte[] key(final int seed) {
+        final byte[] key = new byte[32];
+        Arrays.fill(key, (byte) seed);
+        return key;
+    }
+
+    private static class Bot implements AudioConnection.Signaling {
+
+        private final Member member;
+
+        private Bot(final Member member) {
+            this.member = member;
+        }
+
+        @Override
+        public Member getMember() {
+            return this.member;
+        }
+
+        @Override
+        public void setSpeaking(final int speaking, final int ssrc) {
+        }
+
+        @Override
+        public void standbyReady() {
+        }
+
+        @Override
+        public void sendingStarted() {
+        }
+    }
+}
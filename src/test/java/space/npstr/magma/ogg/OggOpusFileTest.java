@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OggOpusFileTest {
+
+    private static final int SERIAL = 7;
+
+    @Test
+    public void indexesPacketsOfMappedFile() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), SERIAL, 2, 312, 128 * 1024);
+        // spread over several pages
+        for (int i = 0; i < 200; i++) {
+            writer.writePacket(ByteBuffer.wrap(packet(300 + i, i)), 960L * (i + 1));
+        }
+        writer.finish();
+
+        final Path file = Files.createTempFile("magma", ".opus");
+        try {
+            Files.write(file, bytes.toByteArray());
+            final OggOpusFile opusFile = OggOpusFile.open(file);
+            assertEquals(2, opusFile.getChannelCount());
+            assertEquals(312, opusFile.getPreSkip());
+            assertEquals(200, opusFile.getPacketCount());
+            for (int i = 0; i < 200; i++) {
+                assertArrayEquals(packet(300 + i, i), bytes(opusFile.getPacket(i)));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void joinsPacketsContinuingOnNextPage() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), SERIAL, 2, 0, 128 * 1024);
+        writer.flush();
+        // the second packet is split into 255 and 45 bytes
+        final byte[] first = packet(10, 1);
+        final byte[] second = packet(300, 2);
+        final byte[] third = packet(20, 3);
+        bytes.write(page(0, 2, new int[]{10, 255}, concat(first, Arrays.copyOf(second, 255))));
+        bytes.write(page(0x01, 3, new int[]{45, 20}, concat(Arrays.copyOfRange(second, 255, 300), third)));
+
+        final OggOpusFile opusFile = OggOpusFile.of(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(3, opusFile.getPacketCount());
+        assertArrayEquals(first, bytes(opusFile.getPacket(0)));
+        assertArrayEquals(second, bytes(opusFile.getPacket(1)));
+        assertArrayEquals(third, bytes(opusFile.getPacket(2)));
+    }
+
+    @Test
+    public void rejectsCorruptPages() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), SERIAL, 2, 0, 128 * 1024);
+        writer.writePacket(ByteBuffer.wrap(packet(100, 1)), 960);
+        writer.finish();
+        final byte[] data = bytes.toByteArray();
+        data[data.length - 1] ^= 1;
+
+        assertThrows(IOException.class, () -> OggOpusFile.of(ByteBuffer.wrap(data)));
+        assertThrows(IOException.class, () -> OggOpusFile.of(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 1))));
+    }
+
+    @Test
+    public void sendHandlerPlaysFromSeekPosition() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), SERIAL, 2, 0, 128 * 1024);
+        for (int i = 0; i < 5; i++) {
+            writer.writePacket(ByteBuffer.wrap(packet(50, i)), 960L * (i + 1));
+        }
+        writer.finish();
+        final OggOpusFile opusFile = OggOpusFile.of(ByteBuffer.wrap(bytes.toByteArray()));
+        final OggOpusSendHandler first = new OggOpusSendHandler(opusFile);
+        final OggOpusSendHandler second = new OggOpusSendHandler(opusFile, 3);
+
+        assertArrayEquals(packet(50, 0), bytes(first.provide20MsAudio()));
+        assertArrayEquals(packet(50, 3), bytes(second.provide20MsAudio()));
+        assertArrayEquals(packet(50, 4), bytes(second.provide20MsAudio()));
+        assertFalse(second.canProvide());
+        assertNull(second.provide20MsAudio());
+
+        second.seek(1);
+        assertTrue(second.canProvide());
+        assertArrayEquals(packet(50, 1), bytes(second.provide20MsAudio()));
+        assertArrayEquals(packet(50, 1), bytes(first.provide20MsAudio()));
+    }
+
+    private static byte[] page(final int flags, final int sequence, final int[] lacing, final byte[] body) {
+        final ByteBuffer page = ByteBuffer.allocate(27 + lacing.length + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        page.put("OggS".getBytes())
+                .put((byte) 0)
+                .put((byte) flags)
+                .putLong(0)
+                .putInt(SERIAL)
+                .putInt(sequence)
+                .putInt(0)
+                .put((byte) lacing.length);
+        for (final int segment : lacing) {
+            page.put((byte) segment);
+        }
+        page.put(body);
+        page.putInt(22, OggCrc.update(0, page.array(), 0, page.capacity()));
+        return page.array();
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] packet(final int length, final int fill) {
+        final byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) fill);
+        return packet;
+    }
+}
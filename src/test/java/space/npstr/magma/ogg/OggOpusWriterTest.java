@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.ogg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OggOpusWriterTest {
+
+    @Test
+    public void crcMatchesCheckValue() {
+        final byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        // CRC-32/POSIX without its final xor
+        assertEquals(0x765E7680 ^ 0xFFFFFFFF, OggCrc.update(0, check, 0, check.length));
+    }
+
+    @Test
+    public void writesHeadersAndPackets() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), 42, 2, 0, 128 * 1024);
+        final byte[][] packets = {packet(3, 1), packet(510, 2), packet(600, 3), packet(0, 4)};
+        for (int i = 0; i < packets.length; i++) {
+            writer.writePacket(ByteBuffer.wrap(packets[i]), 960L * (i + 1));
+        }
+        writer.flush();
+        writer.writePacket(ByteBuffer.wrap(packet(100, 5)), 960L * 5);
+        writer.finish();
+
+        final List<Page> pages = Page.parseAll(bytes.toByteArray());
+        assertEquals(4, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(42, pages.get(i).serial);
+            assertEquals(i, pages.get(i).sequence);
+        }
+
+        final Page head = pages.get(0);
+        assertEquals(0x02, head.flags);
+        assertEquals(1, head.packets.size());
+        assertEquals("OpusHead", new String(head.packets.get(0), 0, 8, StandardCharsets.US_ASCII));
+        assertEquals(2, head.packets.get(0)[9]);
+
+        final Page tags = pages.get(1);
+        assertEquals(0, tags.granulePosition);
+        assertEquals("OpusTags", new String(tags.packets.get(0), 0, 8, StandardCharsets.US_ASCII));
+
+        final Page audio = pages.get(2);
+        assertEquals(0, audio.flags);
+        assertEquals(960L * 4, audio.granulePosition);
+        assertEquals(packets.length, audio.packets.size());
+        for (int i = 0; i < packets.length; i++) {
+            assertArrayEquals(packets[i], audio.packets.get(i));
+        }
+
+        final Page last = pages.get(3);
+        assertEquals(0x04, last.flags);
+        assertEquals(960L * 5, last.granulePosition);
+        assertArrayEquals(packet(100, 5), last.packets.get(0));
+    }
+
+    @Test
+    public void startsNewPageWhenSegmentsRunOut() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OggOpusWriter writer = new OggOpusWriter(Channels.newChannel(bytes), 1, 2, 0, 128 * 1024);
+        // three segments each, 85 fit into a page
+        for (int i = 0; i < 100; i++) {
+            writer.writePacket(ByteBuffer.wrap(packet(600, i)), 960L * (i + 1));
+        }
+        writer.finish();
+
+        final List<Page> pages = Page.parseAll(bytes.toByteArray());
+        assertEquals(4, pages.size());
+        assertEquals(85, pages.get(2).packets.size());
+        assertEquals(960L * 85, pages.get(2).granulePosition);
+        assertEquals(15, pages.get(3).packets.size());
+        assertEquals(960L * 100, pages.get(3).granulePosition);
+    }
+
+    private static byte[] packet(final int length, final int fill) {
+        final byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) fill);
+        return packet;
+    }
+
+    private static class Page {
+        private int flags;
+        private long granulePosition;
+        private int serial;
+        private int sequence;
+        private final List<byte[]> packets = new ArrayList<>();
+
+        private static List<Page> parseAll(final byte[] data) {
+            final List<Page> pages = new ArrayList<>();
+            final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                final int start = buffer.position();
+                final byte[] pattern = new byte[4];
+                buffer.get(pattern);
+                assertEquals("OggS", new String(pattern, StandardCharsets.US_ASCII));
+                assertEquals(0, buffer.get());
+                final Page page = new Page();
+                page.flags = buffer.get();
+                page.granulePosition = buffer.getLong();
+                page.serial = buffer.getInt();
+                page.sequence = buffer.getInt();
+                final int crc = buffer.getInt();
+                final int segmentCount = buffer.get() & 0xFF;
+                final int[] lacing = new int[segmentCount];
+                for (int i = 0; i < segmentCount; i++) {
+                    lacing[i] = buffer.get() & 0xFF;
+                }
+                final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+                for (final int segment : lacing) {
+                    final byte[] bytes = new byte[segment];
+                    buffer.get(bytes);
+                    packet.write(bytes, 0, bytes.length);
+                    if (segment < 255) {
+                        page.packets.add(packet.toByteArray());
+                        packet.reset();
+                    }
+                }
+                final byte[] pageBytes = Arrays.copyOfRange(data, start, buffer.position());
+                Arrays.fill(pageBytes, 22, 26, (byte) 0);
+                assertEquals(crc, OggCrc.update(0, pageBytes, 0, pageBytes.length));
+                pages.add(page);
+            }
+            return pages;
+        }
+    }
+}
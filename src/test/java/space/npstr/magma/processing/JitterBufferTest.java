@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JitterBufferTest {
+
+    private final List<Integer> received = new ArrayList<>();
+    private final JitterBuffer.FrameConsumer consumer = (sequence, timestamp, frame) -> {
+        // every frame carries its sequence as its only byte, and as its timestamp
+        assertEquals(1, frame.remaining());
+        assertEquals(sequence & 0xFF, frame.get(frame.position()) & 0xFF);
+        assertEquals(sequence, timestamp);
+        this.received.add((int) sequence);
+    };
+
+    @Test
+    public void reordersFrames() {
+        final JitterBuffer buffer = new JitterBuffer(4, 16);
+        offer(buffer, 10, 12, 11, 14, 13);
+
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14), this.received);
+    }
+
+    @Test
+    public void givesUpOnMissingFrameOnceDepthIsExceeded() {
+        final JitterBuffer buffer = new JitterBuffer(4, 16);
+        offer(buffer, 0, 2, 3, 4);
+        assertEquals(Arrays.asList(0), this.received);
+
+        offer(buffer, 5);
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5), this.received);
+
+        // too late, and a duplicate
+        offer(buffer, 1, 5);
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5), this.received);
+    }
+
+    @Test
+    public void wrapsAroundTheSequenceRange() {
+        final JitterBuffer buffer = new JitterBuffer(4, 16);
+        offer(buffer, 65534, 0, 65535, 1);
+
+        assertEquals(Arrays.asList(65534, 65535, 0, 1), this.received);
+    }
+
+    @Test
+    public void flushHandsOnBufferedFrames() {
+        final JitterBuffer buffer = new JitterBuffer(8, 16);
+        offer(buffer, 100, 102, 104);
+        buffer.flush(this.consumer);
+
+        assertEquals(Arrays.asList(100, 102, 104), this.received);
+
+        // starts over with the next frame
+        offer(buffer, 7);
+        assertEquals(Arrays.asList(100, 102, 104, 7), this.received);
+    }
+
+    @Test
+    public void rejectsDepthThatIsNoPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new JitterBuffer(3, 16));
+    }
+
+    private void offer(final JitterBuffer buffer, final int... sequences) {
+        for (final int sequence : sequences) {
+            buffer.offer((char) sequence, sequence, new byte[]{(byte) sequence}, 0, 1, this.consumer);
+        }
+    }
+}
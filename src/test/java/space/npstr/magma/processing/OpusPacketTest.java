@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpusPacketTest {
+
+    @Test
+    public void readsFrameDurationFromConfiguration() {
+        // SILK 10, 20, 40, 60ms
+        assertEquals(480, samples(0 << 3));
+        assertEquals(960, samples(1 << 3));
+        assertEquals(1920, samples(2 << 3));
+        assertEquals(2880, samples(3 << 3));
+        // hybrid 10ms, CELT 2.5ms and 20ms
+        assertEquals(480, samples(14 << 3));
+        assertEquals(120, samples(16 << 3));
+        assertEquals(960, samples(31 << 3));
+        // the silence frame
+        assertEquals(960, OpusPacket.getSamples(ByteBuffer.wrap(new byte[]{(byte) 0xF8, (byte) 0xFF, (byte) 0xFE})));
+    }
+
+    @Test
+    public void multipliesByFrameCount() {
+        assertEquals(1920, samples(1 << 3 | 1));
+        assertEquals(1920, samples(1 << 3 | 2));
+        assertEquals(5 * 960, samples(1 << 3 | 3, 5));
+        // a count of frames exceeding 120ms
+        assertEquals(0, samples(3 << 3 | 3, 3));
+        // the count is missing
+        assertEquals(0, samples(1 << 3 | 3));
+        assertEquals(0, OpusPacket.getSamples(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void readsFromPosition() {
+        final ByteBuffer packet = ByteBuffer.wrap(new byte[]{0, 3 << 3, 1});
+        packet.position(1);
+        assertEquals(2880, OpusPacket.getSamples(packet));
+        assertEquals(1, packet.position());
+    }
+
+    @Test
+    public void recognizesSilence() {
+        assertTrue(OpusPacket.isSilence(ByteBuffer.wrap(new byte[]{(byte) 0xF8, (byte) 0xFF, (byte) 0xFE})));
+        // DTX
+        assertTrue(OpusPacket.isSilence(ByteBuffer.wrap(new byte[]{1 << 3})));
+        assertTrue(OpusPacket.isSilence(ByteBuffer.wrap(new byte[]{1 << 3, 0})));
+        assertFalse(OpusPacket.isSilence(ByteBuffer.wrap(new byte[]{(byte) 0xF8, (byte) 0xFF, (byte) 0xFF})));
+        assertFalse(OpusPacket.isSilence(ByteBuffer.wrap(new byte[]{(byte) 0xF8, (byte) 0xFF, (byte) 0xFE, 0})));
+
+        final ByteBuffer offset = ByteBuffer.wrap(new byte[]{1, 2, 3, (byte) 0xF8, (byte) 0xFF, (byte) 0xFE});
+        offset.position(3);
+        assertTrue(OpusPacket.isSilence(offset));
+    }
+
+    private static int samples(final int... bytes) {
+        final byte[] packet = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            packet[i] = (byte) bytes[i];
+        }
+        return OpusPacket.getSamples(ByteBuffer.wrap(packet));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import net.dv8tion.jda.api.audio.AudioPacket;
+import org.junit.jupiter.api.Test;
+import space.npstr.magma.EncryptionMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PacketDecryptorTest {
+
+    private static final char SEQUENCE = 4711;
+    private static final int TIMESTAMP = 960 * 42;
+    private static final int SSRC = 0xCAFEBABE;
+
+    @Test
+    public void decryptsWhatIsEncryptedForSending() {
+        final byte[] secretKey = randomBytes(32);
+        final byte[] opus = randomBytes(123);
+        final PacketDecryptor decryptor = new PacketDecryptor(2048);
+        for (final EncryptionMode mode : EncryptionMode.values()) {
+            final byte[] packet = encrypt(mode, secretKey, opus);
+
+            assertTrue(RtpHeader.isAudioPacket(packet, packet.length), mode.name());
+            assertEquals(SEQUENCE, RtpHeader.getSequence(packet));
+            assertEquals(TIMESTAMP, RtpHeader.getTimestamp(packet));
+            assertEquals(SSRC, RtpHeader.getSsrc(packet));
+
+            assertTrue(decryptor.decrypt(packet, packet.length, mode, secretKey), mode.name());
+            final byte[] payload = Arrays.copyOfRange(decryptor.getBuffer(), decryptor.getPayloadOffset(),
+                    decryptor.getPayloadOffset() + decryptor.getPayloadLength());
+            assertArrayEquals(opus, payload, mode.name());
+        }
+    }
+
+    @Test
+    public void rejectsPacketsOfAnotherKey() {
+        final byte[] opus = randomBytes(80);
+        final PacketDecryptor decryptor = new PacketDecryptor(2048);
+        for (final EncryptionMode mode : EncryptionMode.values()) {
+            final byte[] packet = encrypt(mode, randomBytes(32), opus);
+
+            assertFalse(decryptor.decrypt(packet, packet.length, mode, randomBytes(32)), mode.name());
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPackets() {
+        final byte[] secretKey = randomBytes(32);
+        final PacketDecryptor decryptor = new PacketDecryptor(2048);
+        for (final EncryptionMode mode : EncryptionMode.values()) {
+            final byte[] packet = encrypt(mode, secretKey, randomBytes(80));
+
+            assertFalse(decryptor.decrypt(packet, RtpHeader.FIXED_LENGTH + 8, mode, secretKey), mode.name());
+        }
+    }
+
+    private static byte[] encrypt(final EncryptionMode mode, final byte[] secretKey, final byte[] opus) {
+        final AudioPacket audioPacket = new AudioPacket(SEQUENCE, TIMESTAMP, SSRC, ByteBuffer.wrap(opus));
+        final AtomicLong nonce = new AtomicLong();
+        final ByteBuffer encrypted = PacketUtil.encryptPacket(audioPacket, ByteBuffer.allocate(512), mode, secretKey,
+                nonce::incrementAndGet, new byte[TweetNaclFast.SecretBox.nonceLength]);
+        final byte[] packet = new byte[encrypted.remaining()];
+        encrypted.get(packet);
+        return packet;
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+}
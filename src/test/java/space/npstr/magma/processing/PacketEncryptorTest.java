@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import net.dv8tion.jda.api.audio.AudioPacket;
+import org.junit.jupiter.api.Test;
+import space.npstr.magma.EncryptionMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PacketEncryptorTest {
+
+    private static final char SEQUENCE = 4711;
+    private static final int TIMESTAMP = 960 * 42;
+    private static final int SSRC = 0xCAFEBABE;
+
+    @Test
+    public void buildsTheSamePacketsAsTheAudioPacket() {
+        final byte[] secretKey = randomBytes(32);
+        final byte[] opus = randomBytes(123);
+        final PacketEncryptor encryptor = new PacketEncryptor(512);
+        // the suffix mode uses a random nonce, so only the other modes are deterministic
+        for (final EncryptionMode mode : new EncryptionMode[]{
+                EncryptionMode.XSALSA20_POLY1305, EncryptionMode.XSALSA20_POLY1305_LITE}) {
+            final AudioPacket audioPacket = new AudioPacket(SEQUENCE, TIMESTAMP, SSRC, ByteBuffer.wrap(opus));
+            final AtomicLong nonce = new AtomicLong();
+            final ByteBuffer expected = PacketUtil.encryptPacket(audioPacket, ByteBuffer.allocate(512), mode,
+                    secretKey, nonce::incrementAndGet, new byte[TweetNaclFast.SecretBox.nonceLength]);
+
+            final AtomicLong ownNonce = new AtomicLong();
+            final ByteBuffer actual = encryptor.encrypt(SEQUENCE, TIMESTAMP, SSRC, ByteBuffer.wrap(opus), mode,
+                    secretKey, ownNonce::incrementAndGet);
+
+            assertEquals(expected, actual, mode.name());
+        }
+    }
+
+    @Test
+    public void encryptsBuffersWithoutAnArray() {
+        final byte[] secretKey = randomBytes(32);
+        final byte[] opus = randomBytes(200);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(opus.length + 20);
+        direct.position(10);
+        direct.put(opus);
+        direct.position(10).limit(10 + opus.length);
+        final ByteBuffer readOnly = ByteBuffer.wrap(opus).asReadOnlyBuffer();
+
+        final PacketEncryptor encryptor = new PacketEncryptor(64);
+        final PacketDecryptor decryptor = new PacketDecryptor(2048);
+        for (final EncryptionMode mode : EncryptionMode.values()) {
+            for (final ByteBuffer audio : new ByteBuffer[]{direct, readOnly}) {
+                final int position = audio.position();
+                final AtomicLong nonce = new AtomicLong();
+                final ByteBuffer encrypted = encryptor.encrypt(SEQUENCE, TIMESTAMP, SSRC, audio, mode, secretKey,
+                        nonce::incrementAndGet);
+                final byte[] packet = new byte[encrypted.remaining()];
+                encrypted.get(packet);
+
+                assertEquals(position, audio.position(), mode.name());
+                assertEquals(PacketUtil.getEncryptedLength(opus.length, mode), packet.length, mode.name());
+                assertEquals(SEQUENCE, RtpHeader.getSequence(packet));
+                assertEquals(TIMESTAMP, RtpHeader.getTimestamp(packet));
+                assertEquals(SSRC, RtpHeader.getSsrc(packet));
+                assertTrue(decryptor.decrypt(packet, packet.length, mode, secretKey), mode.name());
+                final byte[] payload = Arrays.copyOfRange(decryptor.getBuffer(), decryptor.getPayloadOffset(),
+                        decryptor.getPayloadOffset() + decryptor.getPayloadLength());
+                assertArrayEquals(opus, payload, mode.name());
+            }
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+}
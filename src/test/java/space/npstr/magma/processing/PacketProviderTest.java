@@ -0,0 +1,325 @@
+/*
+ * Copyright 2018 Dennis Neufeld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package space.npstr.magma.processing;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.dv8tion.jda.api.audio.AudioSendHandler;
+import net.dv8tion.jda.api.audio.factory.IAudioSendFactory;
+import net.dv8tion.jda.api.audio.factory.IAudioSendSystem;
+import net.dv8tion.jda.api.audio.factory.IPacketProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Schedulers;
+import space.npstr.magma.EncryptionMode;
+import space.npstr.magma.MagmaMember;
+import space.npstr.magma.Member;
+import space.npstr.magma.SilenceSuppressionStats;
+import space.npstr.magma.connections.AudioConnection;
+import space.npstr.magma.connections.SerialExecutor;
+import space.npstr.magma.connections.UdpReceiver;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Polls the packet provider of a connection the way its send system does, with the connection applying its updates on
+ * the calling thread.
+ */
+public class PacketProviderTest {
+
+    private static final int SSRC = 42;
+    private static final EncryptionMode MODE = EncryptionMode.XSALSA20_POLY1305_LITE;
+    private static final byte[] SECRET_KEY = new byte[32];
+    private static final byte[] SILENCE = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+    // toc byte of a single 20ms celt frame
+    private static final byte TOC = (byte) 0xFC;
+    private static final int SAMPLES = AudioConnection.OPUS_FRAME_SIZE;
+    private static final int PREAMBLE = 5;
+
+    private final CountingSignaling signaling = new CountingSignaling();
+    private final CapturingSendFactory sendFactory = new CapturingSendFactory();
+    private final PacketDecryptor decryptor = new PacketDecryptor(2048);
+    private DatagramSocket udpSocket;
+    private DatagramChannel udpChannel;
+    private AudioConnection connection;
+
+    @BeforeEach
+    public void connect() throws IOException {
+        this.udpSocket = new DatagramSocket();
+        this.udpChannel = DatagramChannel.open();
+        this.connection = new AudioConnection(this.signaling, this.sendFactory, this.udpSocket,
+                new UdpReceiver(this.udpChannel), new SerialExecutor(Schedulers.immediate()), false);
+        this.connection.setEncryptionMode(MODE);
+        this.connection.setSecretKey(SECRET_KEY);
+        this.connection.setSsrc(SSRC);
+        this.connection.setTargetAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000));
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        this.connection.shutdown();
+        this.udpSocket.close();
+        this.udpChannel.close();
+    }
+
+    @Test
+    public void suppressesSilenceAfterFiveFrames() {
+        this.connection.updateSendHandler(new Frames('A').sound(3).silence(10).sound(1));
+        this.poll(PREAMBLE);
+        this.poll(3);
+        final Sent lastSilence = this.poll(PREAMBLE);
+        assertArrayEquals(SILENCE, lastSilence.payload);
+
+        for (int i = 0; i < 5; i++) {
+            assertNull(this.poll(), "silent frame " + (PREAMBLE + i + 1) + " is dropped");
+        }
+        final Sent sound = this.poll();
+        assertNotNull(sound, "sound is sent with the first poll that has it");
+        assertEquals('A', sound.label());
+        assertEquals(lastSilence.sequence + 1, sound.sequence, "dropped frames take no sequence numbers");
+        assertEquals(lastSilence.timestamp + 6 * SAMPLES, sound.timestamp, "the pause is kept in the timestamps");
+
+        final SilenceSuppressionStats stats = this.connection.getSilenceSuppressionTracker().getStats();
+        assertEquals(1, stats.getSuppressions());
+        assertEquals(5, stats.getSuppressedFrames());
+        assertEquals(5 * PacketUtil.getEncryptedLength(SILENCE.length, MODE), stats.getSuppressedBytes());
+    }
+
+    @Test
+    public void silenceOfAnotherPauseIsSentAgain() {
+        this.connection.updateSendHandler(new Frames('A').silence(7).sound(1).silence(7));
+        this.poll(PREAMBLE);
+        this.poll(PREAMBLE);
+        assertNull(this.poll());
+        assertNull(this.poll());
+        assertEquals('A', this.poll().label());
+        assertArrayEquals(SILENCE, this.poll(PREAMBLE).payload);
+        assertNull(this.poll());
+
+        final SilenceSuppressionStats stats = this.connection.getSilenceSuppressionTracker().getStats();
+        assertEquals(2, stats.getSuppressions());
+        assertEquals(3, stats.getSuppressedFrames());
+    }
+
+    @Test
+    public void swappedSendHandlerContinuesTheStream() {
+        this.connection.updateSendHandler(new Frames('A'));
+        assertArrayEquals(SILENCE, this.poll(PREAMBLE).payload);
+        final Sent last = this.poll(10);
+        assertEquals('A', last.label());
+        assertEquals(-1, this.connection.getLastSendHandlerSwitchNanos());
+
+        this.connection.updateSendHandler(new Frames('B'));
+        final Sent next = this.poll();
+        assertEquals('B', next.label(), "no silence is sent between the handlers");
+        assertEquals(last.sequence + 1, next.sequence);
+        assertEquals(last.timestamp + SAMPLES, next.timestamp);
+        assertTrue(this.connection.getLastSendHandlerSwitchNanos() >= 0);
+        assertEquals(1, this.sendFactory.created);
+        assertEquals(1, this.signaling.sendingStarted.get());
+    }
+
+    /**
+     * The send system is stopped 5 seconds after the send handler has been removed, unless the send handler has been
+     * updated since. A removal must not be undone by a later removal within its window.
+     */
+    @Test
+    public void removedSendHandlerCanBeReplacedWithinTheWindow() throws InterruptedException {
+        this.connection.updateSendHandler(new Frames('A'));
+        final Sent last = this.poll(PREAMBLE + 1);
+
+        this.connection.updateSendHandler(null);
+        this.connection.updateSendHandler(new Frames('B'));
+        final Sent next = this.poll();
+        assertEquals('B', next.label());
+        assertEquals(last.sequence + 1, next.sequence);
+        assertEquals(last.timestamp + SAMPLES, next.timestamp);
+
+        Thread.sleep(3000);
+        this.connection.updateSendHandler(null);
+        // past the window of the first removal, but not of the second
+        Thread.sleep(2500);
+        assertFalse(this.sendFactory.system.shutDown);
+
+        this.connection.updateSendHandler(new Frames('C'));
+        final Sent resumed = this.poll();
+        assertEquals('C', resumed.label());
+        assertEquals(next.sequence + 1, resumed.sequence);
+        assertEquals(next.timestamp + SAMPLES, resumed.timestamp);
+        assertEquals(1, this.sendFactory.created);
+        assertEquals(3, this.signaling.sendingStarted.get());
+    }
+
+    /**
+     * @return the last of the polled packets, all of which have to be sent
+     */
+    private Sent poll(final int count) {
+        Sent sent = null;
+        for (int i = 0; i < count; i++) {
+            sent = this.poll();
+            assertNotNull(sent, "packet " + i);
+        }
+        return sent;
+    }
+
+    @Nullable
+    private Sent poll() {
+        final ByteBuffer packet = this.sendFactory.provider.getNextPacketRaw(true);
+        if (packet == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        assertTrue(this.decryptor.decrypt(bytes, bytes.length, MODE, SECRET_KEY));
+        final int offset = this.decryptor.getPayloadOffset();
+        final byte[] payload = Arrays.copyOfRange(this.decryptor.getBuffer(), offset,
+                offset + this.decryptor.getPayloadLength());
+        return new Sent(RtpHeader.getSequence(bytes), RtpHeader.getTimestamp(bytes), payload);
+    }
+
+    private static class Sent {
+        private final char sequence;
+        private final int timestamp;
+        private final byte[] payload;
+
+        private Sent(final char sequence, final int timestamp, final byte[] payload) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+        private char label() {
+            assertEquals(TOC, this.payload[0], "not a frame with sound");
+            return (char) this.payload[1];
+        }
+    }
+
+    /**
+     * Provides the queued frames, and frames with sound once they are used up.
+     */
+    private static class Frames implements AudioSendHandler {
+        private final char label;
+        private final Deque<byte[]> frames = new ArrayDeque<>();
+
+        private Frames(final char label) {
+            this.label = label;
+        }
+
+        private Frames sound(final int count) {
+            for (int i = 0; i < count; i++) {
+                this.frames.add(this.soundFrame());
+            }
+            return this;
+        }
+
+        private Frames silence(final int count) {
+            for (int i = 0; i < count; i++) {
+                this.frames.add(SILENCE.clone());
+            }
+            return this;
+        }
+
+        private byte[] soundFrame() {
+            final byte[] frame = new byte[20];
+            Arrays.fill(frame, (byte) 0x55);
+            frame[0] = TOC;
+            frame[1] = (byte) this.label;
+            return frame;
+        }
+
+        @Override
+        public boolean canProvide() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer provide20MsAudio() {
+            final byte[] frame = this.frames.poll();
+            return ByteBuffer.wrap(frame != null ? frame : this.soundFrame());
+        }
+
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+
+    private static class CapturingSendFactory implements IAudioSendFactory {
+        private int created = 0;
+        @Nullable
+        private PacketProvider provider;
+        @Nullable
+        private PolledSendSystem system;
+
+        @Override
+        public IAudioSendSystem createSendSystem(final IPacketProvider packetProvider) {
+            this.created++;
+            this.provider = (PacketProvider) packetProvider;
+            this.system = new PolledSendSystem();
+            return this.system;
+        }
+    }
+
+    private static class PolledSendSystem implements IAudioSendSystem {
+        private volatile boolean shutDown = false;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void shutdown() {
+            this.shutDown = true;
+        }
+    }
+
+    private static class CountingSignaling implements AudioConnection.Signaling {
+        private final AtomicInteger sendingStarted = new AtomicInteger(0);
+
+        @Override
+        public Member getMember() {
+            return MagmaMember.builder()
+                    .userId("174820236481134592")
+                    .guildId("166604053629894657")
+                    .build();
+        }
+
+        @Override
+        public void setSpeaking(final int speaking, final int ssrc) {
+        }
+
+        @Override
+        public void standbyReady() {
+        }
+
+        @Override
+        public void sendingStarted() {
+            this.sendingStarted.incrementAndGet();
+        }
+    }
+}